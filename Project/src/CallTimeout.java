@@ -0,0 +1,61 @@
+import java.io.*;
+
+/**
+ * Class picks how long a call to another peer waits for its answer. Lookups, heartbeats and other short
+ * calls give up after Transport.READ_TIMEOUT_MILLIS, so a peer that hangs is noticed quickly. Calls that
+ * move file data, such as a put, a batch of chunks or a notify that hands files over, can keep a healthy
+ * peer busy far longer, so the calls a thread makes inside bulk wait Transport.BULK_TIMEOUT_MILLIS instead
+ */
+public class CallTimeout {
+    private static final ThreadLocal<Boolean> bulk = ThreadLocal.withInitial(() -> false); // True inside bulk
+
+    /**
+     * A call that moves file data and returns a result
+     */
+    interface Call<T> {
+        T call() throws IOException;
+    }
+
+    /**
+     * A call that moves file data
+     */
+    interface Action {
+        void run() throws IOException;
+    }
+
+    /**
+     * Makes calls that move file data, with the bulk timeout
+     * @param call the calls, made on this thread
+     * @return the result of the calls
+     * @throws IOException what the calls threw
+     */
+    public static <T> T bulk(Call<T> call) throws IOException {
+        boolean outer = bulk.get();
+        bulk.set(true);
+        try {
+            return call.call();
+        } finally {
+            bulk.set(outer);
+        }
+    }
+
+    /**
+     * Makes calls that move file data, with the bulk timeout
+     * @param action the calls, made on this thread
+     * @throws IOException what the calls threw
+     */
+    public static void bulk(Action action) throws IOException {
+        bulk(() -> {
+            action.run();
+            return null;
+        });
+    }
+
+    /**
+     * Gets how long the next call this thread makes may wait for its answer
+     * @return the timeout in milliseconds, or 0 for no limit
+     */
+    public static int millis() {
+        return bulk.get() ? Transport.BULK_TIMEOUT_MILLIS : Transport.READ_TIMEOUT_MILLIS;
+    }
+}
@@ -1,25 +1,119 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.rmi.*;
-import java.rmi.registry.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.io.*;
 import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
 
 /**
  * Class represents an object in a peer-to-peer file system ring
  */
 public class Chord extends java.rmi.server.UnicastRemoteObject implements ChordMessageInterface {
-    public static final int M = 2;
+    private static final long serialVersionUID = 1L;
 
-    Registry registry; // RMI registry for lookup of remote objects
-    ChordMessageInterface predecessor, successor;
-    ChordMessageInterface[] finger; // Finger table for this Chord
-    int nextFinger; // The closest finger to this Chord
+    public static final int M = 64; // Number of bits in a guid, and so the number of fingers
+    public static final int FINGERS_PER_ROUND = 8; // Fingers refreshed in parallel by each call to fixFingers
+    public static final int REPLICAS = Math.max(1, Integer.getInteger("chord.replicas", 1)); // Copies of each file, counting the owner's
+    public static final int SUCCESSORS = Math.max(Math.max(REPLICAS, 4), Erasure.K + Erasure.M - 1); // Length of the successor list
+    public static final int HEARTBEAT_MILLIS = Integer.getInteger("chord.heartbeat", 500); // How often neighbors and fingers are pinged
+
+    Transport transport; // Carries calls between this chord and other peers
+    ChordNode self; // Describes this chord to other peers
+    ChordNode predecessor, successor;
+    ChordNode[] successorList = new ChordNode[0]; // The next peers along the ring, starting with successor
+    Set<ChordNode> replicatedTo = ConcurrentHashMap.newKeySet(); // Successors that were sent a copy of every key
+    ChordNode[] finger; // Finger table for this Chord
+    int nextFinger; // The next finger to be refreshed by fixFingers
     long guid; // Global unique identifier
 
+    Path repository; // Where store keeps its files, shared by the virtual nodes of this machine
+    ObjectStore store; // Holds the files this chord and the other virtual nodes of this machine are responsible for
+    GroupCommit storeCommits; // Makes writes to store durable, as -Dchord.durability asks
+    KeyIndex index = new KeyIndex(); // Keys in store that this chord is responsible for
+    ObjectStore replicas; // Holds copies of the files this chord's predecessors are responsible for
+    GroupCommit replicaCommits;
+    KeyIndex replicaIndex = new KeyIndex();
+    ObjectStore fragments; // Holds erasure-coded fragments by fragment key, shared by the virtual nodes of this machine
+    GroupCommit fragmentCommits;
+    KeyIndex fragmentIndex = new KeyIndex();
+    List<ChordNode> fragmentHolders = new ArrayList<>(); // The peers the fragments of this chord's files were last repaired on
+    ReadCache cache; // Chunks recently read from either store
+    HotKeys hotKeys = new HotKeys(); // Recent reads of each key routed through this chord
+    PathCache pathCache; // Copies of hot files owned by other peers, shared by the virtual nodes of this machine
+    Map<Long, Set<ChordNode>> pathCopies = new ConcurrentHashMap<>(); // Peers holding copies of this chord's files, told when the files change
+    Set<Long> copying = ConcurrentHashMap.newKeySet(); // Hot keys whose copy is being fetched
+    Map<Long, Transfer> transfers = new ConcurrentHashMap<>(); // Files being received in chunks
+    Map<Long, Object> migrationLocks = new ConcurrentHashMap<>(); // By guid of the target, so the transfers to one peer run one at a time
+    AtomicLong nextTransferId; // Shared by the virtual nodes of this machine, so their part files never clash
+    Maintenance maintenance = new Maintenance(4); // Runs stabilize, fixFingers, checkPredecessor and heartbeat
+    FailureDetector detector = new FailureDetector(HEARTBEAT_MILLIS); // Suspects the peers that stop answering heartbeats
+    Set<Long> pinging = ConcurrentHashMap.newKeySet(); // Peers whose last heartbeat is still unanswered
+    Set<Long> suspected = new HashSet<>(); // Peers the detector suspected at the last heartbeat
+    Metrics metrics; // Latencies, traffic and migration progress, shown by the stats command
+    Map<Long, Chord> colocated; // The virtual nodes of this machine by guid, including this chord
+
     /**
-     * Locates a specific Chord object
+     * A file that is being received in chunks
+     */
+    static class Transfer {
+        final long guidObject;
+        final String partName;
+        final boolean replica; // True if the file is a copy held for a predecessor
+        final long version; // Version the file keeps when it is copied from a peer, 0 for a new version
+        final long expected; // Checksum the sender has for the file, or KeyIndex.UNKNOWN_CHECKSUM
+        final FileChannel output; // Positional writes let chunks land concurrently and in any order
+        final Map<Long, long[]> chunks = new ConcurrentSkipListMap<>(); // Checksum and length of each chunk by offset
+        volatile long streamed = KeyIndex.UNKNOWN_CHECKSUM; // Checksum of a file that arrived as one stream
+        final long startNanos = System.nanoTime(); // When the transfer was opened, for the latency of the put
+
+        Transfer(long guidObject, String partName, boolean replica, long version, long expected) throws IOException {
+            this.guidObject = guidObject;
+            this.partName = partName;
+            this.replica = replica;
+            this.version = version;
+            this.expected = expected;
+            this.output = FileChannel.open(Paths.get(partName), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        /**
+         * Works out the checksum of the received file from the checksums of its chunks
+         * @param size the size of the received file
+         * @return the CRC32 of the file, or KeyIndex.UNKNOWN_CHECKSUM if its chunks don't cover it exactly
+         */
+        long checksum(long size) {
+            if (streamed != KeyIndex.UNKNOWN_CHECKSUM) return streamed;
+            long crc = 0, position = 0;
+            for (Map.Entry<Long, long[]> chunk : chunks.entrySet()) {
+                if (chunk.getKey() != position) return KeyIndex.UNKNOWN_CHECKSUM;
+                crc = KeyIndex.combine(crc, chunk.getValue()[0], chunk.getValue()[1]);
+                position += chunk.getValue()[1];
+            }
+            return position == size ? crc : KeyIndex.UNKNOWN_CHECKSUM;
+        }
+    }
+
+    /**
+     * Locates a specific Chord object through the transport picked with -Dchord.transport
      * @param ip the specific ip address
      * @param port the specific port
      * @return the specific Chord object based on ip and port
@@ -28,9 +122,8 @@ public class Chord extends java.rmi.server.UnicastRemoteObject implements ChordM
         ChordMessageInterface chord = null;
         try {
             // Locates the remote object responsible for the ip and port
-            Registry registry = LocateRegistry.getRegistry(ip, port);
-            chord = (ChordMessageInterface)(registry.lookup("Chord"));
-        } catch(RemoteException | NotBoundException e) {
+            chord = Transport.fromProperties().connect(ip, port);
+        } catch(RemoteException e) {
             System.out.printf("Unable to locate remote Chord object for %s:%d -> %s\n", ip, port, e.getMessage());
         }
         return chord;
@@ -64,32 +157,940 @@ public class Chord extends java.rmi.server.UnicastRemoteObject implements ChordM
      * Places a file in the file system ring
      * @param guidObject the global unique identifier of the file
      * @param stream the data of the file
-     * @throws RemoteException
+     * @throws IOException
      */
-    public void put(long guidObject, InputStream stream) throws RemoteException {
-        // Writes the file data to this chord's repository with the name guidObject
-        String fileName = String.format("%d/repository/%d", this.guid, guidObject);
-        try {
-            FileOutputStream output = new FileOutputStream(fileName);
+    public void put(long guidObject, InputStream stream) throws IOException {
+        receive(guidObject, stream, false);
+    }
 
-            while (stream.available() > 0) output.write(stream.read());
+    /**
+     * Stores a copy of a file this chord's predecessor is responsible for
+     * @param guidObject the global unique identifier of the file
+     * @param stream the data of the file
+     * @throws IOException
+     */
+    public void putReplica(long guidObject, InputStream stream) throws IOException {
+        receive(guidObject, stream, true);
+    }
 
-            System.out.printf("Finished writing %d to %s\n", guidObject, fileName);
-            output.close();
+    /**
+     * Writes a stream to this chord's repository with the name guidObject, one chunk at a time
+     * @param guidObject the global unique identifier of the file
+     * @param stream the data of the file
+     * @param replica true to store the file as a copy held for a predecessor
+     * @throws IOException
+     */
+    private void receive(long guidObject, InputStream stream, boolean replica) throws IOException {
+        Path fileName = repository.resolve(Long.toString(guidObject));
+        // A file copied from another peer keeps its version, so caches holding it stay valid, and is checked
+        // against the checksum that peer has for it
+        FileStream copy = stream instanceof FileStream ? (FileStream)stream : null;
+        long version = copy != null ? copy.getVersion() : 0;
+        long expected = copy != null && copy.getPosition() == 0 && copy.getEnd() == copy.getSize() ? copy.getChecksum() : KeyIndex.UNKNOWN_CHECKSUM;
+        long transferId = beginTransfer(guidObject, replica, version, expected);
+        try {
+            // A local file is copied by the kernel, anything else through a channel buffer that checksums it on the way
+            CheckedInputStream checked = stream instanceof FileInputStream ? null : new CheckedInputStream(stream, new CRC32());
+            ReadableByteChannel input = checked == null ? ((FileInputStream)stream).getChannel() : Channels.newChannel(checked);
+            Transfer transfer = transfers.get(transferId);
+            long position = 0, copied;
+            while ((copied = transfer.output.transferFrom(input, position, FileTransfer.CHUNK_SIZE)) > 0) position += copied;
+            if (checked != null) transfer.streamed = checked.getChecksum().getValue();
+            metrics.received(copy != null ? copy.getSource().id : Metrics.CALLERS, position);
+
+            commitTransfer(transferId);
         } catch(IOException e) {
             System.out.printf("Failed to completely write %d to %s -> %s\n", guidObject, fileName, e.getMessage());
+            abortTransfer(transferId);
+            throw e;
         }
     }
 
     /**
-     * Gets a file from the file system ring
+     * Gets a file from the file system ring, marked hot if this chord has seen many reads of it lately
      * @param guidObject the global unique identifier of the file
-     * @return the data of the file
+     * @return a stream that fetches the data of the file in chunks
      * @throws IOException
      */
     public InputStream get(long guidObject) throws IOException {
-        String filePath = String.format("%d/repository/%d", this.guid, guidObject);
-        return new FileStream(filePath);
+        long size = getSize(guidObject), version = index.version(guidObject);
+        FileStream stream = new FileStream(self, guidObject, size, version);
+        stream.setHot(countRead(guidObject, size, version));
+        stream.setChecksum(index.checksum(guidObject));
+        return stream;
+    }
+
+    /**
+     * Gets part of a file from the file system ring
+     * @param guidObject the global unique identifier of the file
+     * @param offset where the part starts
+     * @param length the length of the part, which is cut short at the end of the file
+     * @return a stream that fetches the part in chunks
+     * @throws IOException if this chord isn't responsible for the file, the file doesn't exist or the offset is past its end
+     */
+    public InputStream get(long guidObject, long offset, long length) throws IOException {
+        if (offset < 0 || length < 0) throw new IllegalArgumentException(String.format("Bad range of %d bytes at %d", length, offset));
+        long size = getSize(guidObject);
+        if (offset > size) throw new EOFException(String.format("%d has %d bytes, so nothing starts at %d", guidObject, size, offset));
+        return new FileStream(self, guidObject, size, index.version(guidObject), offset, length);
+    }
+
+    /**
+     * Gets the version of a file, which changes every time the file is written
+     * @param guidObject the global unique identifier of the file
+     * @return the version of the file
+     * @throws IOException if this chord isn't responsible for the file or the file doesn't exist
+     */
+    public long getVersion(long guidObject) throws IOException {
+        checkOwner(guidObject);
+        long version = index.version(guidObject);
+        if (version == 0) throw new FileNotFoundException(String.format("%d is not in this repository", guidObject));
+        return version;
+    }
+
+    /**
+     * Stores a batch of small files that another peer is handing over to this chord
+     * @param guidObjects the global unique identifiers of the files
+     * @param versions the version of each file
+     * @param files the data of each file, packed by Compression
+     * @throws IOException if any file couldn't be stored, in which case the sender keeps them all
+     */
+    public void putBatch(long[] guidObjects, long[] versions, byte[][] files) throws IOException {
+        storeBatch(guidObjects, versions, files);
+        repairLater(guidObjects); // Files handed over by a peer have their fragments on that peer's successors
+    }
+
+    /**
+     * Stores a batch of small files this chord is responsible for and copies them to the replica targets
+     * @param guidObjects the global unique identifiers of the files
+     * @param versions the version of each file
+     * @param files the data of each file, packed by Compression
+     * @throws IOException if any file couldn't be stored
+     */
+    private void storeBatch(long[] guidObjects, long[] versions, byte[][] files) throws IOException {
+        long start = System.nanoTime();
+        byte[][] data = Compression.unpackAll(files);
+        for (int i = 0; i < guidObjects.length; i++) {
+            store.write(guidObjects[i], data[i], KeyIndex.kind(versions[i]));
+            index.put(guidObjects[i], data[i].length, versions[i], KeyIndex.checksum(data[i]));
+            dropReplica(guidObjects[i]);
+            dropPathCopies(guidObjects[i]);
+            metrics.received(Metrics.CALLERS, files[i].length);
+        }
+        storeCommits.await(); // One force of the store covers the whole batch, though the file store already forced each file
+        replicate(guidObjects, versions, files); // Already packed, so the copies go out as they came in
+        metrics.record(Metrics.Op.PUT_BATCH, start);
+    }
+
+    /**
+     * Stores a batch of small files written by a user, giving each of them a new version
+     * @param guidObjects the global unique identifiers of the files
+     * @param files the data of each file, packed by Compression
+     * @throws IOException if this chord isn't responsible for every file, in which case none are stored
+     */
+    public void putFiles(long[] guidObjects, byte[][] files) throws IOException {
+        for (long guidObject : guidObjects) checkOwner(guidObject);
+        long[] versions = new long[guidObjects.length];
+        for (int i = 0; i < versions.length; i++) versions[i] = KeyIndex.newVersion();
+        storeBatch(guidObjects, versions, files);
+        System.out.printf("Finished writing %d files to %s\n", guidObjects.length, repository);
+    }
+
+    /**
+     * Reads a batch of small files in one call. Files that are missing, manifests or descriptors, larger
+     * than a chunk or that would take the batch over FileTransfer.BATCH_BYTES are left out and must be read
+     * on their own
+     * @param guidObjects the global unique identifiers of the files
+     * @param codecs the codecs the caller takes, as a bit per codec of Compression
+     * @return the data of each file packed by Compression, or null for the files that were left out
+     * @throws IOException if this chord isn't responsible for every file
+     */
+    public byte[][] getFiles(long[] guidObjects, int codecs) throws IOException {
+        long start = System.nanoTime();
+        for (long guidObject : guidObjects) checkOwner(guidObject);
+        byte[][] files = new byte[guidObjects.length][];
+        long batchBytes = 0;
+        for (int i = 0; i < guidObjects.length; i++) {
+            long size = index.size(guidObjects[i]);
+            if (size < 0 || size > FileTransfer.CHUNK_SIZE || batchBytes + size > FileTransfer.BATCH_BYTES) continue;
+            if (KeyIndex.kind(index.version(guidObjects[i])) != KeyIndex.PLAIN) continue;
+            try {
+                files[i] = verified(guidObjects[i], readChunk(guidObjects[i], 0, (int)size), index.checksum(guidObjects[i]));
+                batchBytes += size;
+            } catch(FileNotFoundException | NoSuchFileException e) { // Deleted since the index was checked
+            } catch(StreamCorruptedException e) {
+                System.out.printf("Leaving %d out of a batch -> %s\n", guidObjects[i], e.getMessage());
+            }
+        }
+        byte[][] packed = Compression.packAll(files, codecs & Compression.CODECS);
+        for (byte[] file : packed) if (file != null) metrics.sent(Metrics.CALLERS, file.length);
+        metrics.record(Metrics.Op.GET_BATCH, start);
+        return packed;
+    }
+
+    /**
+     * Checks which of a batch of files this chord holds, so a client can skip sending the ones it has
+     * @param guidObjects the global unique identifiers of the files
+     * @return whether each file is in this chord's repository
+     * @throws IOException if this chord isn't responsible for every file
+     */
+    public boolean[] hasFiles(long[] guidObjects) throws IOException {
+        for (long guidObject : guidObjects) checkOwner(guidObject);
+        boolean[] held = new boolean[guidObjects.length];
+        for (int i = 0; i < guidObjects.length; i++) held[i] = index.version(guidObjects[i]) != 0;
+        return held;
+    }
+
+    /**
+     * Gets the peers that should hold the fragments of a file this chord is responsible for
+     * @param guidObject the global unique identifier of the file
+     * @param count the number of fragments in each stripe of the file
+     * @return this chord followed by successors on machines of their own, up to count peers
+     * @throws IOException if this chord isn't responsible for the file
+     */
+    public ChordNode[] getFragmentSet(long guidObject, int count) throws IOException {
+        checkOwner(guidObject);
+        return fragmentSet(count).toArray(new ChordNode[0]);
+    }
+
+    /**
+     * Stores erasure-coded fragments on this machine, whichever files they belong to
+     * @param fragmentKeys the keys of the fragments
+     * @param packed the data of each fragment, packed by Compression
+     * @throws IOException if any fragment couldn't be stored
+     */
+    public void putFragments(long[] fragmentKeys, byte[][] packed) throws IOException {
+        byte[][] data = Compression.unpackAll(packed);
+        for (int i = 0; i < fragmentKeys.length; i++) {
+            fragments.write(fragmentKeys[i], data[i], KeyIndex.PLAIN);
+            fragmentIndex.put(fragmentKeys[i], data[i].length, KeyIndex.newVersion(), KeyIndex.checksum(data[i]));
+            metrics.received(Metrics.CALLERS, packed[i].length);
+        }
+        fragmentCommits.await();
+    }
+
+    /**
+     * Reads the erasure-coded fragments this machine holds out of a batch
+     * @param fragmentKeys the keys of the fragments
+     * @param codecs the codecs the caller takes, as a bit per codec of Compression
+     * @return the data of each fragment packed by Compression, or null for the fragments this machine doesn't hold
+     * @throws IOException if a fragment can't be read
+     */
+    public byte[][] getFragments(long[] fragmentKeys, int codecs) throws IOException {
+        long start = System.nanoTime();
+        byte[][] data = new byte[fragmentKeys.length][];
+        for (int i = 0; i < fragmentKeys.length; i++) {
+            long size = fragmentIndex.size(fragmentKeys[i]);
+            if (size < 0) continue;
+            try {
+                data[i] = verified(fragmentKeys[i], fragments.read(fragmentKeys[i], 0, (int)size), fragmentIndex.checksum(fragmentKeys[i]));
+            } catch(FileNotFoundException | NoSuchFileException e) { // Deleted since the index was checked
+            } catch(StreamCorruptedException e) {
+                // Left out like a lost fragment, so the reader rebuilds it from the others
+                System.out.printf("Leaving fragment %d out -> %s\n", fragmentKeys[i], e.getMessage());
+            }
+        }
+        byte[][] packed = Compression.packAll(data, codecs & Compression.CODECS);
+        for (byte[] fragment : packed) if (fragment != null) metrics.sent(Metrics.CALLERS, fragment.length);
+        metrics.record(Metrics.Op.GET_BATCH, start);
+        return packed;
+    }
+
+    /**
+     * Checks which of a batch of erasure-coded fragments this machine holds
+     * @param fragmentKeys the keys of the fragments
+     * @return whether each fragment is held here
+     * @throws IOException
+     */
+    public boolean[] hasFragments(long[] fragmentKeys) throws IOException {
+        boolean[] held = new boolean[fragmentKeys.length];
+        for (int i = 0; i < fragmentKeys.length; i++) held[i] = fragmentIndex.size(fragmentKeys[i]) >= 0;
+        return held;
+    }
+
+    /**
+     * Removes the erasure-coded fragments this machine holds out of a batch
+     * @param fragmentKeys the keys of the fragments
+     * @throws IOException if a fragment couldn't be removed
+     */
+    public void deleteFragments(long[] fragmentKeys) throws IOException {
+        for (long fragmentKey : fragmentKeys)
+            if (fragmentIndex.remove(fragmentKey)) fragments.delete(fragmentKey);
+    }
+
+    /**
+     * Stores copies of a batch of small files this chord's predecessor is responsible for
+     * @param guidObjects the global unique identifiers of the files
+     * @param versions the version of each file
+     * @param files the data of each file, packed by Compression
+     * @throws IOException if any file couldn't be stored
+     */
+    public void putReplicaBatch(long[] guidObjects, long[] versions, byte[][] files) throws IOException {
+        byte[][] data = Compression.unpackAll(files);
+        for (int i = 0; i < guidObjects.length; i++) {
+            replicas.write(guidObjects[i], data[i], KeyIndex.kind(versions[i]));
+            replicaIndex.put(guidObjects[i], data[i].length, versions[i], KeyIndex.checksum(data[i]));
+            metrics.received(Metrics.CALLERS, files[i].length);
+        }
+        replicaCommits.await();
+    }
+
+    /**
+     * Starts receiving a file that will be sent in chunks
+     * @param guidObject the global unique identifier of the file
+     * @param kind the kind of the file from KeyIndex, which the new version of the file carries
+     * @return the identifier to send the chunks with
+     * @throws IOException if this chord isn't responsible for the file or the temporary file can't be created
+     */
+    public long openTransfer(long guidObject, int kind) throws IOException {
+        checkOwner(guidObject);
+        return beginTransfer(guidObject, false, KeyIndex.newVersion(kind), KeyIndex.UNKNOWN_CHECKSUM);
+    }
+
+    /**
+     * Starts receiving a file without checking that this chord is responsible for it
+     * @param guidObject the global unique identifier of the file
+     * @param replica true to store the file as a copy held for a predecessor
+     * @param version the version the file keeps, or 0 to give it a new one
+     * @param expected the checksum the sender has for the file, or KeyIndex.UNKNOWN_CHECKSUM
+     * @return the identifier to send the chunks with
+     * @throws IOException if the temporary file can't be created
+     */
+    private long beginTransfer(long guidObject, boolean replica, long version, long expected) throws IOException {
+        long transferId = nextTransferId.incrementAndGet();
+
+        // Chunks go to a hidden part file so readers never see a half-written object
+        String partName = repository.resolve(String.format(".%d.%d.part", guidObject, transferId)).toString();
+        transfers.put(transferId, new Transfer(guidObject, partName, replica, version, expected));
+        return transferId;
+    }
+
+    /**
+     * Writes one chunk of a file that is being received
+     * @param transferId the identifier returned by openTransfer
+     * @param offset where the chunk starts in the file
+     * @param chunk the data of the chunk
+     * @throws IOException if the transfer is unknown or the write fails
+     */
+    public void putChunk(long transferId, long offset, byte[] chunk) throws IOException {
+        writeChunk(transferId, offset, chunk);
+        metrics.received(Metrics.CALLERS, chunk.length);
+    }
+
+    /**
+     * Writes one chunk of a file that is being received, packed by Compression
+     * @param transferId the identifier returned by openTransfer
+     * @param offset where the chunk starts in the file
+     * @param packed the packed data of the chunk
+     * @throws IOException if the transfer is unknown, the chunk is corrupt or the write fails
+     */
+    public void putPackedChunk(long transferId, long offset, byte[] packed) throws IOException {
+        writeChunk(transferId, offset, Compression.unpack(packed));
+        metrics.received(Metrics.CALLERS, packed.length);
+    }
+
+    /**
+     * Writes one chunk of a file that is being received, without counting it as traffic
+     * @param transferId the identifier returned by beginTransfer
+     * @param offset where the chunk starts in the file
+     * @param chunk the data of the chunk
+     * @throws IOException if the transfer is unknown or the write fails
+     */
+    private void writeChunk(long transferId, long offset, byte[] chunk) throws IOException {
+        Transfer transfer = getTransfer(transferId);
+        ByteBuffer buffer = ByteBuffer.wrap(chunk);
+        while (buffer.hasRemaining()) transfer.output.write(buffer, offset + buffer.position());
+        transfer.chunks.put(offset, new long[] { KeyIndex.checksum(chunk), chunk.length }); // A chunk sent again replaces its checksum
+    }
+
+    /**
+     * Finishes receiving a file and makes it visible in the repository
+     * @param transferId the identifier returned by openTransfer
+     * @throws IOException if the transfer is unknown, the file doesn't match the sender's checksum or it
+     * can't be moved into place
+     */
+    public void commitTransfer(long transferId) throws IOException {
+        Transfer transfer = getTransfer(transferId);
+        transfers.remove(transferId);
+        transfer.output.close();
+
+        Path partPath = Paths.get(transfer.partName);
+        long size = Files.size(partPath), checksum = transfer.checksum(size);
+        if (transfer.expected != KeyIndex.UNKNOWN_CHECKSUM && checksum != KeyIndex.UNKNOWN_CHECKSUM && checksum != transfer.expected) {
+            Files.deleteIfExists(partPath);
+            throw new StreamCorruptedException(String.format("%d doesn't match the checksum of its sender", transfer.guidObject));
+        }
+        long version = transfer.version != 0 ? transfer.version : KeyIndex.newVersion();
+        if (transfer.replica) {
+            replicas.commit(transfer.guidObject, partPath, KeyIndex.kind(version));
+            replicaCommits.await();
+            replicaIndex.put(transfer.guidObject, size, version, checksum);
+            metrics.record(Metrics.Op.PUT, transfer.startNanos);
+            return;
+        }
+
+        store.commit(transfer.guidObject, partPath, KeyIndex.kind(version));
+        storeCommits.await();
+        index.put(transfer.guidObject, size, version, checksum);
+        dropReplica(transfer.guidObject);
+        dropPathCopies(transfer.guidObject);
+        System.out.printf("Finished writing %d to %s\n", transfer.guidObject, repository);
+        replicate(transfer.guidObject, size, version);
+        metrics.record(Metrics.Op.PUT, transfer.startNanos);
+    }
+
+    /**
+     * Throws away a file that was partially received
+     * @param transferId the identifier returned by openTransfer
+     * @throws IOException
+     */
+    public void abortTransfer(long transferId) throws IOException {
+        Transfer transfer = transfers.remove(transferId);
+        if (transfer == null) return;
+        transfer.output.close();
+        Files.deleteIfExists(Paths.get(transfer.partName));
+    }
+
+    /**
+     * Gets the size of a file in this chord's repository
+     * @param guidObject the global unique identifier of the file
+     * @return the size of the file in bytes
+     * @throws IOException if this chord isn't responsible for the file or the file doesn't exist
+     */
+    public long getSize(long guidObject) throws IOException {
+        checkOwner(guidObject);
+        long size = index.size(guidObject);
+        if (size < 0) throw new FileNotFoundException(String.format("%d is not in this repository", guidObject));
+        return size;
+    }
+
+    /**
+     * Reads one chunk of a file in this chord's repository
+     * @param guidObject the global unique identifier of the file
+     * @param offset where the chunk starts in the file
+     * @param length the maximum number of bytes to read
+     * @return the data of the chunk, which is shorter than length at the end of the file
+     * @throws IOException if the file doesn't exist
+     */
+    public byte[] getChunk(long guidObject, long offset, int length) throws IOException {
+        long start = System.nanoTime();
+        byte[] chunk = readChunk(guidObject, offset, length);
+        metrics.sent(Metrics.CALLERS, chunk.length);
+        metrics.record(Metrics.Op.GET, start);
+        return chunk;
+    }
+
+    /**
+     * Reads one chunk of a file in this chord's repository, packed with a codec the caller takes. A chunk
+     * that is stored compressed and that the caller reads whole goes out just as it is stored
+     * @param guidObject the global unique identifier of the file
+     * @param offset where the chunk starts in the file
+     * @param length the maximum number of bytes to read
+     * @param codecs the codecs the caller takes, as a bit per codec of Compression
+     * @return the packed data of the chunk, which is shorter than length at the end of the file once unpacked
+     * @throws IOException if the file doesn't exist
+     */
+    public byte[] getPackedChunk(long guidObject, long offset, int length, int codecs) throws IOException {
+        long start = System.nanoTime();
+        boolean replica = index.size(guidObject) < 0 && replicaIndex.size(guidObject) >= 0;
+        long size = replica ? replicaIndex.size(guidObject) : index.size(guidObject);
+        ObjectStore source = replica ? replicas : store;
+
+        byte[] packed = null;
+        if (source instanceof CompressedStore && (length == FileTransfer.CHUNK_SIZE || size - offset <= Math.min(length, FileTransfer.CHUNK_SIZE))) {
+            packed = ((CompressedStore)source).readPacked(guidObject, offset);
+            if (packed != null && packed.length > 0 && (codecs & 1 << packed[0]) == 0) packed = null;
+        }
+        if (packed == null) packed = Compression.pack(readChunk(guidObject, offset, length), codecs & Compression.CODECS);
+        metrics.sent(Metrics.CALLERS, packed.length);
+        metrics.record(Metrics.Op.GET, start);
+        return packed;
+    }
+
+    /**
+     * Checks a whole file read from a store against the checksum in its index, so a file damaged on disk
+     * isn't handed to another peer
+     * @param guidObject the global unique identifier of the file
+     * @param data the data of the file
+     * @param checksum the CRC32 of the file, or KeyIndex.UNKNOWN_CHECKSUM to take the data as it is
+     * @return the data
+     * @throws StreamCorruptedException if the data doesn't match the checksum
+     */
+    private static byte[] verified(long guidObject, byte[] data, long checksum) throws StreamCorruptedException {
+        if (checksum != KeyIndex.UNKNOWN_CHECKSUM && KeyIndex.checksum(data) != checksum)
+            throw new StreamCorruptedException(String.format("%d doesn't match its checksum", guidObject));
+        return data;
+    }
+
+    /**
+     * Reads one chunk of a file from whichever store holds it, or from the read cache
+     * @param guidObject the global unique identifier of the file
+     * @param offset where the chunk starts in the file
+     * @param length the maximum number of bytes to read
+     * @return the data of the chunk, which is shorter than length at the end of the file
+     * @throws IOException if the file doesn't exist
+     */
+    private byte[] readChunk(long guidObject, long offset, int length) throws IOException {
+        boolean replica = index.size(guidObject) < 0 && replicaIndex.size(guidObject) >= 0;
+        long version = replica ? replicaIndex.version(guidObject) : index.version(guidObject);
+        long size = replica ? replicaIndex.size(guidObject) : index.size(guidObject);
+        long expected = Math.max(0, Math.min(length, size - offset)); // Shorter than length at the end of the file
+
+        // Hot files are served from memory, and a write gives the file a new version so stale chunks never match
+        byte[] chunk = cache.get(guidObject, offset, version);
+        if (chunk == null || chunk.length != expected) {
+            chunk = replica ? replicas.read(guidObject, offset, length) : store.read(guidObject, offset, length);
+            cache.put(guidObject, offset, version, chunk);
+        }
+        return chunk;
+    }
+
+    /**
+     * Gets a file from this chord whether it is responsible for the file or holds a copy of it, marked hot
+     * if this chord has seen many reads of it lately
+     * @param guidObject the global unique identifier of the file
+     * @return a stream that fetches the data of the file in chunks
+     * @throws IOException if this chord has no copy of the file
+     */
+    public InputStream getReplica(long guidObject) throws IOException {
+        long size = index.size(guidObject), version = index.version(guidObject), checksum = index.checksum(guidObject);
+        if (size < 0) {
+            size = replicaIndex.size(guidObject);
+            version = replicaIndex.version(guidObject);
+            checksum = replicaIndex.checksum(guidObject);
+        }
+        if (size < 0) throw new FileNotFoundException(String.format("%d is not in this repository", guidObject));
+        FileStream stream = new FileStream(self, guidObject, size, version);
+        stream.setHot(countRead(guidObject, size, version));
+        stream.setChecksum(checksum);
+        return stream;
+    }
+
+    /**
+     * Counts a read of a whole file served by this chord. Every copy of a file is asked for each read a
+     * client races between them, so any of them can tell the client the file is hot
+     * @param guidObject the global unique identifier of the file
+     * @param size the size of the file in bytes
+     * @param version the version of the file
+     * @return true if the file is hot and small enough to be copied along lookup routes
+     */
+    private boolean countRead(long guidObject, long size, long version) {
+        if (size > PathCache.MAX_BYTES || KeyIndex.kind(version) == KeyIndex.DESCRIPTOR) return false;
+        return HotKeys.isHot(hotKeys.add(guidObject));
+    }
+
+    /**
+     * Removes the copy of a file held for a predecessor
+     * @param guidObject the global unique identifier of the file
+     * @throws IOException
+     */
+    public void deleteReplica(long guidObject) throws IOException {
+        dropReplica(guidObject);
+    }
+
+    /**
+     * Gets the peers that hold copies of the files this chord is responsible for
+     * @param guidObject the global unique identifier of a file, which must belong to this chord
+     * @return the successors that hold copies, not counting this chord
+     * @throws IOException if this chord isn't responsible for the file
+     */
+    public ChordNode[] getReplicaSet(long guidObject) throws IOException {
+        checkOwner(guidObject);
+        return replicaTargets().toArray(new ChordNode[0]);
+    }
+
+    /**
+     * Accessor for the successor list of this chord
+     * @return the next peers along the ring, starting with the successor
+     * @throws RemoteException
+     */
+    public ChordNode[] getSuccessorList() throws RemoteException {
+        return successorList;
+    }
+
+    /**
+     * Reads a small file by routing the request toward its owner the way a lookup is routed, so any peer
+     * on the way that holds a copy of the file answers in the owner's place. Every peer the request passes
+     * counts it, and a peer the file turns hot at fetches a copy of its own to answer the reads after it
+     * @param guidObject the global unique identifier of the file
+     * @param codecs the codecs the caller takes, as a bit per codec of Compression
+     * @return the file as a PathCache.Copy travels, or null if the file is larger than PathCache.MAX_BYTES
+     * @throws IOException if the file doesn't exist or the request couldn't be routed
+     */
+    public byte[] getOnRoute(long guidObject, int codecs) throws IOException {
+        boolean hot = HotKeys.isHot(hotKeys.add(guidObject));
+        ChordNode p = predecessor;
+        if (successor.id == guid || guidObject == guid || (p != null && isKeyInSemiCloseInterval(guidObject, p.id, guid)))
+            return getPathCopy(guidObject, null, codecs);
+
+        PathCache.Copy copy = pathCache.get(guidObject);
+        if (copy != null) {
+            byte[] encoded = copy.encode(codecs & Compression.CODECS);
+            metrics.sent(Metrics.CALLERS, encoded.length);
+            return encoded;
+        }
+        while (true) {
+            if (isKeyInSemiCloseInterval(guidObject, guid, successor.id)) {
+                // The last hop reads from the owner itself, which remembers this chord if it keeps a copy
+                ChordNode owner = successor;
+                long requestedAt = System.nanoTime();
+                byte[] encoded = owner.stub.getPathCopy(guidObject, hot ? self : null, codecs & Compression.CODECS);
+                if (hot && encoded != null) pathCache.put(guidObject, PathCache.Copy.decode(encoded), requestedAt);
+                return encoded;
+            }
+
+            ChordNode j = closestPrecedingNode(guidObject);
+            try {
+                byte[] encoded = j.stub.getOnRoute(guidObject, codecs & Compression.CODECS);
+                if (hot && encoded != null) copyLater(guidObject);
+                return encoded;
+            } catch(RemoteException e) {
+                if (e instanceof ServerException || j.equals(successor)) throw e;
+                removeFinger(j); // The finger couldn't be reached, so route around it
+                maintenance.disturb();
+            }
+        }
+    }
+
+    /**
+     * Reads a small file this chord is responsible for, and remembers the peer that keeps a copy of it
+     * so the copy can be dropped when the file changes
+     * @param guidObject the global unique identifier of the file
+     * @param cacher the peer keeping a copy, or null if the file is only read
+     * @param codecs the codecs the caller takes, as a bit per codec of Compression
+     * @return the file as a PathCache.Copy travels, or null if the file is larger than PathCache.MAX_BYTES
+     * @throws IOException if this chord isn't responsible for the file or the file doesn't exist
+     */
+    public byte[] getPathCopy(long guidObject, ChordNode cacher, int codecs) throws IOException {
+        long start = System.nanoTime();
+        long size = getSize(guidObject), version = index.version(guidObject);
+        if (size > PathCache.MAX_BYTES) return null;
+        // The peer is remembered before the file is read, so a write after the read always reaches it
+        if (cacher != null) pathCopies.computeIfAbsent(guidObject, key -> ConcurrentHashMap.newKeySet()).add(cacher);
+        byte[] encoded = new PathCache.Copy(version, readChunk(guidObject, 0, (int)size)).encode(codecs & Compression.CODECS);
+        metrics.sent(Metrics.CALLERS, encoded.length);
+        metrics.record(Metrics.Op.GET, start);
+        return encoded;
+    }
+
+    /**
+     * Drops the copy this machine holds of a file that its owner overwrote or deleted
+     * @param guidObject the global unique identifier of the file
+     * @throws IOException
+     */
+    public void dropPathCopy(long guidObject) throws IOException {
+        pathCache.invalidate(guidObject);
+    }
+
+    /**
+     * Fetches a copy of a hot file from its owner in the background, unless one is already being fetched
+     * @param guidObject the global unique identifier of the file
+     */
+    private void copyLater(long guidObject) {
+        if (!copying.add(guidObject)) return;
+        FileTransfer.executor.execute(() -> {
+            try {
+                ChordNode owner = locateSuccessor(guidObject);
+                long requestedAt = System.nanoTime();
+                byte[] encoded = owner == null ? null : owner.stub.getPathCopy(guidObject, self, Compression.CODECS);
+                if (encoded != null) pathCache.put(guidObject, PathCache.Copy.decode(encoded), requestedAt);
+            } catch(IOException e) {
+                // Without a copy the reads are passed on toward the owner as before
+            } finally {
+                copying.remove(guidObject);
+            }
+        });
+    }
+
+    /**
+     * Tells every peer holding a copy of a file that the file changed, and waits for them so a read
+     * after the write never finds the old data on the route. A peer that can't be told serves its copy
+     * until it expires
+     * @param guidObject the global unique identifier of the file
+     */
+    private void dropPathCopies(long guidObject) {
+        Set<ChordNode> holders = pathCopies.remove(guidObject);
+        if (holders == null) return;
+        List<Future<Void>> pending = new ArrayList<>();
+        for (ChordNode holder : holders) {
+            pending.add(FileTransfer.executor.submit(() -> {
+                holder.stub.dropPathCopy(guidObject);
+                return null;
+            }));
+        }
+        for (Future<Void> drop : pending) {
+            try {
+                FileTransfer.await(drop);
+            } catch(IOException e) {}
+        }
+    }
+
+    /**
+     * Gets the successors that should hold copies of this chord's files. Copies only count when they are
+     * on another machine, so the successors are skipped when they are virtual nodes of this machine or
+     * of a machine that already holds a copy
+     * @return up to REPLICAS - 1 peers from the successor list, each on a machine of its own
+     */
+    private List<ChordNode> replicaTargets() {
+        List<ChordNode> targets = new ArrayList<>();
+        for (ChordNode node : successorList) {
+            if (targets.size() == REPLICAS - 1) break;
+            if (node == null || isSameMachine(node, self)) continue;
+            if (targets.stream().noneMatch(target -> isSameMachine(node, target))) targets.add(node);
+        }
+        return targets;
+    }
+
+    /**
+     * Gets the peers that should hold the fragments of this chord's files, piece i of each stripe going to
+     * the i-th of them. Like replica targets, each is on a machine of its own
+     * @param count the number of fragments in a stripe
+     * @return this chord followed by up to count - 1 successors
+     */
+    private List<ChordNode> fragmentSet(int count) {
+        List<ChordNode> holders = new ArrayList<>();
+        holders.add(self);
+        for (ChordNode node : successorList) {
+            if (holders.size() == count) break;
+            if (node != null && holders.stream().noneMatch(holder -> isSameMachine(node, holder))) holders.add(node);
+        }
+        return holders;
+    }
+
+    /**
+     * Regenerates the missing fragments of some files in the background, if they are descriptors
+     * @param keys the keys of the files
+     */
+    private void repairLater(long[] keys) {
+        if (Erasure.ENABLED && keys.length > 0) FileTransfer.executor.submit(() -> repairFragments(keys));
+    }
+
+    /**
+     * Makes sure every stripe of the erasure-coded files among some keys has all of its fragments on the
+     * peers that should hold them. Only the missing fragments are rebuilt, each from k of the others
+     * @param keys the keys of files this chord is responsible for
+     */
+    private void repairFragments(long[] keys) {
+        int files = 0, lost = 0;
+        long regenerated = 0;
+        for (long key : keys) {
+            if (KeyIndex.kind(index.version(key)) != KeyIndex.DESCRIPTOR) continue;
+            try {
+                files++;
+                Erasure.Descriptor descriptor = Erasure.Descriptor.decode(store.read(key, 0, Erasure.DESCRIPTOR_BYTES));
+                regenerated += CallTimeout.bulk(() -> repairFragments(descriptor));
+            } catch(IOException e) {
+                lost++;
+                System.out.printf("Failed to repair the fragments of %d -> %s\n", key, e.getMessage());
+            }
+        }
+        if (regenerated > 0 || lost > 0) System.out.printf("Regenerated %d fragments of %d files (%d couldn't be repaired)\n", regenerated, files, lost);
+    }
+
+    /**
+     * Regenerates the missing fragments of one erasure-coded file. Each missing fragment goes to a holder
+     * that has no other fragment of its stripe if there is one
+     * @param descriptor the descriptor of the file
+     * @return the number of fragments regenerated
+     * @throws IOException if a stripe has fewer than k fragments left
+     */
+    private long repairFragments(Erasure.Descriptor descriptor) throws IOException {
+        int shards = descriptor.k + descriptor.m;
+        List<ChordNode> holders = fragmentSet(shards);
+        long[] keys = descriptor.keys(0, descriptor.stripes());
+
+        // One call per holder finds out where every fragment is
+        ChordNode[] holderOf = new ChordNode[keys.length];
+        for (ChordNode node : holders) {
+            try {
+                boolean[] held = node.stub.hasFragments(keys);
+                for (int i = 0; i < keys.length; i++) if (held[i] && holderOf[i] == null) holderOf[i] = node;
+            } catch(IOException e) {} // An unreachable holder counts as holding nothing
+        }
+
+        long regenerated = 0;
+        for (int stripe = 0; stripe < descriptor.stripes(); stripe++) {
+            int first = stripe * shards;
+            List<Integer> missing = new ArrayList<>();
+            Set<ChordNode> used = new HashSet<>();
+            for (int i = 0; i < shards; i++) {
+                if (holderOf[first + i] == null) missing.add(i);
+                else used.add(holderOf[first + i]);
+            }
+            if (missing.isEmpty()) continue;
+
+            byte[][] fragments = new byte[shards][];
+            int found = 0;
+            for (int i = 0; i < shards && found < descriptor.k; i++) {
+                if (holderOf[first + i] == null) continue;
+                try {
+                    byte[] packed = holderOf[first + i].stub.getFragments(new long[] { keys[first + i] }, Compression.CODECS)[0];
+                    if (packed == null) continue;
+                    fragments[i] = Compression.unpack(packed);
+                    found++;
+                } catch(IOException e) {} // Another fragment may still make up for it
+            }
+            new ReedSolomon(descriptor.k, descriptor.m).reconstruct(fragments);
+
+            for (int i : missing) {
+                // Holders without a fragment of this stripe are tried first, then the others in order
+                List<ChordNode> targets = new ArrayList<>(holders);
+                targets.sort(Comparator.comparing(used::contains));
+                byte[] packed = Compression.pack(fragments[i], Compression.CODECS);
+                IOException failure = null;
+                for (ChordNode target : targets) {
+                    try {
+                        target.stub.putFragments(new long[] { keys[first + i] }, new byte[][] { packed });
+                        if (target.id != guid) metrics.sent(target.id, packed.length);
+                        used.add(target);
+                        regenerated++;
+                        failure = null;
+                        break;
+                    } catch(IOException e) {
+                        failure = e;
+                    }
+                }
+                if (failure != null) throw failure;
+            }
+        }
+        Erasure.regeneratedFragments.add(regenerated);
+        return regenerated;
+    }
+
+    /**
+     * Determines if two peers are virtual nodes of the same machine
+     * @param a a peer
+     * @param b another peer
+     * @return true if both are reached at the same address
+     */
+    private static boolean isSameMachine(ChordNode a, ChordNode b) {
+        return a.port == b.port && a.ip.equals(b.ip);
+    }
+
+    /**
+     * Sends a file this chord just stored to every replica target, all at once
+     * @param guidObject the global unique identifier of the file
+     * @param size the size of the file in bytes
+     * @param version the version of the file
+     */
+    private void replicate(long guidObject, long size, long version) {
+        List<ChordNode> targets = replicaTargets();
+        if (targets.isEmpty()) return;
+        try {
+            // Small files are pushed in one call, large ones are pulled by the replica in chunks
+            long checksum = index.checksum(guidObject);
+            byte[][] data = size <= FileTransfer.CHUNK_SIZE ? new byte[][] { Compression.pack(verified(guidObject, store.read(guidObject, 0, (int)size), checksum), Compression.CODECS) } : null;
+            FileStream handle = new FileStream(self, guidObject, size, version);
+            handle.setChecksum(checksum);
+            onReplicas(targets, node -> {
+                if (data == null) node.stub.putReplica(guidObject, handle);
+                else {
+                    node.stub.putReplicaBatch(new long[] { guidObject }, new long[] { version }, data);
+                    metrics.sent(node.id, data[0].length);
+                }
+            });
+        } catch(IOException e) {
+            System.out.printf("Failed to replicate %d -> %s\n", guidObject, e.getMessage());
+        }
+    }
+
+    /**
+     * Sends a batch of small files this chord just stored to every replica target, all at once
+     * @param guidObjects the global unique identifiers of the files
+     * @param versions the version of each file
+     * @param files the data of each file, packed by Compression
+     */
+    private void replicate(long[] guidObjects, long[] versions, byte[][] files) {
+        long bytes = 0;
+        for (byte[] file : files) bytes += file.length;
+        long batchBytes = bytes;
+        onReplicas(replicaTargets(), node -> {
+            node.stub.putReplicaBatch(guidObjects, versions, files);
+            metrics.sent(node.id, batchBytes);
+        });
+    }
+
+    /**
+     * An operation to run on a replica target
+     */
+    private interface ReplicaTask {
+        void run(ChordNode node) throws IOException;
+    }
+
+    /**
+     * Runs an operation on several replica targets in parallel and waits for all of them
+     * @param targets the peers to run the operation on
+     * @param task the operation, whose failures are reported but don't stop the others
+     */
+    private void onReplicas(List<ChordNode> targets, ReplicaTask task) {
+        List<Future<Void>> pending = new ArrayList<>();
+        for (ChordNode node : targets) {
+            pending.add(FileTransfer.executor.submit(() -> {
+                CallTimeout.bulk(() -> task.run(node));
+                return null;
+            }));
+        }
+        for (int i = 0; i < pending.size(); i++) {
+            try {
+                FileTransfer.await(pending.get(i));
+            } catch(IOException e) {
+                replicatedTo.remove(targets.get(i)); // Resend everything once the target is reachable again
+                System.out.printf("Failed to update the copy on %d -> %s\n", targets.get(i).id, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Removes a copy held for a predecessor, if this chord has one
+     * @param guidObject the global unique identifier of the file
+     * @throws IOException
+     */
+    private void dropReplica(long guidObject) throws IOException {
+        if (replicaIndex.remove(guidObject)) replicas.delete(guidObject);
+    }
+
+    /**
+     * Turns the copies of files that now fall in this chord's range into files it is responsible for,
+     * which happens when a predecessor fails before handing its files over
+     */
+    private void promoteReplicas() {
+        ChordNode p = predecessor;
+        if (p == null || replicaIndex.count() == 0) return;
+        long[] promoted = replicaIndex.keysInOpenInterval(p.id, guid);
+        for (long key : promoted) {
+            try {
+                long size = replicaIndex.size(key), transferId = beginTransfer(key, false, replicaIndex.version(key), replicaIndex.checksum(key));
+                for (long offset = 0; offset < size; offset += FileTransfer.CHUNK_SIZE)
+                    writeChunk(transferId, offset, replicas.read(key, offset, FileTransfer.CHUNK_SIZE));
+                commitTransfer(transferId);
+            } catch(IOException e) {
+                System.out.printf("Failed to take over %d -> %s\n", key, e.getMessage());
+            }
+        }
+        repairLater(promoted); // The failed predecessor held a fragment of each of its erasure-coded files
+    }
+
+    /**
+     * Makes sure a key is in the range (predecessor, this chord] that this chord is responsible for
+     * @param key the global unique identifier key
+     * @throws KeyNotOwnedException if the key belongs to another peer
+     */
+    private void checkOwner(long key) throws KeyNotOwnedException {
+        ChordNode p = predecessor;
+        if (p == null) return; // Without a predecessor this chord can't tell, so it accepts the key
+        if (p.id != guid && !isKeyInSemiCloseInterval(key, p.id, guid)) throw new KeyNotOwnedException(key, guid);
+    }
+
+    /**
+     * Looks up a transfer that is in progress
+     * @param transferId the identifier returned by openTransfer
+     * @return the transfer
+     * @throws IOException if there is no such transfer
+     */
+    private Transfer getTransfer(long transferId) throws IOException {
+        Transfer transfer = transfers.get(transferId);
+        if (transfer == null) throw new IOException(String.format("Transfer %d is not open", transferId));
+        return transfer;
     }
 
     /**
@@ -98,8 +1099,14 @@ public class Chord extends java.rmi.server.UnicastRemoteObject implements ChordM
      * @throws IOException
      */
     public void delete(long guidObject) throws IOException {
-        String filePath = String.format("%d/repository/%d", this.guid, guidObject);
-        Files.delete(Paths.get(filePath));
+        long start = System.nanoTime();
+        checkOwner(guidObject);
+        store.delete(guidObject);
+        storeCommits.await();
+        index.remove(guidObject);
+        dropPathCopies(guidObject);
+        onReplicas(replicaTargets(), node -> node.stub.deleteReplica(guidObject));
+        metrics.record(Metrics.Op.DELETE, start);
     }
 
     /**
@@ -122,10 +1129,10 @@ public class Chord extends java.rmi.server.UnicastRemoteObject implements ChordM
 
     /**
      * Accessor for the predecessor of this chord
-     * @return the Chord object representing the predecessor of this chord
+     * @return the descriptor of the predecessor of this chord
      * @throws RemoteException
      */
-    public ChordMessageInterface getPredecessor() throws RemoteException {
+    public ChordNode getPredecessor() throws RemoteException {
         return predecessor;
     }
 
@@ -135,30 +1142,144 @@ public class Chord extends java.rmi.server.UnicastRemoteObject implements ChordM
      * @return the successor of the object at the key
      * @throws RemoteException
      */
-    public ChordMessageInterface locateSuccessor(long key) throws RemoteException {
+    public ChordNode locateSuccessor(long key) throws RemoteException {
         if (key == this.guid)
             throw new IllegalArgumentException(String.format("Key %d is not distinct", guid));
-        if (successor.getId() != this.guid) {
-            if (isKeyInSemiCloseInterval(key, guid, successor.getId())) return successor;
+        long start = System.nanoTime();
+        try {
+            if (successor.id != this.guid) {
+                if (isKeyInSemiCloseInterval(key, guid, successor.id)) return successor;
 
-            ChordMessageInterface j = closestPrecedingNode(key);
-            if (j == null) return null;
-            return j.locateSuccessor(key);
+                while (true) {
+                    ChordNode j = closestPrecedingNode(key);
+                    if (j == null) return null;
+                    try {
+                        metrics.lookupsForwarded.increment();
+                        return j.stub.locateSuccessor(key);
+                    } catch(RemoteException e) {
+                        if (e instanceof ServerException || j.equals(successor)) throw e;
+                        removeFinger(j); // The finger couldn't be reached, so route around it
+                        maintenance.disturb();
+                    }
+                }
+            }
+            return successor;
+        } finally {
+            metrics.record(Metrics.Op.LOOKUP, start);
         }
-        return successor;
+    }
+
+    /**
+     * Gets the successors of many keys at once. Keys this chord can answer for are answered here,
+     * and the rest are split by the finger that is closest to them, with each finger receiving its
+     * keys in a single call, so a batch costs O(log N) messages per sub-batch rather than per key
+     * @param keys the global unique identifier keys
+     * @return the successor of each key, at the same position as the key
+     * @throws RemoteException if the lookup couldn't be routed
+     */
+    public ChordNode[] locateSuccessors(long[] keys) throws RemoteException {
+        ChordNode[] owners = new ChordNode[keys.length];
+        Map<ChordNode, List<Integer>> forwards = new HashMap<>();
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == guid) owners[i] = self;
+            else if (successor.id == guid || isKeyInSemiCloseInterval(keys[i], guid, successor.id)) owners[i] = successor;
+            else forwards.computeIfAbsent(closestPrecedingNode(keys[i]), j -> new ArrayList<>()).add(i);
+        }
+        if (forwards.isEmpty()) return owners;
+
+        // Every sub-batch is sent at the same time
+        Map<ChordNode, Future<ChordNode[]>> replies = new HashMap<>();
+        forwards.forEach((j, positions) -> {
+            long[] subKeys = positions.stream().mapToLong(i -> keys[i]).toArray();
+            replies.put(j, FileTransfer.executor.submit(() -> j.stub.locateSuccessors(subKeys)));
+        });
+
+        for (Map.Entry<ChordNode, List<Integer>> forward : forwards.entrySet()) {
+            ChordNode j = forward.getKey();
+            List<Integer> positions = forward.getValue();
+            ChordNode[] found;
+            try {
+                found = FileTransfer.await(replies.get(j));
+            } catch(RemoteException e) {
+                if (e instanceof ServerException || j.equals(successor)) throw e;
+                removeFinger(j); // The finger couldn't be reached, so route its keys around it
+                maintenance.disturb();
+                found = locateSuccessors(positions.stream().mapToLong(i -> keys[i]).toArray());
+            } catch(IOException e) {
+                throw new RemoteException(String.format("Lookup through %d failed", j.id), e);
+            }
+            for (int k = 0; k < positions.size(); k++) owners[positions.get(k)] = found[k];
+        }
+        return owners;
+    }
+
+    /**
+     * Counts the remote hops a lookup of a key takes from this chord
+     * @param key the global unique identifier key
+     * @return the number of peers the lookup is forwarded through before the successor is known
+     * @throws RemoteException
+     */
+    public int countHops(long key) throws RemoteException {
+        if (key == this.guid)
+            throw new IllegalArgumentException(String.format("Key %d is not distinct", guid));
+        if (successor.id != this.guid) {
+            if (isKeyInSemiCloseInterval(key, guid, successor.id)) return 0;
+
+            // Follows the same route as locateSuccessor, including around fingers that can't be reached
+            while (true) {
+                ChordNode j = closestPrecedingNode(key);
+                if (j == null) return 0;
+                try {
+                    return 1 + j.stub.countHops(key);
+                } catch(RemoteException e) {
+                    if (e instanceof ServerException || j.equals(successor)) throw e;
+                    removeFinger(j);
+                    maintenance.disturb();
+                }
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Counts the hops of one lookup in every Metrics.HOP_SAMPLE, by repeating it with countHops in the
+     * background so the lookup itself isn't slowed down
+     * @param key the global unique identifier key that was looked up
+     */
+    void sampleHops(long key) {
+        if (ThreadLocalRandom.current().nextInt(Metrics.HOP_SAMPLE) != 0) return;
+        FileTransfer.executor.execute(() -> {
+            try {
+                metrics.hops.record(countHops(key));
+            } catch(RemoteException | IllegalArgumentException e) {} // Only the lookups that succeed are sampled
+        });
     }
 
     /**
      * Gets the closest preceding node in the peer ring
      * @param key the global unique identifier key
-     * @return the closest link to the key
+     * @return the finger furthest along the ring that still precedes the key
      * @throws RemoteException
      */
-    public ChordMessageInterface closestPrecedingNode(long key) throws RemoteException {
-        // TODO: Implement more efficient algorithm
+    public ChordNode closestPrecedingNode(long key) throws RemoteException {
+        // Scan from the furthest finger so each hop at least halves the distance to the key, skipping
+        // fingers the failure detector suspects so lookups don't wait on them
+        for (int i = M - 1; i >= 0; i--) {
+            ChordNode f = finger[i];
+            if (f != null && isKeyInOpenInterval(f.id, guid, key) && !detector.isSuspected(f.id)) return f;
+        }
         return successor;
     }
 
+    /**
+     * Clears every finger that points at a peer
+     * @param node the peer to forget
+     */
+    private void removeFinger(ChordNode node) {
+        for (int i = 0; i < M; i++)
+            if (node.equals(finger[i])) finger[i] = null;
+    }
+
     /**
      * Joins a new peer to this chord's peer system ring
      * @param ip the ip address of the new peer
@@ -170,19 +1291,19 @@ public class Chord extends java.rmi.server.UnicastRemoteObject implements ChordM
             System.out.printf("Get Registry for %s:%d\n", ip, port);
 
             // Get the joining peer's chord object
-            Registry registry = LocateRegistry.getRegistry(ip, port);
-            ChordMessageInterface chord = (ChordMessageInterface)(registry.lookup("Chord"));
+            ChordMessageInterface chord = transport.connect(ip, port);
 
             predecessor = null;
-            successor = chord.locateSuccessor(this.getId()); // Make sure the chord is in the right place
+            successor = chord.locateSuccessor(this.guid); // Make sure the chord is in the right place
 
             // Make sure the correct peers are responsible for the correct files in the updated ring
             notify(successor, false);
+            maintenance.disturb();
 
             System.out.println("Joined new peer to your ring!");
-        }  catch(RemoteException | NotBoundException e) {
+        }  catch(RemoteException e) {
             System.out.printf("Can't connect %s:%d to your ring\n", ip, port);
-            successor = this;
+            successor = self;
         }
     }
 
@@ -190,10 +1311,26 @@ public class Chord extends java.rmi.server.UnicastRemoteObject implements ChordM
      * Update this chord's successor to be the correct finger
      */
     public void findingNextSuccessor() {
-        successor = this;
+        // The successor list skips straight past a failed successor, and past any peer already suspected
+        for (int i = 1; i < successorList.length; i++) {
+            ChordNode next = successorList[i];
+            try {
+                if (next != null && next.id != guid && !detector.isSuspected(next.id) && callWatched(next, next.stub::isAlive)) {
+                    successor = next;
+                    return;
+                }
+            } catch(RemoteException e) {}
+        }
+
+        successor = self;
         for (int i = 0; i < M; i++) {
+            ChordNode f = finger[i];
             try {
-                if (finger[i].isAlive()) successor = finger[i];
+                // The first live finger is the closest peer after this chord
+                if (!detector.isSuspected(f.id) && callWatched(f, f.stub::isAlive)) {
+                    successor = f;
+                    return;
+                }
             } catch(RemoteException | NullPointerException e) {
                 finger[i] = null;
             }
@@ -204,17 +1341,59 @@ public class Chord extends java.rmi.server.UnicastRemoteObject implements ChordM
      * Makes sure the peer system is correctly distributed
      */
     public void stabilize() {
+        long start = System.nanoTime();
         try {
+            // A successor that stopped answering heartbeats is replaced before anything waits on it
+            if (successor != null && successor.id != guid && detector.isSuspected(successor.id)) findingNextSuccessor();
             if (successor != null) {
-                ChordMessageInterface x = successor.getPredecessor();
+                ChordNode current = successor;
+                ChordNode x = callWatched(current, current.stub::getPredecessor);
 
-                if (x != null && x.getId() != this.getId() && isKeyInOpenInterval(x.getId(), this.getId(), successor.getId()))
+                if (x != null && x.id != guid && isKeyInOpenInterval(x.id, guid, current.id) && !detector.isSuspected(x.id))
                     successor = x;
-                if (successor.getId() != getId()) successor.notify(this, false);
+                ChordNode next = successor;
+                // Notify waits for the files handed over to next, but the failure detector still cuts it short
+                if (next.id != guid) callWatched(next, () -> {
+                    CallTimeout.bulk(() -> next.stub.notify(self, false));
+                    return null;
+                });
+                updateSuccessorList();
             }
         } catch(RemoteException | NullPointerException e) {
             findingNextSuccessor();
         }
+        metrics.record(Metrics.Op.STABILIZE, start);
+    }
+
+    /**
+     * Rebuilds the successor list from the successor's list, then sends every key to any
+     * replica target that doesn't have them yet, such as a peer that replaced a failed one
+     * @throws RemoteException if the successor can't be reached
+     */
+    private void updateSuccessorList() throws RemoteException {
+        List<ChordNode> list = new ArrayList<>();
+        if (successor.id != guid) {
+            list.add(successor);
+            ChordNode s = successor;
+            for (ChordNode node : callWatched(s, s.stub::getSuccessorList)) {
+                if (list.size() == SUCCESSORS || node.id == guid) break;
+                list.add(node);
+            }
+        }
+        successorList = list.toArray(new ChordNode[0]);
+
+        for (ChordNode target : replicaTargets()) {
+            if (!replicatedTo.add(target) || index.count() == 0) continue;
+            FileTransfer.executor.submit(() -> transferKeys(target, index.keys(), true));
+        }
+        replicatedTo.retainAll(replicaTargets());
+
+        // A holder that failed or was passed over leaves the stripes of every file short of a fragment
+        List<ChordNode> holders = fragmentSet(Erasure.K + Erasure.M);
+        if (Erasure.ENABLED && !holders.equals(fragmentHolders)) {
+            fragmentHolders = holders;
+            repairLater(index.keys());
+        }
     }
 
     /**
@@ -223,99 +1402,454 @@ public class Chord extends java.rmi.server.UnicastRemoteObject implements ChordM
      * @param killChord if j is leaving the peer-to-peer ring
      * @throws RemoteException
      */
-    public void notify(ChordMessageInterface j, boolean killChord) throws RemoteException {
-        if (predecessor == null || (predecessor != null && isKeyInOpenInterval(j.getId(), predecessor.getId(), guid)))
+    public void notify(ChordNode j, boolean killChord) throws RemoteException {
+        long start = System.nanoTime();
+        if (predecessor == null || (predecessor != null && isKeyInOpenInterval(j.id, predecessor.id, guid))) {
+            if (!j.equals(predecessor)) maintenance.disturb();
             predecessor = j;
+        }
+        promoteReplicas();
 
         // Transfer keys in the range [j,i) to j;
-        String path = String.format("%d/repository", this.guid);
-        File repo = new File(path);
-
-        File[] files = repo.listFiles();
-        for (File file : files) {
-            if (!file.getName().matches("[0-9]+")) continue; // Ignores system files like .DS_store, for example
-            long fileName = Long.parseLong(file.getName());
-            if (killChord || isKeyInOpenInterval(fileName, this.guid, j.getId())) {
+        long[] keys = killChord ? index.keys() : index.keysInOpenInterval(this.guid, j.id);
+        if (keys.length > 0) transferKeys(j, keys, false);
+        metrics.record(Metrics.Op.NOTIFY, start);
+    }
+
+    /**
+     * Sends files to another peer in batches, keeping several batches in flight at a bounded rate.
+     * When files are moved, each is only deleted here once the receiver has stored the batch that holds it.
+     * Transfers to different peers run side by side, so a paced copy to a new successor never holds up
+     * the keys a joining predecessor is waiting for in notify
+     * @param j the peer to transfer the files to
+     * @param keys the keys of the files in this chord's repository to send
+     * @param asReplicas true to send copies for j to hold, false to move the files to j
+     */
+    private void transferKeys(ChordNode j, long[] keys, boolean asReplicas) {
+        synchronized(migrationLocks.computeIfAbsent(j.id, id -> new Object())) {
+            transferKeysLocked(j, keys, asReplicas);
+        }
+    }
+
+    /**
+     * Sends files to another peer once no other transfer to it is running
+     * @param j the peer to transfer the files to
+     * @param keys the keys of the files in this chord's repository to send
+     * @param asReplicas true to send copies for j to hold, false to move the files to j
+     */
+    private void transferKeysLocked(ChordNode j, long[] keys, boolean asReplicas) {
+        Chord local = colocated.get(j.id);
+        if (local != null && !asReplicas) {
+            handOver(local, keys);
+            return;
+        }
+
+        Deque<Future<long[]>> inFlight = new ArrayDeque<>();
+        long start = System.nanoTime(), bytesSent = 0;
+        int moved = 0, failed = 0, submitted = 0;
+        metrics.migrationPendingKeys.add(keys.length);
+
+        int next = 0;
+        while (next < keys.length || !inFlight.isEmpty()) {
+            // Wait for the oldest batch once the window is full or nothing is left to send
+            if (next == keys.length || inFlight.size() == FileTransfer.BATCH_WINDOW) {
+                long[] stored;
                 try {
-                    FileStream newFile = new FileStream(String.format("%s/%d", path, fileName));
-                    j.put(fileName, newFile);
-                    file.delete();
+                    stored = FileTransfer.await(inFlight.removeFirst());
                 } catch(IOException e) {
-                    System.out.printf("Failed to transfer %d to %d -> %s\n", fileName, j.getId(), e.getMessage());
+                    failed++;
+                    System.out.printf("Failed to transfer a batch to %d -> %s\n", j.id, e.getMessage());
+                    continue;
                 }
+                for (long key : stored) {
+                    if (asReplicas) {
+                        moved++;
+                        continue;
+                    }
+                    // j already holds the file, so it leaves the index even if the local copy can't be removed
+                    try {
+                        store.delete(key);
+                    } catch(IOException e) {
+                        System.out.printf("Failed to remove %d after moving it to %d -> %s\n", key, j.id, e.getMessage());
+                    }
+                    if (index.remove(key)) moved++;
+                    dropPathCopies(key); // The new owner doesn't know who holds copies
+                }
+                continue;
+            }
+
+            // Fill the next batch with small files, or send one large file on its own
+            int first = next;
+            long batchBytes = 0;
+            while (next < keys.length && next - first < FileTransfer.BATCH_KEYS) {
+                long length = Math.max(0, index.size(keys[next]));
+                if (next > first && (length > FileTransfer.CHUNK_SIZE || batchBytes + length > FileTransfer.BATCH_BYTES)) break;
+                next++;
+                batchBytes += length;
+                if (length > FileTransfer.CHUNK_SIZE) break;
+            }
+            long[] batch = Arrays.copyOfRange(keys, first, next);
+
+            try {
+                FileTransfer.pace(start, bytesSent);
+            } catch(InterruptedIOException e) {
+                next = keys.length; // Stop sending and let the batches in flight finish
+                continue;
             }
+            bytesSent += batchBytes;
+            submitted += batch.length;
+            inFlight.addLast(FileTransfer.executor.submit(() -> sendBatch(j, batch, asReplicas)));
         }
+        metrics.migrationPendingKeys.add(submitted - keys.length); // Keys never sent because the transfer stopped
+        System.out.printf("%s %d files to %d in %d ms (%d batches failed)\n", asReplicas ? "Copied" : "Moved", moved, j.id, (System.nanoTime() - start) / 1000000, failed);
     }
 
     /**
-     * Ensures that finger table is correct to ensure system functions efficiently
+     * Moves files to another virtual node of this machine. They already are in the shared store, so
+     * only their index entries move, and the new owner copies them to its own replica targets
+     * @param local the virtual node taking the files over
+     * @param keys the keys of the files in this chord's repository to move
+     */
+    private void handOver(Chord local, long[] keys) {
+        List<Long> moved = new ArrayList<>();
+        for (long key : keys) {
+            long size = index.size(key), version = index.version(key);
+            if (size < 0) continue;
+            local.index.put(key, size, version, index.checksum(key));
+            index.remove(key);
+            dropPathCopies(key);
+            moved.add(key);
+            try {
+                local.dropReplica(key);
+            } catch(IOException e) {
+                System.out.printf("Failed to drop the copy of %d -> %s\n", key, e.getMessage());
+            }
+        }
+        metrics.migratedKeys.add(moved.size());
+
+        long[] handed = moved.stream().mapToLong(Long::longValue).toArray();
+        for (ChordNode target : local.replicaTargets())
+            FileTransfer.executor.submit(() -> local.transferKeys(target, handed, true));
+        local.repairLater(handed);
+        System.out.printf("Handed %d files over to %d on this machine\n", handed.length, local.guid);
+    }
+
+    /**
+     * Sends one batch of files to another peer
+     * @param j the peer to transfer the files to
+     * @param sent the keys of the files to send, either many small ones or a single large one
+     * @param asReplicas true to send copies for j to hold
+     * @return the keys the peer has stored, without those moved or deleted since the batch was filled
+     * @throws IOException if the peer didn't store the batch
      */
-    public void fixFingers() {
-        long id = guid;
+    private long[] sendBatch(ChordNode j, long[] sent, boolean asReplicas) throws IOException {
+        long[] batch = Arrays.stream(sent).filter(key -> index.size(key) >= 0).toArray();
         try {
-            long nextId;
-            if (nextFinger == 0) nextId = (this.getId() + (1 << nextFinger));
-            else nextId = finger[nextFinger - 1].getId();
+            long bytes = 0;
+            long[] stored = batch;
+            if (batch.length == 0) return batch;
+            if (batch.length == 1 && index.size(batch[0]) > FileTransfer.CHUNK_SIZE) {
+                // j pulls the chunks of a large file from this chord, so nothing but a small handle is sent
+                bytes = index.size(batch[0]);
+                FileStream handle = new FileStream(self, batch[0], bytes, index.version(batch[0]));
+                handle.setChecksum(index.checksum(batch[0]));
+                CallTimeout.bulk(() -> {
+                    if (asReplicas) j.stub.putReplica(batch[0], handle);
+                    else j.stub.put(batch[0], handle);
+                });
+            } else {
+                // A file damaged on disk stays here rather than holding up the rest of its batch
+                List<Long> kept = new ArrayList<>();
+                List<byte[]> data = new ArrayList<>();
+                for (long key : batch) {
+                    try {
+                        data.add(verified(key, store.read(key, 0, (int)index.size(key)), index.checksum(key)));
+                        kept.add(key);
+                        bytes += data.get(data.size() - 1).length;
+                    } catch(StreamCorruptedException e) {
+                        System.out.printf("Keeping %d instead of sending it to %d -> %s\n", key, j.id, e.getMessage());
+                        metrics.migrationFailedKeys.increment();
+                    }
+                }
+                long[] keys = kept.stream().mapToLong(Long::longValue).toArray();
+                long[] versions = Arrays.stream(keys).map(index::version).toArray();
+                byte[][] packed = Compression.packAll(data.toArray(new byte[0][]), Compression.CODECS);
+                if (keys.length > 0) CallTimeout.bulk(() -> {
+                    if (asReplicas) j.stub.putReplicaBatch(keys, versions, packed);
+                    else j.stub.putBatch(keys, versions, packed);
+                });
+                long packedBytes = 0;
+                for (byte[] file : packed) packedBytes += file.length;
+                metrics.sent(j.id, packedBytes);
+                stored = keys;
+            }
+            metrics.migratedKeys.add(stored.length);
+            metrics.migratedBytes.add(bytes);
+            return stored;
+        } catch(IOException e) {
+            metrics.migrationFailedKeys.add(batch.length);
+            throw e;
+        } finally {
+            metrics.migrationPendingKeys.add(-sent.length);
+        }
+    }
 
-            finger[nextFinger] = locateSuccessor(nextId);
+    /**
+     * Ensures that finger table is correct to ensure system functions efficiently.
+     * Finger i points at the successor of guid + 2^i, and FINGERS_PER_ROUND fingers are looked up in parallel per call
+     * @return true if any finger changed
+     */
+    public boolean fixFingers() {
+        int first = nextFinger;
+        nextFinger = (nextFinger + FINGERS_PER_ROUND) % M;
 
-            if (finger[nextFinger].getId() == guid) finger[nextFinger] = null;
-            else nextFinger = (nextFinger + 1) % M;
+        ChordNode[] reused = new ChordNode[FINGERS_PER_ROUND];
+        List<Future<ChordNode>> lookups = new ArrayList<>();
+        ChordNode next = successor;
+        for (int round = 0; round < FINGERS_PER_ROUND; round++) {
+            int i = (first + round) % M;
+            long start = guid + (1L << i); // Wraps around the 64-bit ring on overflow
+
+            // Low fingers are usually the successor, which stabilize keeps current, so they need no lookup.
+            // Other fingers aren't reused, since one that is out of date would be copied on to the next
+            if (next != null && next.id != guid && isKeyInSemiCloseInterval(start, guid, next.id)) reused[round] = next;
+            lookups.add(reused[round] != null ? null : FileTransfer.executor.submit(() -> locateSuccessor(start)));
         }
-        catch(RemoteException | NullPointerException e) {
-            finger[nextFinger] = null;
+
+        boolean changed = false;
+        for (int round = 0; round < FINGERS_PER_ROUND; round++) {
+            int i = (first + round) % M;
+            ChordNode found;
+            try {
+                found = reused[round] != null ? reused[round] : FileTransfer.await(lookups.get(round));
+            } catch(IOException e) {
+                found = null;
+            }
+            if (found != null && found.id == guid) found = null;
+            changed |= !Objects.equals(found, finger[i]);
+            finger[i] = found;
         }
+        return changed;
     }
 
     /**
      * Ensures that predecessor is correctly known to ensure system functions efficiently
+     * @return true if the predecessor was found to have left
      */
-    public void checkPredecessor() {
+    public boolean checkPredecessor() {
+        ChordNode p = predecessor;
+        if (p == null) return false;
         try {
-            if (predecessor != null && !predecessor.isAlive()) predecessor = null;
-        }
-        catch(RemoteException e) {
-            predecessor = null;
-            System.out.println("Predecessor left");
-            try {
-                if (successor.getId() == this.guid) System.out.println("You're all alone now...");
+            // A predecessor the failure detector suspects is dropped without waiting on it
+            if (!detector.isSuspected(p.id) && callWatched(p, p.stub::isAlive)) return false;
+        } catch(RemoteException e) {}
+        predecessor = null;
+        System.out.println("Predecessor left");
+        if (successor != null && successor.id == this.guid) System.out.println("You're all alone now...");
+        return true;
+    }
+
+    /**
+     * Calls a peer from a maintenance task, giving up as soon as the failure detector suspects the peer
+     * instead of waiting out the read timeout, so a peer that hangs can't hold the task up
+     * @param node the peer
+     * @param call the call to the peer
+     * @return the result of the call
+     * @throws RemoteException if the call failed or the peer became suspected while it was waited on
+     */
+    <T> T callWatched(ChordNode node, Callable<T> call) throws RemoteException {
+        Future<T> result = FileTransfer.executor.submit(call);
+        try {
+            while (true) {
+                try {
+                    return result.get(HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+                } catch(TimeoutException e) {
+                    if (!detector.isSuspected(node.id)) continue;
+                    result.cancel(true);
+                    throw new java.rmi.ConnectIOException(String.format("Gave up on %d, which is suspected to have failed", node.id));
+                }
             }
-            catch(NullPointerException | RemoteException e2) {}
+        } catch(ExecutionException e) {
+            if (e.getCause() instanceof RemoteException) throw (RemoteException)e.getCause();
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+            throw new RemoteException(String.format("Call to %d failed", node.id), e.getCause());
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Call interrupted", e);
         }
     }
 
     /**
-     * Constructor for the Chord class
+     * Pings the predecessor, the successor list and every finger, and feeds the answers to the failure
+     * detector. The pings run in the background, and a peer whose last ping is still unanswered isn't
+     * pinged again, so a peer that hangs holds up neither this task nor more than one thread
+     * @return true if a peer became suspected since the last round, so the other tasks route around it right away
+     */
+    public boolean heartbeat() {
+        Map<Long, ChordNode> watched = new HashMap<>();
+        ChordNode p = predecessor;
+        if (p != null) watched.put(p.id, p);
+        if (successor != null) watched.put(successor.id, successor);
+        for (ChordNode node : successorList) watched.put(node.id, node);
+        for (ChordNode f : finger)
+            if (f != null) watched.put(f.id, f);
+        watched.remove(guid);
+        detector.retain(watched.keySet());
+
+        for (ChordNode node : watched.values()) {
+            if (!pinging.add(node.id)) continue;
+            FileTransfer.executor.execute(() -> {
+                try {
+                    node.stub.isAlive();
+                    detector.heartbeat(node.id);
+                } catch(RemoteException e) {
+                    // No heartbeat is recorded, so phi keeps rising until the peer answers again
+                } finally {
+                    pinging.remove(node.id);
+                }
+            });
+        }
+
+        Set<Long> suspects = detector.suspects();
+        boolean changed = !suspected.containsAll(suspects);
+        for (long id : suspects)
+            if (!suspected.contains(id)) System.out.printf("Suspecting %d has failed (phi %.1f)\n", id, detector.phi(id));
+        suspected = suspects;
+        return changed;
+    }
+
+    /**
+     * Constructor for the Chord class, using the transport picked with -Dchord.transport
      * @param port the unique, un-hashed identifier of this class
      * @param guid the unique, hashed identifier of this class
      * @throws RemoteException
      */
     public Chord(int port, long guid) throws RemoteException {
-        finger = new ChordMessageInterface[M];
+        this(port, guid, Transport.fromProperties());
+    }
+
+    /**
+     * Constructor for the Chord class
+     * @param port the unique, un-hashed identifier of this class
+     * @param guid the unique, hashed identifier of this class
+     * @param transport carries calls between this chord and other peers
+     * @throws RemoteException if this chord can't be reached at the port
+     */
+    public Chord(int port, long guid, Transport transport) throws RemoteException {
+        this(port, guid, transport, null);
+    }
+
+    /**
+     * Constructor for the Chord class, for one of the virtual nodes of a machine
+     * @param port the port of the machine, shared by all of its virtual nodes
+     * @param guid the unique, hashed identifier of this class
+     * @param transport carries calls between this chord and other peers
+     * @param primary the first virtual node of the machine, whose store, cache and metrics are shared,
+     *                or null if this chord is the first
+     * @throws RemoteException if this chord can't be reached at the port
+     */
+    public Chord(int port, long guid, Transport transport, Chord primary) throws RemoteException {
+        this.transport = transport;
+        finger = new ChordNode[M];
         Stream.of(finger).forEach(f -> f = null); // Initialize all fingers to null
         this.guid = guid;
 
+        String ip;
+        try {
+            ip = InetAddress.getLocalHost().getHostAddress();
+        } catch(UnknownHostException e) {
+            ip = "127.0.0.1";
+        }
+        self = new ChordNode(guid, ip, port, this);
+
         predecessor = null;
-        successor = this;
-        Timer timer = new Timer();
-        timer.scheduleAtFixedRate(new TimerTask() {
-            @Override
-            public void run() {
-                stabilize();
-                fixFingers();
-                checkPredecessor();
-            }
-        }, 500, 500);
+        successor = self;
+        if (primary == null) {
+            repository = Paths.get(String.format("%d/repository", this.guid));
+            cache = ReadCache.fromProperties();
+            pathCache = PathCache.fromProperties();
+            nextTransferId = new AtomicLong();
+            metrics = new Metrics();
+            colocated = new ConcurrentHashMap<>();
+        } else {
+            // Every file starts out with the primary, which hands this chord its range when it joins
+            repository = primary.repository;
+            store = primary.store;
+            storeCommits = primary.storeCommits;
+            fragments = primary.fragments;
+            fragmentCommits = primary.fragmentCommits;
+            fragmentIndex = primary.fragmentIndex;
+            cache = primary.cache;
+            pathCache = primary.pathCache;
+            nextTransferId = primary.nextTransferId;
+            metrics = primary.metrics;
+            colocated = primary.colocated;
+        }
+        colocated.put(guid, this);
+        loadStore();
 
-        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            timer.cancel();
-            timer.purge();
-        }));
+        // Each task runs on its own schedule so a slow peer only delays the task that calls it
+        maintenance.schedule("stabilize", 100, 2000, () -> {
+            ChordNode before = successor;
+            ChordNode[] list = successorList;
+            stabilize();
+            return !Objects.equals(before, successor) || !Arrays.equals(list, successorList);
+        });
+        maintenance.schedule("fixFingers", 100, 4000, this::fixFingers);
+        maintenance.schedule("checkPredecessor", 250, 2000, this::checkPredecessor);
+        maintenance.schedule("heartbeat", HEARTBEAT_MILLIS, HEARTBEAT_MILLIS, this::heartbeat);
 
-        // Create the registry and bind the name and object.
-        System.out.printf("%d is starting RMI at port %d\n", guid, port);
-        registry = LocateRegistry.createRegistry(port);
-        registry.rebind("Chord", this);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> maintenance.shutdown()));
+
+        // Create the registry and bind the name and object, or start listening for NIO connections
+        System.out.printf("%d is starting %s at port %d\n", guid, transport.getClass().getSimpleName(), port);
+        try {
+            transport.export(this, port);
+        } catch(RemoteException e) {
+            throw e;
+        } catch(IOException e) {
+            throw new java.rmi.server.ExportException(String.format("Unable to listen at port %d", port), e);
+        }
+    }
+
+    /**
+     * Opens the storage engine, builds the key index from it and clears out partial transfers.
+     * The engine is picked with -Dchord.store=file (one file per key, the default) or -Dchord.store=segment,
+     * keeps the files compressed with -Dchord.store.compressed=true and forces writes to disk as -Dchord.durability asks.
+     * A virtual node that shares the store of its machine only opens its own replica store
+     */
+    private void loadStore() {
+        Path replicaRepository = Paths.get(String.format("%d/replicas", this.guid));
+        Path fragmentRepository = Paths.get(String.format("%d/fragments", this.guid));
+        boolean segments = "segment".equals(System.getProperty("chord.store"));
+        boolean shared = store != null;
+        if (!shared) {
+            File[] files = repository.toFile().listFiles();
+            if (files != null) {
+                for (File file : files)
+                    if (file.getName().matches(".*\\.part(\\.z)?")) file.delete(); // Left behind by a transfer that never finished
+            }
+            store = segments ? new SegmentStore(repository) : new FileStore(repository);
+            if (Compression.AT_REST) store = new CompressedStore(store);
+            fragments = segments ? new SegmentStore(fragmentRepository) : new FileStore(fragmentRepository);
+            if (Compression.AT_REST) fragments = new CompressedStore(fragments);
+            storeCommits = new GroupCommit(store);
+            fragmentCommits = new GroupCommit(fragments);
+        }
+        replicas = segments ? new SegmentStore(replicaRepository) : new FileStore(replicaRepository);
+        if (Compression.AT_REST) replicas = new CompressedStore(replicas);
+        replicaCommits = new GroupCommit(replicas);
+        try {
+            Files.createDirectories(replicaRepository);
+            if (!shared) {
+                Files.createDirectories(fragmentRepository);
+                store.load(index);
+                fragments.load(fragmentIndex);
+            }
+            replicas.load(replicaIndex);
+        } catch(IOException e) {
+            System.out.printf("Unable to load the repository in %s -> %s\n", repository, e.getMessage());
+        }
     }
 
     /**
@@ -323,12 +1857,10 @@ public class Chord extends java.rmi.server.UnicastRemoteObject implements ChordM
      */
     public void leave() {
         try {
-            if (this.successor != null && successor.getId() != this.guid)
+            if (this.successor != null && successor.id != this.guid)
                 notify(this.successor, true);
         } catch(RemoteException e) {
-            try {
-                System.out.printf("Failed to successfully notify %d of all the files you were responsible for -> %s\n", this.successor.getId(), e.getMessage());
-            } catch(RemoteException e2) {}
+            System.out.printf("Failed to successfully notify %d of all the files you were responsible for -> %s\n", this.successor.id, e.getMessage());
         }
     }
 
@@ -337,22 +1869,23 @@ public class Chord extends java.rmi.server.UnicastRemoteObject implements ChordM
      * Status info contains this chord's predecessor, successor, and it's finger table
      */
     public void print() {
-        try {
-            System.out.printf("\nSuccessor: %s\n", successor == null ? "none" : Long.toString(successor.getId()));
-            System.out.printf("Predecessor: %s\n", predecessor == null ? "none" : Long.toString(predecessor.getId()));
-            if (finger != null) {
-                System.out.println("--- Finger Table ---");
-                for (int i = 0; i < M; i++) {
-                    try {
-                        System.out.printf("Finger %d: %d\n", i, finger[i].getId());
-                    } catch(NullPointerException e) {
-                        System.out.printf("Finger %d: null\n", i);
-                    }
+        System.out.printf("\nSuccessor: %s\n", successor == null ? "none" : successor);
+        System.out.printf("Predecessor: %s\n", predecessor == null ? "none" : predecessor);
+        System.out.printf("Successor list: %s\n", Arrays.toString(successorList));
+        System.out.printf("Keys: %d (%d bytes), copies for predecessors: %d\n", index.count(), index.totalBytes(), replicaIndex.count());
+        System.out.printf("Read cache: %d bytes, path cache: %d copies of hot files (%d bytes)\n", cache.usedBytes(), pathCache.count(), pathCache.usedBytes());
+        System.out.print(maintenance.report());
+        System.out.printf("Failure detector: %s\n", detector.report());
+        if (finger != null) {
+            System.out.println("--- Finger Table ---");
+            for (int i = 0; i < M; i++) {
+                try {
+                    System.out.printf("Finger %d: %d\n", i, finger[i].id);
+                } catch(NullPointerException e) {
+                    System.out.printf("Finger %d: null\n", i);
                 }
             }
-            System.out.println();
-        } catch(RemoteException e) {
-            System.out.printf("Can't connect to port -> %s\n", e.getMessage());
         }
+        System.out.println();
     }
 }
\ No newline at end of file
@@ -0,0 +1,1038 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.rmi.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+/**
+ * Class reads and writes files in the ring on behalf of a user. Besides one file at a time, it
+ * loads and fetches many files at once: the owners of all the keys are found in batch lookups, the keys
+ * are grouped by owner and small files travel in batches, with at most MAX_IN_FLIGHT calls running
+ */
+public class ChordClient {
+    public static final int MAX_IN_FLIGHT = Math.max(1, Integer.getInteger("chord.client.inflight", 16)); // Lookups and transfers running at once
+    public static final int LOOKUP_BATCH = 1024; // Keys resolved by one call to locateSuccessors
+    public static final int MAX_HOT_HINTS = 4096; // Keys remembered as hot at once
+
+    private final Chord chord; // The chord lookups start from
+    private final LocationCache locations = new LocationCache(); // Owners of recently used keys
+    private final ReadCache files = ReadCache.fromProperties(); // Contents of recently read files
+    private final Map<Long, Long> hotUntil = new ConcurrentHashMap<>(); // Keys a holder called hot, until when in System.nanoTime
+
+    // Every asynchronous call runs here, so the size of the pool bounds the calls in flight
+    private final ExecutorService executor = Executors.newFixedThreadPool(MAX_IN_FLIGHT, runnable -> {
+        Thread thread = new Thread(runnable, "chord-client");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Chunks of deduplicated files and fragments travel here, so a file written or read from the pool above doesn't wait on it
+    private final ExecutorService chunkExecutor = Executors.newFixedThreadPool(MAX_IN_FLIGHT, runnable -> {
+        Thread thread = new Thread(runnable, "chord-chunks");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * An operation to run on the peer responsible for a file
+     */
+    interface PeerTask {
+        void run(ChordMessageInterface peer) throws IOException;
+    }
+
+    /**
+     * An operation run asynchronously by the client
+     */
+    private interface Task {
+        void run() throws IOException;
+    }
+
+    /**
+     * Constructor for the ChordClient class
+     * @param chord the chord lookups start from
+     */
+    public ChordClient(Chord chord) {
+        this.chord = chord;
+    }
+
+    /**
+     * Stores a local file in the ring, streaming it in chunks to the peer responsible for it. With
+     * -Dchord.erasure=k+m a file larger than Erasure.MIN_BYTES is stored as fragments and a descriptor, and
+     * with -Dchord.dedup=true one larger than Dedup.MIN_BYTES as content-defined chunks and a manifest
+     * @param guidObject the global unique identifier of the file
+     * @param path the local file
+     * @return false if no peer responsible for the key could be found
+     * @throws IOException if the file can't be read or stored
+     */
+    public boolean write(long guidObject, Path path) throws IOException {
+        long size = Files.size(path);
+        if (Erasure.ENABLED && size > Erasure.MIN_BYTES) return writeFragments(guidObject, path);
+        if (Dedup.ENABLED && size > Dedup.MIN_BYTES) return writeChunked(guidObject, path);
+        return onOwner(guidObject, peer -> {
+            try (InputStream file = new FileInputStream(path.toFile())) {
+                FileTransfer.upload(peer, guidObject, file);
+            }
+        });
+    }
+
+    /**
+     * Fetches a file from the ring into a local file. A small file its holders called hot when it was last read
+     * is asked for along the lookup route, so a chord holding a copy answers instead of its owner. Any other file
+     * is downloaded from whichever of its copies answers first
+     * @param guidObject the global unique identifier of the file
+     * @param path where the file is saved
+     * @return false if no peer responsible for the key could be found
+     * @throws IOException if the file doesn't exist or can't be saved
+     */
+    public boolean read(long guidObject, Path path) throws IOException {
+        PathCache.Copy copy = files.version(guidObject, 0) == 0 && isHinted(guidObject) ? readOnRoute(guidObject) : null;
+        if (copy != null && KeyIndex.kind(copy.version) == KeyIndex.MANIFEST) {
+            readChunked(Dedup.Manifest.decode(copy.data), path);
+            return true;
+        }
+        // The holders of the fragments of a file are only known to its owner
+        if (copy != null && KeyIndex.kind(copy.version) == KeyIndex.PLAIN) {
+            Files.write(path, copy.data);
+            if (copy.version != 0 && files.accepts(copy.data.length)) files.put(guidObject, 0, copy.version, copy.data);
+            return true;
+        }
+
+        byte[][] manifest = new byte[1][];
+        Erasure.Descriptor[] descriptor = new Erasure.Descriptor[1];
+        ChordNode[][] holders = new ChordNode[1][];
+        boolean found = onOwner(guidObject, peer -> {
+            // A file read before only needs its version checked with the owner
+            byte[] cached = files.version(guidObject, 0) == 0 ? null : files.get(guidObject, 0, peer.getVersion(guidObject));
+            if (cached != null) {
+                Files.write(path, cached);
+                return;
+            }
+
+            // Write the file from the first of its copies to answer to the local file as its chunks arrive
+            InputStream fileStream = FileTransfer.openFastest(peer, guidObject);
+            FileStream handle = fileStream instanceof FileStream ? (FileStream)fileStream : null;
+            if (handle != null) hint(guidObject, handle.isHot());
+
+            // A file written as chunks or fragments is assembled once its manifest or descriptor is fetched
+            int kind = handle == null ? KeyIndex.PLAIN : KeyIndex.kind(handle.getVersion());
+            if (kind != KeyIndex.PLAIN) {
+                ByteArrayOutputStream data = new ByteArrayOutputStream();
+                FileTransfer.copy(fileStream, data);
+                if (kind == KeyIndex.MANIFEST) {
+                    manifest[0] = data.toByteArray();
+                    return;
+                }
+                descriptor[0] = Erasure.Descriptor.decode(data.toByteArray());
+                holders[0] = peer.getFragmentSet(guidObject, descriptor[0].k + descriptor[0].m);
+                return;
+            }
+            if (handle != null && handle.getVersion() != 0 && files.accepts(handle.getSize())) {
+                ByteArrayOutputStream data = new ByteArrayOutputStream((int)handle.getSize());
+                FileTransfer.copy(fileStream, data);
+                Files.write(path, data.toByteArray());
+                files.put(guidObject, 0, handle.getVersion(), data.toByteArray());
+                return;
+            }
+            if (handle != null && handle.getVersion() != 0) {
+                download(handle, path);
+                return;
+            }
+            try (OutputStream writeStream = new FileOutputStream(path.toFile())) {
+                FileTransfer.copy(fileStream, writeStream);
+            }
+        });
+        if (manifest[0] != null) readChunked(Dedup.Manifest.decode(manifest[0]), path);
+        if (descriptor[0] != null) readFragments(descriptor[0], holders[0], path);
+        return found;
+    }
+
+    /**
+     * Asks for a small file along the lookup route
+     * @param guidObject the global unique identifier of the file
+     * @return the copy, or null if the file is too large to travel this way or the route failed
+     * @throws IOException if the file doesn't exist
+     */
+    private PathCache.Copy readOnRoute(long guidObject) throws IOException {
+        PathCache.routedReads.increment();
+        byte[] encoded;
+        try {
+            encoded = chord.getOnRoute(guidObject, Compression.CODECS);
+        } catch(FileNotFoundException | NoSuchFileException e) {
+            hotUntil.remove(guidObject);
+            throw e;
+        } catch(IOException e) {
+            // A chord on the route failed or lost the key, so the owner is asked directly
+            PathCache.routeFailures.increment();
+            System.out.printf("Failed to read %d along its lookup route, asking its owner -> %s\n", guidObject, e.getMessage());
+            return null;
+        }
+        if (encoded == null) hotUntil.remove(guidObject); // Grew too large, so its copies are raced from now on
+        return encoded == null ? null : PathCache.Copy.decode(encoded);
+    }
+
+    /**
+     * Checks whether a holder of a file called it hot recently
+     * @param guidObject the global unique identifier of the file
+     * @return true if the hint hasn't run out yet
+     */
+    private boolean isHinted(long guidObject) {
+        Long until = hotUntil.get(guidObject);
+        if (until == null) return false;
+        if (until - System.nanoTime() > 0) return true;
+        hotUntil.remove(guidObject, until);
+        return false;
+    }
+
+    /**
+     * Remembers whether the holder a file was just read from called it hot. A hint lasts as long as a copy
+     * along the route does, and at most MAX_HOT_HINTS keys are hinted at once
+     * @param guidObject the global unique identifier of the file
+     * @param hot true if the holder called the file hot
+     */
+    private void hint(long guidObject, boolean hot) {
+        if (!hot) {
+            hotUntil.remove(guidObject);
+            return;
+        }
+        long now = System.nanoTime();
+        if (hotUntil.size() >= MAX_HOT_HINTS) hotUntil.values().removeIf(until -> until - now <= 0);
+        if (hotUntil.size() < MAX_HOT_HINTS) hotUntil.put(guidObject, now + PathCache.TTL_MILLIS * 1000000);
+    }
+
+    /**
+     * Fetches part of a file from the ring into a local file
+     * @param guidObject the global unique identifier of the file
+     * @param offset where the part starts
+     * @param length the length of the part, which is cut short at the end of the file
+     * @param path where the part is saved
+     * @return false if no peer responsible for the key could be found
+     * @throws IOException if the file doesn't exist, the offset is past its end or the part can't be saved
+     */
+    public boolean read(long guidObject, long offset, long length, Path path) throws IOException {
+        return onOwner(guidObject, peer -> {
+            try (InputStream range = peer.get(guidObject, offset, length); OutputStream writeStream = new FileOutputStream(path.toFile())) {
+                FileTransfer.copy(range, writeStream);
+            }
+        });
+    }
+
+    /**
+     * Saves a file through a part file, so a download that is cut off continues from its last verified
+     * chunk the next time the same version of the file is read. Beside the part file, a checksum file
+     * holds the version being downloaded followed by the CRC32 of every chunk written so far
+     * @param stream the file, read from its start
+     * @param path where the file is saved once it is complete
+     * @throws IOException if the file can't be fetched or saved
+     */
+    static void download(FileStream stream, Path path) throws IOException {
+        Path part = path.resolveSibling(path.getFileName() + ".part");
+        Path checksums = path.resolveSibling(path.getFileName() + ".part.crc");
+        int verified = verifiedChunks(part, checksums, stream.getVersion());
+        long position = (long)verified * FileTransfer.CHUNK_SIZE;
+
+        try (FileChannel output = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileChannel crcs = FileChannel.open(checksums, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            // Anything past the verified chunks is thrown away, along with its checksums
+            output.truncate(position);
+            output.position(position);
+            crcs.truncate(verified == 0 ? 0 : 8 + 4L * verified);
+            crcs.position(crcs.size());
+            if (verified == 0) write(crcs, ByteBuffer.allocate(8).putLong(0, stream.getVersion()));
+            else System.out.printf("Resuming %d at byte %d of %d\n", stream.getGuidObject(), position, stream.getSize());
+
+            stream.skip(position);
+            byte[] chunk;
+            while ((chunk = FileTransfer.readChunk(stream)) != null) {
+                write(output, ByteBuffer.wrap(chunk));
+                CRC32 crc = new CRC32();
+                crc.update(chunk);
+                write(crcs, ByteBuffer.allocate(4).putInt(0, (int)crc.getValue()));
+            }
+        }
+        Files.move(part, path, StandardCopyOption.REPLACE_EXISTING);
+        Files.delete(checksums);
+    }
+
+    /**
+     * Counts the chunks at the start of a part file that match their checksums
+     * @param part the part file
+     * @param checksums the checksum file beside it
+     * @param version the version of the file being downloaded
+     * @return the number of chunks that can be kept, 0 if the part file is missing or of another version
+     */
+    private static int verifiedChunks(Path part, Path checksums, long version) {
+        try (DataInputStream crcs = new DataInputStream(new BufferedInputStream(Files.newInputStream(checksums)));
+             FileChannel input = FileChannel.open(part, StandardOpenOption.READ)) {
+            if (crcs.readLong() != version) return 0;
+            ByteBuffer buffer = ByteBuffer.allocate(FileTransfer.CHUNK_SIZE);
+            for (int verified = 0; ; verified++) {
+                if (crcs.available() < 4) return verified;
+                int expected = crcs.readInt();
+                buffer.clear();
+                long offset = (long)verified * FileTransfer.CHUNK_SIZE;
+                while (buffer.hasRemaining() && input.read(buffer, offset + buffer.position()) != -1);
+                if (buffer.hasRemaining()) return verified; // Only whole chunks are kept
+
+                CRC32 crc = new CRC32();
+                crc.update(buffer.array(), 0, buffer.position());
+                if ((int)crc.getValue() != expected) return verified;
+            }
+        } catch(IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Writes a whole buffer to a channel
+     * @param output the channel
+     * @param buffer the buffer
+     * @throws IOException
+     */
+    private static void write(FileChannel output, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) output.write(buffer);
+    }
+
+    /**
+     * Stores a local file as content-defined chunks, each under the key of its content, then stores the
+     * manifest listing them under the file's key. Chunks are sent a window at a time, and the chunks
+     * their owners already hold are skipped
+     * @param guidObject the global unique identifier of the file
+     * @param path the local file
+     * @return false if no peer responsible for the key could be found
+     * @throws IOException if the file can't be read or a chunk can't be stored
+     */
+    private boolean writeChunked(long guidObject, Path path) throws IOException {
+        Dedup.Manifest manifest = new Dedup.Manifest();
+        try (InputStream file = new FileInputStream(path.toFile())) {
+            Dedup.Chunker chunker = new Dedup.Chunker(file);
+            Map<Long, byte[]> window = new LinkedHashMap<>(); // Chunks repeated within the window are sent once
+            long windowBytes = 0;
+            byte[] chunk;
+            while ((chunk = chunker.next()) != null) {
+                long key = Dedup.key(chunk);
+                manifest.add(key, chunk.length);
+                if (window.put(key, chunk) == null) windowBytes += chunk.length;
+                if (windowBytes >= Dedup.WINDOW_BYTES) {
+                    storeChunks(window);
+                    window.clear();
+                    windowBytes = 0;
+                }
+            }
+            storeChunks(window);
+        }
+
+        byte[] data = manifest.encode();
+        return onOwner(guidObject, peer -> FileTransfer.upload(peer, guidObject, new ByteArrayInputStream(data), KeyIndex.MANIFEST));
+    }
+
+    /**
+     * Stores chunks with their owners in batches, asking each owner which chunks it already holds first
+     * @param chunks the chunks by key
+     * @throws IOException if any chunk couldn't be stored
+     */
+    private void storeChunks(Map<Long, byte[]> chunks) throws IOException {
+        // A batch that fails outright is recorded under its first key, since any failure fails the file
+        Map<Long, IOException> failures = new ConcurrentHashMap<>();
+        Map<ChordNode, List<Long>> groups = groupByOwner(chunks.keySet(), failures, chunkExecutor).join();
+        List<CompletableFuture<Void>> sends = new ArrayList<>();
+        groups.forEach((owner, keys) -> {
+            List<Long> batch = new ArrayList<>();
+            long batchBytes = 0;
+            for (long key : keys) {
+                int size = chunks.get(key).length;
+                if (batch.size() == FileTransfer.BATCH_KEYS || batchBytes + size > FileTransfer.BATCH_BYTES) {
+                    List<Long> full = batch;
+                    sends.add(CompletableFuture.runAsync(() -> runNow(full, failures, () -> storeChunkBatch(owner, full, chunks, failures)), chunkExecutor));
+                    batch = new ArrayList<>();
+                    batchBytes = 0;
+                }
+                batch.add(key);
+                batchBytes += size;
+            }
+            List<Long> last = batch;
+            if (!last.isEmpty()) sends.add(CompletableFuture.runAsync(() -> runNow(last, failures, () -> storeChunkBatch(owner, last, chunks, failures)), chunkExecutor));
+        });
+        CompletableFuture.allOf(sends.toArray(new CompletableFuture<?>[0])).join();
+        if (!failures.isEmpty()) throw failures.values().iterator().next();
+    }
+
+    /**
+     * Sends the chunks of a batch that their owner doesn't hold yet, falling back to one chunk at a time
+     * if the owner is no longer responsible for all of them
+     * @param owner the peer responsible for the chunks
+     * @param batch the keys of the chunks
+     * @param chunks the chunks by key
+     * @param failures where failures are recorded
+     * @throws IOException
+     */
+    private void storeChunkBatch(ChordNode owner, List<Long> batch, Map<Long, byte[]> chunks, Map<Long, IOException> failures) throws IOException {
+        long[] keys = batch.stream().mapToLong(Long::longValue).toArray();
+        try {
+            boolean[] held = owner.stub.hasFiles(keys);
+            List<Long> missing = new ArrayList<>();
+            for (int i = 0; i < keys.length; i++) {
+                if (!held[i]) missing.add(keys[i]);
+                else {
+                    Dedup.skippedChunks.increment();
+                    Dedup.skippedBytes.add(chunks.get(keys[i]).length);
+                }
+            }
+            if (missing.isEmpty()) return;
+            long[] sent = missing.stream().mapToLong(Long::longValue).toArray();
+            byte[][] data = new byte[sent.length][];
+            for (int i = 0; i < sent.length; i++) data[i] = chunks.get(sent[i]);
+            CallTimeout.bulk(() -> owner.stub.putFiles(sent, Compression.packAll(data, Compression.CODECS)));
+            for (byte[] chunk : data) {
+                Dedup.storedChunks.increment();
+                Dedup.storedBytes.add(chunk.length);
+            }
+        } catch(KeyNotOwnedException | RemoteException e) {
+            locations.invalidate(owner); // The ring changed since the owners were found
+            for (long key : keys) runNow(key, failures, () -> {
+                byte[] chunk = chunks.get(key);
+                boolean stored = onOwner(key, peer -> {
+                    if (peer.hasFiles(new long[] {key})[0]) return;
+                    CallTimeout.bulk(() -> peer.putFiles(new long[] {key}, new byte[][] {Compression.pack(chunk, Compression.CODECS)}));
+                });
+                if (!stored) throw new IOException(String.format("No peer is responsible for %d", key));
+            });
+        }
+    }
+
+    /**
+     * Fetches the chunks of a file listed in its manifest into a local file, a window at a time with the
+     * chunks of each window fetched in parallel from their owners
+     * @param manifest the manifest of the file
+     * @param path where the file is saved
+     * @throws IOException if a chunk is missing or corrupt, or the file can't be saved
+     */
+    private void readChunked(Dedup.Manifest manifest, Path path) throws IOException {
+        try (OutputStream writeStream = new BufferedOutputStream(new FileOutputStream(path.toFile()), FileTransfer.CHUNK_SIZE)) {
+            int from = 0;
+            while (from < manifest.keys.size()) {
+                int to = from;
+                long windowBytes = 0;
+                while (to < manifest.keys.size() && (to == from || windowBytes + manifest.lengths.get(to) <= Dedup.WINDOW_BYTES))
+                    windowBytes += manifest.lengths.get(to++);
+
+                Map<Long, byte[]> chunks = fetchChunks(new LinkedHashSet<>(manifest.keys.subList(from, to)));
+                for (int i = from; i < to; i++) {
+                    byte[] chunk = chunks.get(manifest.keys.get(i));
+                    if (chunk.length != manifest.lengths.get(i))
+                        throw new StreamCorruptedException(String.format("Chunk %d is %d bytes instead of %d", manifest.keys.get(i), chunk.length, manifest.lengths.get(i)));
+                    writeStream.write(chunk);
+                }
+                from = to;
+            }
+        }
+    }
+
+    /**
+     * Fetches chunks from their owners, in batches that run in parallel, and checks each chunk against
+     * the key made from its content
+     * @param keys the keys of the chunks
+     * @return the chunks by key
+     * @throws IOException if any chunk is missing or corrupt
+     */
+    private Map<Long, byte[]> fetchChunks(Collection<Long> keys) throws IOException {
+        Map<Long, IOException> failures = new ConcurrentHashMap<>();
+        Map<Long, byte[]> chunks = new ConcurrentHashMap<>();
+        Map<ChordNode, List<Long>> groups = groupByOwner(keys, failures, chunkExecutor).join();
+        List<CompletableFuture<Void>> fetches = new ArrayList<>();
+        groups.forEach((owner, owned) -> {
+            for (int from = 0; from < owned.size(); from += FileTransfer.BATCH_KEYS) {
+                List<Long> batch = owned.subList(from, Math.min(owned.size(), from + FileTransfer.BATCH_KEYS));
+                fetches.add(CompletableFuture.runAsync(() -> runNow(batch, failures, () -> fetchChunkBatch(owner, batch, chunks, failures)), chunkExecutor));
+            }
+        });
+        CompletableFuture.allOf(fetches.toArray(new CompletableFuture<?>[0])).join();
+        if (!failures.isEmpty()) throw failures.values().iterator().next();
+        for (Map.Entry<Long, byte[]> chunk : chunks.entrySet())
+            if (Dedup.key(chunk.getValue()) != chunk.getKey()) throw new StreamCorruptedException(String.format("Chunk %d doesn't match its key", chunk.getKey()));
+        return chunks;
+    }
+
+    /**
+     * Fetches a batch of chunks from their owner in as few calls as possible, then fetches the chunks
+     * the owner left out, and every chunk still missing if a call fails, one at a time
+     * @param owner the peer responsible for the chunks
+     * @param batch the keys of the chunks
+     * @param chunks where the chunks are put
+     * @param failures where failures are recorded
+     * @throws IOException
+     */
+    private void fetchChunkBatch(ChordNode owner, List<Long> batch, Map<Long, byte[]> chunks, Map<Long, IOException> failures) throws IOException {
+        List<Long> remaining = new ArrayList<>(batch);
+        try {
+            boolean progress = true;
+            while (progress && !remaining.isEmpty()) {
+                long[] keys = remaining.stream().mapToLong(Long::longValue).toArray();
+                byte[][] data = Compression.unpackAll(CallTimeout.bulk(() -> owner.stub.getFiles(keys, Compression.CODECS)));
+                progress = false;
+                remaining.clear();
+                for (int i = 0; i < keys.length; i++) {
+                    if (data[i] == null) remaining.add(keys[i]);
+                    else {
+                        chunks.put(keys[i], data[i]);
+                        progress = true;
+                    }
+                }
+            }
+        } catch(KeyNotOwnedException | RemoteException e) {
+            locations.invalidate(owner); // The ring changed since the owners were found
+        } catch(IOException e) {
+            System.out.printf("Failed to fetch a batch of %d chunks from %d, fetching them one at a time -> %s\n", remaining.size(), owner.id, e.getMessage());
+        }
+
+        // Missing chunks, and every chunk if the owner changed or the batch failed
+        for (long key : remaining) runNow(key, failures, () -> {
+            boolean found = onOwner(key, peer -> {
+                ByteArrayOutputStream data = new ByteArrayOutputStream();
+                FileTransfer.copy(FileTransfer.openFastest(peer, key), data);
+                chunks.put(key, data.toByteArray());
+            });
+            if (!found) throw new IOException(String.format("No peer is responsible for %d", key));
+        });
+    }
+
+    /**
+     * Stores a local file as Reed-Solomon fragments, a window of stripes at a time, sending the fragments
+     * of each window to all of their holders in parallel. The descriptor naming the fragments is stored
+     * under the file's key last, so readers never see fragments that aren't all there, and the fragments
+     * of the write it replaces are removed after it
+     * @param guidObject the global unique identifier of the file
+     * @param path the local file
+     * @return false if no peer responsible for the key could be found
+     * @throws IOException if the file can't be read or a fragment can't be stored
+     */
+    private boolean writeFragments(long guidObject, Path path) throws IOException {
+        Erasure.Descriptor descriptor = Erasure.Descriptor.create(Files.size(path));
+        int shards = descriptor.k + descriptor.m;
+        ChordNode[][] holders = new ChordNode[1][];
+        Erasure.Descriptor[] previous = new Erasure.Descriptor[1];
+        boolean found = onOwner(guidObject, peer -> {
+            holders[0] = peer.getFragmentSet(guidObject, shards);
+            previous[0] = readDescriptor(peer, guidObject);
+        });
+        if (!found) return false;
+
+        try (FileChannel input = FileChannel.open(path, StandardOpenOption.READ)) {
+            for (int from = 0; from < descriptor.stripes(); from += Erasure.STRIPE_WINDOW) {
+                int to = Math.min(descriptor.stripes(), from + Erasure.STRIPE_WINDOW);
+                byte[][] stripes = new byte[to - from][];
+                for (int stripe = from; stripe < to; stripe++) {
+                    long offset = stripe * descriptor.stripeBytes();
+                    ByteBuffer buffer = ByteBuffer.allocate((int)Math.min(descriptor.stripeBytes(), descriptor.size - offset));
+                    while (buffer.hasRemaining() && input.read(buffer, offset + buffer.position()) != -1);
+                    stripes[stripe - from] = buffer.array();
+                }
+
+                byte[][] fragments = new byte[stripes.length * shards][];
+                IntStream.range(0, stripes.length).parallel().forEach(i ->
+                    System.arraycopy(Erasure.encode(descriptor, stripes[i]), 0, fragments, i * shards, shards));
+                putFragments(holders[0], descriptor.keys(from, to), fragments, shards);
+            }
+        }
+
+        byte[] data = descriptor.encode();
+        found = onOwner(guidObject, peer -> FileTransfer.upload(peer, guidObject, new ByteArrayInputStream(data), KeyIndex.DESCRIPTOR));
+        if (previous[0] != null) deleteFragments(holders[0], previous[0]);
+        return found;
+    }
+
+    /**
+     * Sends fragments to their holders, fragment i of each stripe to the i-th holder, with one call per
+     * holder and every call running at once
+     * @param holders the peers that hold the fragments of the file
+     * @param keys the key of each fragment
+     * @param fragments the fragments, stripe by stripe
+     * @param shards the number of fragments in a stripe
+     * @throws IOException if any holder didn't store its fragments
+     */
+    private void putFragments(ChordNode[] holders, long[] keys, byte[][] fragments, int shards) throws IOException {
+        Map<ChordNode, List<Integer>> assigned = new LinkedHashMap<>();
+        for (int i = 0; i < keys.length; i++) assigned.computeIfAbsent(holders[i % shards % holders.length], node -> new ArrayList<>()).add(i);
+
+        Map<Long, IOException> failures = new ConcurrentHashMap<>();
+        List<CompletableFuture<Void>> sends = new ArrayList<>();
+        assigned.forEach((holder, indexes) -> sends.add(CompletableFuture.runAsync(() -> runNow(holder.id, failures, () -> {
+            long[] batch = new long[indexes.size()];
+            byte[][] data = new byte[indexes.size()][];
+            for (int i = 0; i < batch.length; i++) {
+                batch[i] = keys[indexes.get(i)];
+                data[i] = fragments[indexes.get(i)];
+            }
+            CallTimeout.bulk(() -> holder.stub.putFragments(batch, Compression.packAll(data, Compression.CODECS)));
+        }), chunkExecutor)));
+        CompletableFuture.allOf(sends.toArray(new CompletableFuture<?>[0])).join();
+        if (!failures.isEmpty()) throw failures.values().iterator().next();
+    }
+
+    /**
+     * Fetches a file stored as fragments into a local file, a window of stripes at a time
+     * @param descriptor the descriptor of the file
+     * @param holders the peers that hold the fragments of the file
+     * @param path where the file is saved
+     * @throws IOException if a stripe has fewer than k fragments left, or the file can't be saved
+     */
+    private void readFragments(Erasure.Descriptor descriptor, ChordNode[] holders, Path path) throws IOException {
+        int shards = descriptor.k + descriptor.m;
+        try (OutputStream writeStream = new BufferedOutputStream(new FileOutputStream(path.toFile()), FileTransfer.CHUNK_SIZE)) {
+            for (int from = 0; from < descriptor.stripes(); from += Erasure.STRIPE_WINDOW) {
+                int to = Math.min(descriptor.stripes(), from + Erasure.STRIPE_WINDOW);
+                byte[][] fragments = fetchFragments(descriptor, holders, from, to);
+                for (int stripe = from; stripe < to; stripe++)
+                    writeStream.write(Erasure.decode(descriptor, stripe, Arrays.copyOfRange(fragments, (stripe - from) * shards, (stripe - from + 1) * shards)));
+            }
+        }
+    }
+
+    /**
+     * Asks every holder for the fragments of a window of stripes at once and keeps the first k fragments
+     * of each stripe to arrive, so a slow or failed holder doesn't hold up the read. Every holder is asked
+     * for every fragment, since fragments regenerated after the ring changed may be on any of them
+     * @param descriptor the descriptor of the file
+     * @param holders the peers that hold the fragments of the file
+     * @param from the first stripe
+     * @param to the stripe after the last one
+     * @return k fragments of each stripe, stripe by stripe, with null for the others
+     * @throws IOException if a stripe has fewer than k fragments left
+     */
+    private byte[][] fetchFragments(Erasure.Descriptor descriptor, ChordNode[] holders, int from, int to) throws IOException {
+        int shards = descriptor.k + descriptor.m;
+        long[] keys = descriptor.keys(from, to);
+        byte[][] fragments = new byte[keys.length][];
+        int[] found = new int[to - from];
+        int complete = 0; // Stripes with k fragments
+
+        CompletionService<byte[][]> race = new ExecutorCompletionService<>(chunkExecutor);
+        List<Future<byte[][]>> requests = new ArrayList<>();
+        for (ChordNode holder : holders) requests.add(race.submit(() -> Compression.unpackAll(CallTimeout.bulk(() -> holder.stub.getFragments(keys, Compression.CODECS)))));
+        try {
+            for (int i = 0; i < requests.size() && complete < found.length; i++) {
+                byte[][] received;
+                try {
+                    received = FileTransfer.await(race.take());
+                } catch(IOException e) {
+                    continue; // The other holders may still have enough
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Read interrupted");
+                }
+                for (int j = 0; j < keys.length; j++) {
+                    int stripe = j / shards;
+                    if (received[j] == null || fragments[j] != null || found[stripe] == descriptor.k) continue;
+                    fragments[j] = received[j];
+                    if (++found[stripe] == descriptor.k) complete++;
+                }
+            }
+        } finally {
+            requests.forEach(f -> f.cancel(true));
+        }
+
+        for (int stripe = 0; stripe < found.length; stripe++)
+            if (found[stripe] < descriptor.k)
+                throw new IOException(String.format("Only %d of the %d fragments needed for stripe %d are left", found[stripe], descriptor.k, from + stripe));
+        return fragments;
+    }
+
+    /**
+     * Removes the fragments of a write of a file from their holders. Fragments left on a holder that
+     * can't be reached, or on a peer that stopped being a holder when the ring changed, only take up space
+     * @param holders the peers that hold the fragments of the file
+     * @param descriptor the descriptor of the write
+     */
+    private static void deleteFragments(ChordNode[] holders, Erasure.Descriptor descriptor) {
+        long[] keys = descriptor.keys(0, descriptor.stripes());
+        for (ChordNode holder : holders) {
+            try {
+                holder.stub.deleteFragments(keys);
+            } catch(IOException e) {
+                System.out.printf("Failed to delete fragments on %d -> %s\n", holder.id, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Reads the descriptor stored under a file's key, if the file was written as fragments
+     * @param peer the peer responsible for the file
+     * @param guidObject the global unique identifier of the file
+     * @return the descriptor, or null if the file doesn't exist or wasn't written as fragments
+     * @throws IOException if the peer can't be reached
+     */
+    private static Erasure.Descriptor readDescriptor(ChordMessageInterface peer, long guidObject) throws IOException {
+        try {
+            if (KeyIndex.kind(peer.getVersion(guidObject)) != KeyIndex.DESCRIPTOR) return null;
+            return Erasure.Descriptor.decode(peer.getChunk(guidObject, 0, Erasure.DESCRIPTOR_BYTES));
+        } catch(FileNotFoundException | NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Removes a file from the ring, along with its fragments if it was written as fragments
+     * @param guidObject the global unique identifier of the file
+     * @return false if no peer responsible for the key could be found
+     * @throws IOException if the file doesn't exist
+     */
+    public boolean delete(long guidObject) throws IOException {
+        return onOwner(guidObject, peer -> {
+            // The descriptor goes first, so a repair running meanwhile doesn't rebuild what is being removed
+            Erasure.Descriptor descriptor = Erasure.ENABLED ? readDescriptor(peer, guidObject) : null;
+            ChordNode[] holders = descriptor == null ? null : peer.getFragmentSet(guidObject, descriptor.k + descriptor.m);
+            peer.delete(guidObject);
+            if (descriptor != null) deleteFragments(holders, descriptor);
+        });
+    }
+
+    /**
+     * Finds the peer responsible for a key, from the cache if possible
+     * @param guidObject the global unique identifier of the file
+     * @return the owner once it is found
+     */
+    public CompletableFuture<ChordNode> locate(long guidObject) {
+        // The cache is checked when the lookup runs, so lookups queued behind others benefit from their results
+        CompletableFuture<ChordNode> owner = new CompletableFuture<>();
+        executor.execute(() -> {
+            try {
+                ChordNode peer = locations.get(guidObject);
+                if (peer == null) {
+                    peer = chord.locateSuccessor(guidObject);
+                    chord.sampleHops(guidObject);
+                    if (peer == null) throw new IOException(String.format("No peer is responsible for %d", guidObject));
+                    cacheOwner(peer);
+                }
+                owner.complete(peer);
+            } catch(Exception e) {
+                owner.completeExceptionally(e);
+            }
+        });
+        return owner;
+    }
+
+    /**
+     * Stores many local files in the ring. Small files are sent to their owners in batches and
+     * larger ones are streamed on their own
+     * @param paths the local file for each key
+     * @return the failure for each key that couldn't be stored, once every file was handled
+     */
+    public CompletableFuture<Map<Long, IOException>> writeAll(Map<Long, Path> paths) {
+        Map<Long, IOException> failures = new ConcurrentHashMap<>();
+        return groupByOwner(paths.keySet(), failures).thenCompose(groups -> {
+            List<CompletableFuture<Void>> sends = new ArrayList<>();
+            groups.forEach((owner, keys) -> {
+                List<Long> batch = new ArrayList<>();
+                long batchBytes = 0;
+                for (long key : keys) {
+                    long size = paths.get(key).toFile().length();
+                    if (size > FileTransfer.CHUNK_SIZE || !storedWhole(size)) {
+                        sends.add(run(key, failures, () -> write(key, paths.get(key))));
+                        continue;
+                    }
+                    if (batch.size() == FileTransfer.BATCH_KEYS || batchBytes + size > FileTransfer.BATCH_BYTES) {
+                        sends.add(writeBatch(owner, batch, paths, failures));
+                        batch = new ArrayList<>();
+                        batchBytes = 0;
+                    }
+                    batch.add(key);
+                    batchBytes += size;
+                }
+                if (!batch.isEmpty()) sends.add(writeBatch(owner, batch, paths, failures));
+            });
+            return CompletableFuture.allOf(sends.toArray(new CompletableFuture<?>[0])).thenApply(v -> failures);
+        });
+    }
+
+    /**
+     * Fetches many files from the ring into local files. Small files are fetched from their owners
+     * in batches and larger ones are streamed on their own
+     * @param paths where to save the file for each key
+     * @return the failure for each key that couldn't be fetched, once every file was handled
+     */
+    public CompletableFuture<Map<Long, IOException>> readAll(Map<Long, Path> paths) {
+        Map<Long, IOException> failures = new ConcurrentHashMap<>();
+        return groupByOwner(paths.keySet(), failures).thenCompose(groups -> {
+            List<CompletableFuture<Void>> fetches = new ArrayList<>();
+            groups.forEach((owner, keys) -> {
+                for (int from = 0; from < keys.size(); from += FileTransfer.BATCH_KEYS) {
+                    List<Long> batch = keys.subList(from, Math.min(keys.size(), from + FileTransfer.BATCH_KEYS));
+                    fetches.add(readBatch(owner, batch, paths, failures));
+                }
+            });
+            return CompletableFuture.allOf(fetches.toArray(new CompletableFuture<?>[0])).thenApply(v -> failures);
+        });
+    }
+
+    /**
+     * Sends a batch of small files to their owner in one call, falling back to one file at a time
+     * if the owner no longer has all of them
+     * @param owner the peer responsible for the files
+     * @param batch the keys of the files
+     * @param paths the local file for each key
+     * @param failures where failures are recorded, for every file of the batch if the owner fails to store it
+     * @return the call, which never completes exceptionally
+     */
+    private CompletableFuture<Void> writeBatch(ChordNode owner, List<Long> batch, Map<Long, Path> paths, Map<Long, IOException> failures) {
+        return run(batch, failures, () -> {
+            // Files that can't be read are left out of the batch
+            List<Long> readable = new ArrayList<>();
+            List<byte[]> contents = new ArrayList<>();
+            for (long key : batch) {
+                try {
+                    contents.add(Files.readAllBytes(paths.get(key)));
+                    readable.add(key);
+                } catch(IOException e) {
+                    failures.put(key, e);
+                }
+            }
+            if (readable.isEmpty()) return;
+            long[] keys = readable.stream().mapToLong(Long::longValue).toArray();
+            byte[][] data = Compression.packAll(contents.toArray(new byte[0][]), Compression.CODECS);
+
+            try {
+                CallTimeout.bulk(() -> owner.stub.putFiles(keys, data));
+            } catch(KeyNotOwnedException | RemoteException e) {
+                locations.invalidate(owner); // The ring changed since the owners were found
+                for (long key : keys) runNow(key, failures, () -> write(key, paths.get(key)));
+            }
+        });
+    }
+
+    /**
+     * Fetches a batch of files from their owner in as few calls as possible, then fetches the
+     * files the owner left out, and every file still missing if a call fails, one at a time
+     * @param owner the peer responsible for the files
+     * @param batch the keys of the files
+     * @param paths where to save the file for each key
+     * @param failures where failures are recorded
+     * @return the call, which never completes exceptionally
+     */
+    private CompletableFuture<Void> readBatch(ChordNode owner, List<Long> batch, Map<Long, Path> paths, Map<Long, IOException> failures) {
+        return run(batch, failures, () -> {
+            List<Long> remaining = new ArrayList<>(batch);
+            try {
+                // Each call returns at least one file while any small file is left
+                boolean progress = true;
+                while (progress && !remaining.isEmpty()) {
+                    long[] keys = remaining.stream().mapToLong(Long::longValue).toArray();
+                    byte[][] data = Compression.unpackAll(CallTimeout.bulk(() -> owner.stub.getFiles(keys, Compression.CODECS)));
+                    progress = false;
+                    remaining.clear();
+                    for (int i = 0; i < keys.length; i++) {
+                        if (data[i] == null) {
+                            remaining.add(keys[i]);
+                            continue;
+                        }
+                        progress = true;
+                        long key = keys[i];
+                        byte[] file = data[i];
+                        runNow(key, failures, () -> Files.write(paths.get(key), file));
+                    }
+                }
+            } catch(KeyNotOwnedException | RemoteException e) {
+                locations.invalidate(owner); // The ring changed since the owners were found
+            } catch(IOException e) {
+                System.out.printf("Failed to read a batch of %d files from %d, reading them one at a time -> %s\n", remaining.size(), owner.id, e.getMessage());
+            }
+
+            // Large and missing files, and every file if the owner changed or the batch failed
+            for (long key : remaining) runNow(key, failures, () -> {
+                if (!read(key, paths.get(key))) throw new IOException(String.format("No peer is responsible for %d", key));
+            });
+        });
+    }
+
+    /**
+     * Finds the owners of many keys, with the keys that aren't cached looked up LOOKUP_BATCH at a time
+     * through locateSuccessors, so each batch costs a few messages per owner instead of a lookup per key
+     * @param keys the keys to look up
+     * @return the owner of each key, leaving out the keys no peer was found for
+     */
+    public CompletableFuture<Map<Long, ChordNode>> locateAll(Collection<Long> keys) {
+        return locateAll(keys, executor);
+    }
+
+    /**
+     * Finds the owners of many keys, running the batch lookups on a given pool
+     * @param keys the keys to look up
+     * @param pool where the lookups run
+     * @return the owner of each key, leaving out the keys no peer was found for
+     */
+    private CompletableFuture<Map<Long, ChordNode>> locateAll(Collection<Long> keys, Executor pool) {
+        Map<Long, ChordNode> owners = new ConcurrentHashMap<>();
+        List<Long> missing = new ArrayList<>();
+        for (long key : keys) {
+            ChordNode owner = locations.get(key);
+            if (owner != null) owners.put(key, owner);
+            else missing.add(key);
+        }
+
+        List<CompletableFuture<Void>> lookups = new ArrayList<>();
+        for (int from = 0; from < missing.size(); from += LOOKUP_BATCH) {
+            long[] batch = missing.subList(from, Math.min(missing.size(), from + LOOKUP_BATCH)).stream().mapToLong(Long::longValue).toArray();
+            lookups.add(CompletableFuture.runAsync(() -> {
+                ChordNode[] found = new ChordNode[batch.length];
+                try {
+                    found = chord.locateSuccessors(batch);
+                    chord.sampleHops(batch[0]);
+                } catch(RemoteException e) {
+                    // Fall back to looking the keys up one at a time, which routes around failed peers
+                    for (int i = 0; i < batch.length; i++) {
+                        try {
+                            found[i] = chord.locateSuccessor(batch[i]);
+                        } catch(RemoteException | IllegalArgumentException e2) {}
+                    }
+                }
+
+                Set<ChordNode> distinct = new HashSet<>();
+                for (int i = 0; i < batch.length; i++) {
+                    if (found[i] == null) continue;
+                    owners.put(batch[i], found[i]);
+                    distinct.add(found[i]);
+                }
+                distinct.forEach(this::cacheOwner);
+            }, pool));
+        }
+        return CompletableFuture.allOf(lookups.toArray(new CompletableFuture<?>[0])).thenApply(v -> owners);
+    }
+
+    /**
+     * Finds the owners of many keys and groups the keys by owner
+     * @param keys the keys to look up
+     * @param failures where the keys whose owner couldn't be found are recorded
+     * @return the keys of each owner
+     */
+    private CompletableFuture<Map<ChordNode, List<Long>>> groupByOwner(Collection<Long> keys, Map<Long, IOException> failures) {
+        return groupByOwner(keys, failures, executor);
+    }
+
+    /**
+     * Finds the owners of many keys on a given pool and groups the keys by owner
+     * @param keys the keys to look up
+     * @param failures where the keys whose owner couldn't be found are recorded
+     * @param pool where the lookups run
+     * @return the keys of each owner
+     */
+    private CompletableFuture<Map<ChordNode, List<Long>>> groupByOwner(Collection<Long> keys, Map<Long, IOException> failures, Executor pool) {
+        return locateAll(keys, pool).thenApply(owners -> {
+            Map<ChordNode, List<Long>> groups = new HashMap<>();
+            for (long key : keys) {
+                ChordNode owner = owners.get(key);
+                if (owner != null) groups.computeIfAbsent(owner, node -> new ArrayList<>()).add(key);
+                else failures.put(key, new IOException(String.format("No peer is responsible for %d", key)));
+            }
+            return groups;
+        });
+    }
+
+    /**
+     * Determines if write stores a file as it is rather than as fragments or chunks
+     * @param size the size of the file
+     * @return true if the file is too small for erasure coding and deduplication, or they are off
+     */
+    private static boolean storedWhole(long size) {
+        return !(Erasure.ENABLED && size > Erasure.MIN_BYTES) && !(Dedup.ENABLED && size > Dedup.MIN_BYTES);
+    }
+
+    /**
+     * Runs an operation on the client's pool, recording its failure instead of failing the future
+     * @param key the key the failure is recorded for
+     * @param failures where failures are recorded
+     * @param task the operation
+     * @return the operation, which completes once it has run
+     */
+    private CompletableFuture<Void> run(long key, Map<Long, IOException> failures, Task task) {
+        return CompletableFuture.runAsync(() -> runNow(key, failures, task), executor);
+    }
+
+    /**
+     * Runs an operation on a batch of keys on the client's pool, recording its failure instead of failing the future
+     * @param keys the keys the failure is recorded for
+     * @param failures where failures are recorded
+     * @param task the operation
+     * @return the operation, which completes once it has run
+     */
+    private CompletableFuture<Void> run(List<Long> keys, Map<Long, IOException> failures, Task task) {
+        return CompletableFuture.runAsync(() -> runNow(keys, failures, task), executor);
+    }
+
+    /**
+     * Runs an operation on the calling thread, recording its failure
+     * @param key the key the failure is recorded for
+     * @param failures where failures are recorded
+     * @param task the operation
+     */
+    private void runNow(long key, Map<Long, IOException> failures, Task task) {
+        try {
+            task.run();
+        } catch(Exception e) {
+            failures.put(key, asIOException(e));
+        }
+    }
+
+    /**
+     * Runs an operation on a batch of keys on the calling thread. If it fails, the failure is recorded for
+     * every key of the batch that has none yet, since the operation can't tell which of them it finished
+     * @param keys the keys the failure is recorded for
+     * @param failures where failures are recorded
+     * @param task the operation
+     */
+    private void runNow(List<Long> keys, Map<Long, IOException> failures, Task task) {
+        try {
+            task.run();
+        } catch(Exception e) {
+            IOException failure = asIOException(e);
+            for (long key : keys) failures.putIfAbsent(key, failure);
+        }
+    }
+
+    /**
+     * Runs an operation on the peer responsible for a key, trying the cached owner before a full lookup
+     * @param guidObject the global unique identifier of the file
+     * @param task the operation to run
+     * @return false if no peer responsible for the key could be found
+     * @throws IOException if the operation fails
+     */
+    boolean onOwner(long guidObject, PeerTask task) throws IOException {
+        ChordNode peer = locations.get(guidObject);
+        if (peer != null) {
+            try {
+                task.run(peer.stub);
+                return true;
+            } catch(KeyNotOwnedException | RemoteException e) {
+                locations.invalidate(peer); // The ring changed since the owner was cached
+            }
+        }
+
+        peer = chord.locateSuccessor(guidObject);
+        chord.sampleHops(guidObject);
+        if (peer == null) return false;
+        task.run(peer.stub);
+        cacheOwner(peer);
+        return true;
+    }
+
+    /**
+     * Remembers the range of keys a peer is responsible for
+     * @param peer the peer that was found by a lookup
+     */
+    private void cacheOwner(ChordNode peer) {
+        try {
+            ChordNode predecessor = peer.stub.getPredecessor();
+            if (predecessor != null) locations.put(predecessor.id, peer);
+        } catch(RemoteException e) {} // Not caching only costs a lookup next time
+    }
+
+    /**
+     * Turns the failure of an operation into an IOException
+     * @param failure the failure
+     * @return the failure if it already is an IOException, or one wrapping it
+     */
+    private static IOException asIOException(Throwable failure) {
+        return failure instanceof IOException ? (IOException)failure : new IOException(failure);
+    }
+}
@@ -2,15 +2,49 @@ import java.rmi.*;
 import java.io.*;
 
 interface ChordMessageInterface extends Remote {
-    ChordMessageInterface getPredecessor()                  throws RemoteException;
-    ChordMessageInterface locateSuccessor(long key)         throws RemoteException;
-    ChordMessageInterface closestPrecedingNode(long key)    throws RemoteException;
-    void joinRing(String Ip, int port)                      throws RemoteException;
-    void notify(ChordMessageInterface j, boolean killChord) throws RemoteException;
-    boolean isAlive()                                       throws RemoteException;
-    long getId()                                            throws RemoteException;
+    ChordNode getPredecessor()                      throws RemoteException;
+    ChordNode locateSuccessor(long key)             throws RemoteException;
+    ChordNode[] locateSuccessors(long[] keys)       throws RemoteException;
+    ChordNode closestPrecedingNode(long key)        throws RemoteException;
+    int countHops(long key)                         throws RemoteException;
+    void joinRing(String Ip, int port)              throws RemoteException;
+    void notify(ChordNode j, boolean killChord)     throws RemoteException;
+    boolean isAlive()                               throws RemoteException;
+    long getId()                                    throws RemoteException;
+    ChordNode[] getSuccessorList()                  throws RemoteException;
 
     void put(long guidObject, InputStream file) throws IOException;
     InputStream get(long guidObject)            throws IOException;
+    InputStream get(long guidObject, long offset, long length) throws IOException;
     void delete(long guidObject)                throws IOException;
+
+    void putBatch(long[] guidObjects, long[] versions, byte[][] files) throws IOException;
+    long openTransfer(long guidObject, int kind)                       throws IOException;
+    void putChunk(long transferId, long offset, byte[] chunk)          throws IOException;
+    void putPackedChunk(long transferId, long offset, byte[] packed)   throws IOException;
+    void commitTransfer(long transferId)                               throws IOException;
+    void abortTransfer(long transferId)                                throws IOException;
+    long getSize(long guidObject)                                      throws IOException;
+    long getVersion(long guidObject)                                   throws IOException;
+    void putFiles(long[] guidObjects, byte[][] files)                  throws IOException;
+    byte[][] getFiles(long[] guidObjects, int codecs)                  throws IOException;
+    boolean[] hasFiles(long[] guidObjects)                             throws IOException;
+    byte[] getChunk(long guidObject, long offset, int length)          throws IOException;
+    byte[] getPackedChunk(long guidObject, long offset, int length, int codecs) throws IOException;
+
+    ChordNode[] getReplicaSet(long guidObject)                                throws IOException;
+    void putReplica(long guidObject, InputStream file)                        throws IOException;
+    void putReplicaBatch(long[] guidObjects, long[] versions, byte[][] files) throws IOException;
+    InputStream getReplica(long guidObject)                                   throws IOException;
+    void deleteReplica(long guidObject)                                       throws IOException;
+
+    ChordNode[] getFragmentSet(long guidObject, int count)  throws IOException;
+    void putFragments(long[] fragmentKeys, byte[][] packed) throws IOException;
+    byte[][] getFragments(long[] fragmentKeys, int codecs)  throws IOException;
+    boolean[] hasFragments(long[] fragmentKeys)             throws IOException;
+    void deleteFragments(long[] fragmentKeys)               throws IOException;
+
+    byte[] getOnRoute(long guidObject, int codecs)                    throws IOException;
+    byte[] getPathCopy(long guidObject, ChordNode cacher, int codecs) throws IOException;
+    void dropPathCopy(long guidObject)                                throws IOException;
 }
\ No newline at end of file
@@ -0,0 +1,42 @@
+import java.io.*;
+
+/**
+ * Class describes a peer in the ring so it can be compared and routed to without asking the peer
+ */
+public class ChordNode implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public final long id; // Global unique identifier of the peer
+    public final String ip; // Address of the peer's RMI registry
+    public final int port;
+    public final ChordMessageInterface stub; // The peer itself, for remote calls
+
+    /**
+     * Constructor for the ChordNode class
+     * @param id the global unique identifier of the peer
+     * @param ip the ip address of the peer
+     * @param port the port of the peer
+     * @param stub the Chord object of the peer
+     */
+    public ChordNode(long id, String ip, int port, ChordMessageInterface stub) {
+        this.id = id;
+        this.ip = ip;
+        this.port = port;
+        this.stub = stub;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof ChordNode && ((ChordNode)o).id == id;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(id);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d (%s:%d)", id, ip, port);
+    }
+}
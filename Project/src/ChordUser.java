@@ -9,7 +9,9 @@ import java.util.stream.Stream;
 public class ChordUser {
     private int port; // The port this user is listening on
     private long guid; // The global unique identifier of this user
-    private Chord chord; // The chord object for this user
+    private VirtualNodes nodes; // The virtual nodes of this user, which share its port and store
+    private Chord chord; // The first virtual node, which this user's requests start from
+    private ChordClient client; // Reads and writes files in the ring through chord
 
     /**
      * Constructor for the ChordUser class
@@ -34,7 +36,7 @@ public class ChordUser {
 
         int port = Integer.parseInt(input[2]);
         try {
-            chord.joinRing(input[1], port); // Join the user-requested user to this user's peer system
+            nodes.joinRing(input[1], port); // Join the user-requested user to this user's peer system
         } catch(RemoteException e) {
             System.out.printf("Unable to join user %d ->%s\n", port, e.getMessage());
             return false;
@@ -59,11 +61,8 @@ public class ChordUser {
             long guidObject = hash(fileName);
             String path = String.format("%d/%s", guid, fileName);
 
-            // Find the peer responsible for hosting the user-requested file
-            ChordMessageInterface peer = chord.locateSuccessor(guidObject);
-            FileStream file = new FileStream(path);
-            if (peer != null) peer.put(guidObject, file); // Put the file into the ring
-            else {
+            // Stream the file one chunk at a time into the peer responsible for hosting it
+            if (!client.write(guidObject, Paths.get(path))) {
                 System.out.println("Unable to write file because of node corruption");
                 return false;
             }
@@ -73,9 +72,12 @@ public class ChordUser {
         } catch(RemoteException e) {
             System.out.println(e);
             return false;
-        } catch(IOException e) {
+        } catch(FileNotFoundException e) {
             System.out.printf("%s does not exist. It must exist in your working directory (/%d/repository/)\n", input[1], guid);
             return false;
+        } catch(IOException e) {
+            System.out.printf("Failed to write %s -> %s\n", input[1], e.getMessage());
+            return false;
         }
         return true;
     }
@@ -99,19 +101,11 @@ public class ChordUser {
             // Save the user-requested file to their working directory
             String savePath = String.format("%d/%s", this.guid, fileName);
 
-            // Find the peer responsible for the user-requested file
-            ChordMessageInterface peer = chord.locateSuccessor(guidObject);
-            if (peer == null) {
+            if (!client.read(guidObject, Paths.get(savePath))) {
                 System.out.println("Unable to read file because of node corruption");
                 return false;
             }
 
-            // Write the downloaded file to the local file
-            InputStream fileStream = peer.get(guidObject);
-            FileOutputStream writeStream = new FileOutputStream(savePath);
-            while (fileStream.available() > 0)
-                writeStream.write(fileStream.read());
-
             System.out.printf("Finished downloading %s to %s\n", fileName, savePath);
 
             Scanner in = new Scanner(System.in);
@@ -133,6 +127,43 @@ public class ChordUser {
         return true;
     }
 
+    /**
+     * Attempts to read part of a file from the file system
+     * @param input the user-entered tokens containing the name of the file, the offset and the length of the part
+     * @return true if the part was successfully found and saved locally, and false otherwise
+     */
+    public boolean readRange(String[] input) {
+        // Verify user input
+        if (input.length != 4) {
+            System.out.printf("Expected arguments <file>, <offset> and <length>, but received %d args\n", input.length - 1);
+            return false;
+        }
+
+        try {
+            String fileName = input[1];
+            long offset = Long.parseLong(input[2]), length = Long.parseLong(input[3]);
+            String savePath = String.format("%d/%s.%d-%d", this.guid, fileName, offset, offset + length);
+            if (!client.read(hash(fileName), offset, length, Paths.get(savePath))) {
+                System.out.println("Unable to read file because of node corruption");
+                return false;
+            }
+            System.out.printf("Finished downloading %d bytes of %s to %s\n", Files.size(Paths.get(savePath)), fileName, savePath);
+        } catch(NumberFormatException e) {
+            System.out.printf("Expected numbers for the offset and length -> %s\n", e.getMessage());
+            return false;
+        } catch(IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return false;
+        } catch(RemoteException e) {
+            System.out.println(e);
+            return false;
+        } catch(IOException e) {
+            System.out.printf("Failed to read part of %s -> %s\n", input[1], e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
     /**
      * Attempts to delete a file from the file system
      * @param input the user-entered tokens containing the name of the file
@@ -149,10 +180,8 @@ public class ChordUser {
             String fileName = input[1];
             long guidObject = hash(fileName);
 
-            // Find the peer responsible for the user-requested file
-            ChordMessageInterface peer = chord.locateSuccessor(guidObject);
-            if (peer != null) peer.delete(guidObject); // If we found the peer, try and delete the file
-            else {
+            // Find the peer responsible for the user-requested file and try to delete it there
+            if (!client.delete(guidObject)) {
                 System.out.println("Unable to delete file because of node corruption");
                 return false;
             }
@@ -169,12 +198,137 @@ public class ChordUser {
         return true;
     }
 
+    /**
+     * Measures how many remote hops it takes to find the peer responsible for a file
+     * @param input the user-entered tokens containing the name of the file
+     * @return true if the lookup finished, and false otherwise
+     */
+    public boolean hops(String[] input) {
+        // Verify user input
+        if (input.length != 2) {
+            System.out.printf("Expected argument <file>, but received %d args\n", input.length - 1);
+            return false;
+        }
+
+        try {
+            long guidObject = hash(input[1]);
+            System.out.printf("Locating %s took %d hop(s)\n", input[1], chord.countHops(guidObject));
+        } catch(IllegalArgumentException e) {
+            System.out.printf("%s can't exist because it has the same id as someone's port\n", input[1]);
+            return false;
+        } catch(RemoteException e) {
+            System.out.println(e);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Prints the latencies, lookup hops, storage, migration progress and traffic of this peer
+     * @param input the user-entered tokens, followed by prometheus for the Prometheus text format
+     */
+    public void stats(String[] input) {
+        if (input.length > 1 && input[1].equals("prometheus")) System.out.print(chord.metrics.prometheus(chord));
+        else System.out.print(chord.metrics.report(chord));
+    }
+
+    /**
+     * Attempts to add every file in a directory to the file system, along with a listing of the
+     * directory so read-dir can find them. Each file is stored under its own name, like write does
+     * @param input the user-entered tokens containing the name of the directory
+     * @return true if every file was successfully added to the system, and false otherwise
+     */
+    public boolean writeDir(String[] input) {
+        // Verify user input
+        if (input.length != 2) {
+            System.out.printf("Expected argument <directory>, but received %d args\n", input.length - 1);
+            return false;
+        }
+
+        Path directory = Paths.get(String.format("%d/%s", guid, input[1]));
+        Map<Long, Path> paths = new HashMap<>();
+        StringBuilder listing = new StringBuilder();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory, Files::isRegularFile)) {
+            for (Path path : entries) {
+                String fileName = path.getFileName().toString();
+                paths.put(hash(fileName), path);
+                listing.append(fileName).append('\n');
+            }
+        } catch(IOException e) {
+            System.out.printf("%s is not a directory in your working directory (/%d/) -> %s\n", input[1], guid, e.getMessage());
+            return false;
+        }
+
+        long start = System.nanoTime();
+        Map<Long, IOException> failures = client.writeAll(paths).join();
+        failures.forEach((key, e) -> System.out.printf("Failed to write %s -> %s\n", paths.get(key).getFileName(), e.getMessage()));
+        System.out.printf("Wrote %d of %d files in %d ms\n", paths.size() - failures.size(), paths.size(), (System.nanoTime() - start) / 1000000);
+
+        // The listing is a file of its own, named after the directory
+        try {
+            Path listingPath = Files.createTempFile(Paths.get(String.valueOf(guid)), ".listing", null);
+            try {
+                Files.write(listingPath, listing.toString().getBytes());
+                if (!client.write(hash(input[1] + "/"), listingPath)) {
+                    System.out.println("Unable to write the directory listing because of node corruption");
+                    return false;
+                }
+            } finally {
+                Files.deleteIfExists(listingPath);
+            }
+        } catch(IOException e) {
+            System.out.printf("Failed to write the listing of %s -> %s\n", input[1], e.getMessage());
+            return false;
+        }
+        return failures.isEmpty();
+    }
+
+    /**
+     * Attempts to read every file of a directory that was added with write-dir
+     * @param input the user-entered tokens containing the name of the directory
+     * @return true if every file was successfully found and saved locally, and false otherwise
+     */
+    public boolean readDir(String[] input) {
+        // Verify user input
+        if (input.length != 2) {
+            System.out.printf("Expected argument <directory>, but received %d args\n", input.length - 1);
+            return false;
+        }
+
+        Path directory = Paths.get(String.format("%d/%s", guid, input[1]));
+        Map<Long, Path> paths = new HashMap<>();
+        try {
+            Files.createDirectories(directory);
+            Path listingPath = Files.createTempFile(Paths.get(String.valueOf(guid)), ".listing", null);
+            try {
+                if (!client.read(hash(input[1] + "/"), listingPath)) {
+                    System.out.println("Unable to read the directory listing because of node corruption");
+                    return false;
+                }
+                for (String fileName : Files.readAllLines(listingPath))
+                    if (!fileName.isEmpty()) paths.put(hash(fileName), directory.resolve(fileName));
+            } finally {
+                Files.deleteIfExists(listingPath);
+            }
+        } catch(IOException e) {
+            if (e instanceof RemoteException) System.out.println(e);
+            else System.out.printf("%s was not written with write-dir\n", input[1]);
+            return false;
+        }
+
+        long start = System.nanoTime();
+        Map<Long, IOException> failures = client.readAll(paths).join();
+        failures.forEach((key, e) -> System.out.printf("Failed to read %s -> %s\n", paths.get(key).getFileName(), e.getMessage()));
+        System.out.printf("Downloaded %d of %d files to %s in %d ms\n", paths.size() - failures.size(), paths.size(), directory, (System.nanoTime() - start) / 1000000);
+        return failures.isEmpty();
+    }
+
     /**
      * Pushes the user out of the file system
      */
     public void quit() {
         // Try to method to transfer files from this user to other peers
-        if (chord != null) chord.leave();
+        if (nodes != null) nodes.leave();
     }
 
     /**
@@ -192,8 +346,10 @@ public class ChordUser {
 
                 // Attempt to create registry and create local directory to correctly run the program
                 try {
-                    chord = new Chord(port, guid);
                     Files.createDirectories(Paths.get(String.format("%d/repository", guid)));
+                    nodes = new VirtualNodes(port, Transport.fromProperties());
+                    chord = nodes.primary();
+                    client = new ChordClient(chord);
                 } catch(RemoteException e) {
                     System.out.printf("Unable to connect to file system -> %s\n", e.getMessage());
                     System.exit(-1);
@@ -202,17 +358,27 @@ public class ChordUser {
                     System.exit(-1);
                 }
 
+                // Serve the metrics in the Prometheus text format when -Dchord.metrics.port is given
+                Integer metricsPort = Integer.getInteger("chord.metrics.port");
+                if (metricsPort != null) {
+                    try {
+                        chord.metrics.serve(chord, metricsPort);
+                    } catch(IOException e) {
+                        System.out.printf("Unable to serve metrics at port %d -> %s\n", metricsPort, e.getMessage());
+                    }
+                }
+
                 // Print menu options to user and take user input until they leave normally or abruptly
                 System.out.println("----- Peer-to-peer File System -----");
                 while (true) {
-                    System.out.print("Options\n\tjoin <ip> <port>\n\twrite <file>\n\tread <file>\n\tdelete <file>\n\tprint\n\tleave\n$ ");
+                    System.out.print("Options\n\tjoin <ip> <port>\n\twrite <file>\n\tread <file>\n\tread-range <file> <offset> <length>\n\twrite-dir <directory>\n\tread-dir <directory>\n\tdelete <file>\n\thops <file>\n\tstats [prometheus]\n\tprint\n\tleave\n$ ");
                     String[] input = in.nextLine().split("\\s+"); // Get user input tokens
                     switch(input[0]) {
                         case "join":
                             join(input);
                             break;
                         case "print":
-                            chord.print();
+                            nodes.print();
                             break;
                         case "write":
                             write(input);
@@ -220,9 +386,24 @@ public class ChordUser {
                         case "read":
                             read(input);
                             break;
+                        case "read-range":
+                            readRange(input);
+                            break;
+                        case "write-dir":
+                            writeDir(input);
+                            break;
+                        case "read-dir":
+                            readDir(input);
+                            break;
                         case "delete":
                             delete(input);
                             break;
+                        case "hops":
+                            hops(input);
+                            break;
+                        case "stats":
+                            stats(input);
+                            break;
                         case "leave":
                             timer.cancel();
                             timer.purge();
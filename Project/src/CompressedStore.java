@@ -0,0 +1,298 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Class keeps the files of another storage engine compressed, picked with -Dchord.store.compressed=true.
+ * Each file is cut into chunks of FileTransfer.CHUNK_SIZE that are packed on their own, so a read only
+ * unpacks the chunks it covers. A stored file is [magic][size long][chunk count int][packed length int
+ * per chunk][packed chunks]. Files stored before compression was turned on are read as they are
+ */
+public class CompressedStore implements ObjectStore {
+    private static final int MAGIC = 0x43485a31;
+    private static final int HEADER_BYTES = 16;
+
+    /**
+     * Where the packed chunks of a file start
+     */
+    private static class Layout {
+        final long size; // Size of the file once unpacked
+        final long[] starts; // Start of each chunk in the stored file, followed by its end, or null if the file isn't packed
+
+        Layout(long size, long[] starts) {
+            this.size = size;
+            this.starts = starts;
+        }
+    }
+
+    private final ObjectStore store; // Holds the packed files
+    private final Map<Long, Layout> layouts = new ConcurrentHashMap<>();
+    private final ReentrantReadWriteLock[] keyLocks = new ReentrantReadWriteLock[64]; // Keep the layout of a key in step with the file stored last
+
+    /**
+     * Constructor for the CompressedStore class
+     * @param store the storage engine that holds the packed files
+     */
+    public CompressedStore(ObjectStore store) {
+        this.store = store;
+        for (int i = 0; i < keyLocks.length; i++) keyLocks[i] = new ReentrantReadWriteLock();
+    }
+
+    /**
+     * Loads the underlying store and reads the header of every file to learn its unpacked size
+     * @param index the index to fill
+     * @throws IOException if the store can't be loaded
+     */
+    public void load(KeyIndex index) throws IOException {
+        KeyIndex stored = new KeyIndex();
+        store.load(stored);
+        for (long guidObject : stored.keys()) {
+            Layout layout = readLayout(guidObject, stored.size(guidObject));
+            layouts.put(guidObject, layout);
+            index.put(guidObject, layout.size, stored.version(guidObject), KeyIndex.UNKNOWN_CHECKSUM); // The store only knows the packed bytes
+        }
+    }
+
+    /**
+     * Packs a fully received file chunk by chunk, compressing several chunks at once, and hands it to the
+     * underlying store
+     * @param guidObject the global unique identifier of the file
+     * @param staged where the file was received
+     * @param kind the kind of the file from KeyIndex
+     * @throws IOException
+     */
+    public void commit(long guidObject, Path staged, int kind) throws IOException {
+        Path packed = staged.resolveSibling(staged.getFileName() + ".z");
+        long size;
+        long[] starts;
+        try (FileChannel input = FileChannel.open(staged, StandardOpenOption.READ);
+             FileChannel output = FileChannel.open(packed, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            size = input.size();
+            int chunks = (int)((size + FileTransfer.CHUNK_SIZE - 1) / FileTransfer.CHUNK_SIZE);
+            starts = new long[chunks + 1];
+            starts[0] = HEADER_BYTES + 4L * chunks;
+            output.position(starts[0]);
+
+            Deque<Future<byte[]>> inFlight = new ArrayDeque<>();
+            int next = 0, written = 0;
+            while (written < chunks) {
+                if (next < chunks && inFlight.size() < FileTransfer.WINDOW) {
+                    byte[] chunk = new byte[(int)Math.min(FileTransfer.CHUNK_SIZE, size - (long)next * FileTransfer.CHUNK_SIZE)];
+                    ByteBuffer buffer = ByteBuffer.wrap(chunk);
+                    long position = (long)next * FileTransfer.CHUNK_SIZE;
+                    while (buffer.hasRemaining() && input.read(buffer, position + buffer.position()) != -1);
+                    inFlight.addLast(FileTransfer.executor.submit(() -> Compression.pack(chunk, 1 << Compression.DEFLATE)));
+                    next++;
+                    continue;
+                }
+                byte[] chunk = FileTransfer.await(inFlight.removeFirst());
+                write(output, ByteBuffer.wrap(chunk));
+                starts[written + 1] = starts[written] + chunk.length;
+                written++;
+            }
+            output.position(0);
+            write(output, header(size, starts));
+        } catch(IOException e) {
+            Files.deleteIfExists(packed);
+            throw e;
+        }
+        ReentrantReadWriteLock lock = lockFor(guidObject);
+        lock.writeLock().lock();
+        try {
+            store.commit(guidObject, packed, kind);
+            layouts.put(guidObject, new Layout(size, starts));
+        } catch(IOException e) {
+            Files.deleteIfExists(packed);
+            throw e;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        Files.delete(staged);
+    }
+
+    /**
+     * Packs a file that is already in memory and hands it to the underlying store
+     * @param guidObject the global unique identifier of the file
+     * @param data the data of the file
+     * @param kind the kind of the file from KeyIndex
+     * @throws IOException
+     */
+    public void write(long guidObject, byte[] data, int kind) throws IOException {
+        int chunks = (data.length + FileTransfer.CHUNK_SIZE - 1) / FileTransfer.CHUNK_SIZE;
+        byte[][] raw = new byte[chunks][];
+        for (int i = 0; i < chunks; i++)
+            raw[i] = Arrays.copyOfRange(data, i * FileTransfer.CHUNK_SIZE, Math.min(data.length, (i + 1) * FileTransfer.CHUNK_SIZE));
+        byte[][] packed = Compression.packAll(raw, 1 << Compression.DEFLATE);
+
+        long[] starts = new long[chunks + 1];
+        starts[0] = HEADER_BYTES + 4L * chunks;
+        for (int i = 0; i < chunks; i++) starts[i + 1] = starts[i] + packed[i].length;
+        ByteBuffer file = ByteBuffer.allocate((int)starts[chunks]);
+        file.put(header(data.length, starts));
+        for (byte[] chunk : packed) file.put(chunk);
+
+        ReentrantReadWriteLock lock = lockFor(guidObject);
+        lock.writeLock().lock();
+        try {
+            store.write(guidObject, file.array(), kind);
+            layouts.put(guidObject, new Layout(data.length, starts));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Reads part of a file, unpacking only the chunks it covers
+     * @param guidObject the global unique identifier of the file
+     * @param offset where to start reading
+     * @param length the maximum number of bytes to read
+     * @return the data, which is shorter than length at the end of the file
+     * @throws IOException if the file doesn't exist
+     */
+    public byte[] read(long guidObject, long offset, int length) throws IOException {
+        // The chunks are read under the same lock as their layout, so an overwrite can't slip between them
+        Layout layout;
+        byte[] span;
+        int count, first, last;
+        ReentrantReadWriteLock lock = lockFor(guidObject);
+        lock.readLock().lock();
+        try {
+            layout = getLayout(guidObject);
+            if (layout.starts == null) return store.read(guidObject, offset, length);
+
+            count = (int)Math.max(0, Math.min(length, layout.size - offset));
+            if (count == 0) return new byte[0];
+            first = (int)(offset / FileTransfer.CHUNK_SIZE);
+            last = (int)((offset + count - 1) / FileTransfer.CHUNK_SIZE);
+            span = store.read(guidObject, layout.starts[first], (int)(layout.starts[last + 1] - layout.starts[first]));
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        // Unpacking needs no lock, since the layout and the chunks read belong together
+        byte[] data = new byte[count];
+        int copied = 0;
+        for (int i = first; i <= last; i++) {
+            int from = (int)(layout.starts[i] - layout.starts[first]);
+            byte[] chunk = Compression.unpack(Arrays.copyOfRange(span, from, (int)(layout.starts[i + 1] - layout.starts[first])));
+            int skip = i == first ? (int)(offset - (long)first * FileTransfer.CHUNK_SIZE) : 0;
+            int n = Math.min(chunk.length - skip, count - copied);
+            System.arraycopy(chunk, skip, data, copied, n);
+            copied += n;
+        }
+        return data;
+    }
+
+    /**
+     * Reads one chunk just as it is stored, so it can be sent on without unpacking and packing it again
+     * @param guidObject the global unique identifier of the file
+     * @param offset where the chunk starts, a multiple of FileTransfer.CHUNK_SIZE
+     * @return the packed chunk, or null if the file isn't packed
+     * @throws IOException if the file doesn't exist
+     */
+    public byte[] readPacked(long guidObject, long offset) throws IOException {
+        ReentrantReadWriteLock lock = lockFor(guidObject);
+        lock.readLock().lock();
+        try {
+            Layout layout = getLayout(guidObject);
+            int chunk = (int)(offset / FileTransfer.CHUNK_SIZE);
+            if (layout.starts == null || offset % FileTransfer.CHUNK_SIZE != 0 || chunk >= layout.starts.length - 1) return null;
+            return store.read(guidObject, layout.starts[chunk], (int)(layout.starts[chunk + 1] - layout.starts[chunk]));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a file
+     * @param guidObject the global unique identifier of the file
+     * @throws IOException if the file doesn't exist
+     */
+    public void delete(long guidObject) throws IOException {
+        ReentrantReadWriteLock lock = lockFor(guidObject);
+        lock.writeLock().lock();
+        try {
+            store.delete(guidObject);
+            layouts.remove(guidObject);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Picks the lock that orders the writes and deletions of a key and keeps reads of the key from
+     * pairing one file's layout with another's data
+     * @param guidObject the global unique identifier of the file
+     * @return the lock, shared with the keys that hash alike
+     */
+    private ReentrantReadWriteLock lockFor(long guidObject) {
+        return keyLocks[(int)(guidObject ^ guidObject >>> 32) & (keyLocks.length - 1)];
+    }
+
+    /**
+     * Makes every file written or deleted so far survive a crash
+     * @throws IOException if the underlying store couldn't be forced
+     */
+    public void sync() throws IOException {
+        store.sync();
+    }
+
+    /**
+     * Looks up where the chunks of a file are
+     * @param guidObject the global unique identifier of the file
+     * @return the layout of the file
+     * @throws FileNotFoundException if the file doesn't exist
+     */
+    private Layout getLayout(long guidObject) throws FileNotFoundException {
+        Layout layout = layouts.get(guidObject);
+        if (layout == null) throw new FileNotFoundException(String.format("%d is not in this repository", guidObject));
+        return layout;
+    }
+
+    /**
+     * Reads the header of a stored file
+     * @param guidObject the global unique identifier of the file
+     * @param storedSize the size of the file as stored
+     * @return the layout of the file, which isn't packed if it has no header
+     * @throws IOException if the file can't be read
+     */
+    private Layout readLayout(long guidObject, long storedSize) throws IOException {
+        ByteBuffer header = ByteBuffer.wrap(store.read(guidObject, 0, HEADER_BYTES));
+        if (header.remaining() < HEADER_BYTES || header.getInt() != MAGIC) return new Layout(storedSize, null);
+        long size = header.getLong();
+        int chunks = header.getInt();
+        ByteBuffer lengths = ByteBuffer.wrap(store.read(guidObject, HEADER_BYTES, 4 * chunks));
+        long[] starts = new long[chunks + 1];
+        starts[0] = HEADER_BYTES + 4L * chunks;
+        for (int i = 0; i < chunks; i++) starts[i + 1] = starts[i] + lengths.getInt();
+        return new Layout(size, starts);
+    }
+
+    /**
+     * Builds the header of a stored file
+     * @param size the size of the file once unpacked
+     * @param starts where each chunk starts, followed by the end of the last one
+     * @return the header
+     */
+    private static ByteBuffer header(long size, long[] starts) {
+        ByteBuffer header = ByteBuffer.allocate((int)starts[0]);
+        header.putInt(MAGIC).putLong(size).putInt(starts.length - 1);
+        for (int i = 0; i + 1 < starts.length; i++) header.putInt((int)(starts[i + 1] - starts[i]));
+        header.flip();
+        return header;
+    }
+
+    /**
+     * Writes a whole buffer to a channel
+     * @param output the channel
+     * @param buffer the buffer
+     * @throws IOException
+     */
+    private static void write(FileChannel output, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) output.write(buffer);
+    }
+}
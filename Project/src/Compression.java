@@ -0,0 +1,167 @@
+import java.io.*;
+import java.util.concurrent.atomic.*;
+import java.util.stream.*;
+import java.util.zip.*;
+
+/**
+ * Class compresses chunks and small files before they are sent or stored. A packed chunk starts with a
+ * byte naming its codec, so every peer can unpack what any other peer sends, and data that doesn't
+ * shrink by at least 1/MIN_SAVING is left raw so it costs no more than one byte and a copy.
+ * Peers compress with -Dchord.compression=deflate (the default) and leave everything raw with none.
+ * Readers tell the peer they read from which codecs they take, so a peer that doesn't compress also
+ * gets raw chunks back
+ */
+public class Compression {
+    public static final byte NONE = 0; // The chunk follows as is
+    public static final byte DEFLATE = 1; // The raw length follows as an int, then the deflated chunk
+    public static final int MIN_BYTES = 256; // Smaller chunks aren't worth compressing
+    public static final int MIN_SAVING = 8; // A compressed chunk must be at most 1 - 1/MIN_SAVING of its raw size
+    public static final boolean AT_REST = Boolean.getBoolean("chord.store.compressed"); // Stores keep their files compressed
+    public static final int CODECS = "none".equals(System.getProperty("chord.compression")) ? 1 << NONE : 1 << NONE | 1 << DEFLATE; // Codecs this peer sends and takes
+
+    static final LongAdder rawBytes = new LongAdder(); // Bytes given to pack
+    static final LongAdder packedBytes = new LongAdder(); // Bytes pack returned
+    static final LongAdder skippedChunks = new LongAdder(); // Chunks left raw because they didn't shrink enough
+
+    // Deflate at its fastest level, since the chunks go out on the network or to disk right after
+    private static final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED, true));
+    private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    /**
+     * Packs a chunk with the best codec both sides take
+     * @param data the chunk
+     * @param codecs the codecs that may be used, as a bit per codec
+     * @return the codec byte followed by the chunk, compressed if that saved enough
+     */
+    public static byte[] pack(byte[] data, int codecs) {
+        boolean tried = (codecs & 1 << DEFLATE) != 0 && data.length >= MIN_BYTES;
+        byte[] packed = tried ? deflate(data) : null;
+        if (packed == null) {
+            packed = new byte[1 + data.length];
+            packed[0] = NONE;
+            System.arraycopy(data, 0, packed, 1, data.length);
+            if (tried) skippedChunks.increment();
+        }
+        rawBytes.add(data.length);
+        packedBytes.add(packed.length);
+        return packed;
+    }
+
+    /**
+     * Unpacks a chunk made by pack
+     * @param packed the codec byte followed by the chunk
+     * @return the chunk
+     * @throws IOException if the codec is unknown or the chunk is corrupt
+     */
+    public static byte[] unpack(byte[] packed) throws IOException {
+        if (packed.length == 0) throw new StreamCorruptedException("Packed chunk is empty");
+        switch(packed[0]) {
+            case NONE:
+                byte[] data = new byte[packed.length - 1];
+                System.arraycopy(packed, 1, data, 0, data.length);
+                return data;
+            case DEFLATE:
+                return inflate(packed);
+            default:
+                throw new StreamCorruptedException(String.format("Unknown codec %d", packed[0]));
+        }
+    }
+
+    /**
+     * Packs a batch of files, compressing them in parallel
+     * @param files the data of each file
+     * @param codecs the codecs the receiver takes
+     * @return each file packed
+     */
+    public static byte[][] packAll(byte[][] files, int codecs) {
+        byte[][] packed = new byte[files.length][];
+        IntStream.range(0, files.length).parallel().forEach(i -> packed[i] = files[i] == null ? null : pack(files[i], codecs));
+        return packed;
+    }
+
+    /**
+     * Unpacks a batch of files made by packAll, in parallel
+     * @param packed each file packed, or null
+     * @return the data of each file, or null where packed was null
+     * @throws IOException if any file is corrupt
+     */
+    public static byte[][] unpackAll(byte[][] packed) throws IOException {
+        byte[][] files = new byte[packed.length][];
+        try {
+            IntStream.range(0, packed.length).parallel().forEach(i -> {
+                try {
+                    files[i] = packed[i] == null ? null : unpack(packed[i]);
+                } catch(IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch(UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return files;
+    }
+
+    /**
+     * Describes how much compression saved
+     * @return the bytes packed, what they shrank to and the chunks left raw
+     */
+    public static String report() {
+        long raw = rawBytes.sum(), packed = packedBytes.sum();
+        return String.format("%d bytes packed into %d (%.2fx), %d chunks left raw", raw, packed, packed == 0 ? 1 : (double)raw / packed, skippedChunks.sum());
+    }
+
+    /**
+     * Deflates a chunk, giving up as soon as the output grows past what would be worth sending
+     * @param data the chunk
+     * @return the packed chunk, or null if it didn't shrink enough
+     */
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+
+        byte[] packed = new byte[5 + data.length - data.length / MIN_SAVING];
+        int length = 5;
+        while (!deflater.finished() && length < packed.length) length += deflater.deflate(packed, length, packed.length - length);
+        if (!deflater.finished()) return null;
+
+        packed[0] = DEFLATE;
+        packed[1] = (byte)(data.length >>> 24);
+        packed[2] = (byte)(data.length >>> 16);
+        packed[3] = (byte)(data.length >>> 8);
+        packed[4] = (byte)data.length;
+        byte[] trimmed = new byte[length];
+        System.arraycopy(packed, 0, trimmed, 0, length);
+        return trimmed;
+    }
+
+    /**
+     * Inflates a chunk packed by deflate
+     * @param packed the packed chunk
+     * @return the chunk
+     * @throws IOException if the chunk is corrupt
+     */
+    private static byte[] inflate(byte[] packed) throws IOException {
+        if (packed.length < 5) throw new StreamCorruptedException("Deflated chunk is truncated");
+        int rawLength = (packed[1] & 0xff) << 24 | (packed[2] & 0xff) << 16 | (packed[3] & 0xff) << 8 | packed[4] & 0xff;
+        if (rawLength < 0 || rawLength > Wire.MAX_FRAME_BYTES) throw new StreamCorruptedException(String.format("Bad chunk length %d", rawLength));
+
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(packed, 5, packed.length - 5);
+        byte[] data = new byte[rawLength];
+        try {
+            int length = 0;
+            while (length < rawLength && !inflater.finished()) {
+                int n = inflater.inflate(data, length, rawLength - length);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                length += n;
+            }
+            if (length != rawLength) throw new StreamCorruptedException(String.format("Chunk inflated to %d bytes instead of %d", length, rawLength));
+        } catch(DataFormatException e) {
+            throw new StreamCorruptedException("Corrupt deflated chunk: " + e.getMessage());
+        }
+        return data;
+    }
+}
@@ -0,0 +1,179 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Class splits files into content-defined chunks, picked with -Dchord.dedup=true. A Gear rolling hash
+ * over the bytes of a file ends a chunk wherever its top bits are zero, so an edit only changes the
+ * chunks around it and the chunks after it are cut at the same places as before. Each chunk is stored
+ * in the ring under a key made from its content, so a chunk shared by many files or versions is stored
+ * once, and the file's own key holds a manifest listing its chunks, written as KeyIndex.MANIFEST so
+ * readers know it from the kind in its version rather than from its data
+ */
+public class Dedup {
+    public static final boolean ENABLED = Boolean.getBoolean("chord.dedup"); // Files are written as chunks and a manifest
+    public static final int MIN_BYTES = 16 << 10; // No chunk ends before this, and smaller files are stored whole
+    public static final int AVG_BYTES = 64 << 10; // Chunks end on average this far apart
+    public static final int MAX_BYTES = 256 << 10; // Chunks end here whatever the hash says, well under FileTransfer.CHUNK_SIZE
+    public static final int WINDOW_BYTES = 4 * FileTransfer.BATCH_BYTES; // Bytes of chunks a client holds between calls
+    public static final long MAGIC = 0x43444331_4d414e31L; // Starts every manifest
+    public static final int MAGIC_BYTES = 8;
+
+    static final LongAdder storedChunks = new LongAdder(), storedBytes = new LongAdder(); // Chunks sent to their owners
+    static final LongAdder skippedChunks = new LongAdder(), skippedBytes = new LongAdder(); // Chunks their owners already had
+
+    // A chunk ends where the top bits of the hash are zero, as they depend on the last 64 bytes and the low bits on far fewer
+    private static final long MASK = ~(-1L >>> Integer.numberOfTrailingZeros(AVG_BYTES));
+    private static final long[] GEAR = new long[256]; // Random value of each byte, fixed so every peer cuts files the same way
+
+    static {
+        Random random = new Random(0x6765617248617368L);
+        for (int i = 0; i < GEAR.length; i++) GEAR[i] = random.nextLong();
+    }
+
+    /**
+     * Cuts a stream into content-defined chunks
+     */
+    public static class Chunker {
+        private final InputStream input;
+        private final byte[] buffer = new byte[2 * MAX_BYTES];
+        private int position, limit;
+        private boolean finished; // The stream has no more bytes
+
+        /**
+         * Constructor for the Chunker class
+         * @param input the stream to cut
+         */
+        public Chunker(InputStream input) {
+            this.input = input;
+        }
+
+        /**
+         * Reads the next chunk
+         * @return the chunk, or null at the end of the stream
+         * @throws IOException if the stream can't be read
+         */
+        public byte[] next() throws IOException {
+            if (limit - position < MAX_BYTES && !finished) fill();
+            if (position == limit) return null;
+
+            int end = Math.min(limit, position + MAX_BYTES);
+            int cut = end;
+            long hash = 0;
+            for (int i = position + MIN_BYTES; i < end; i++) {
+                hash = (hash << 1) + GEAR[buffer[i] & 0xff];
+                if ((hash & MASK) == 0) {
+                    cut = i + 1;
+                    break;
+                }
+            }
+            byte[] chunk = Arrays.copyOfRange(buffer, position, cut);
+            position = cut;
+            return chunk;
+        }
+
+        /**
+         * Moves the bytes not cut yet to the front of the buffer and reads until it is full
+         * @throws IOException if the stream can't be read
+         */
+        private void fill() throws IOException {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+            while (limit < buffer.length) {
+                int n = input.read(buffer, limit, buffer.length - limit);
+                if (n < 0) {
+                    finished = true;
+                    return;
+                }
+                limit += n;
+            }
+        }
+    }
+
+    /**
+     * The chunks of a file in order. A stored manifest is [magic][size long][chunk count int] followed by
+     * [key long][length int] per chunk
+     */
+    public static class Manifest {
+        final List<Long> keys = new ArrayList<>();
+        final List<Integer> lengths = new ArrayList<>();
+        long size; // Size of the file
+
+        /**
+         * Appends a chunk to the file
+         * @param key the key of the chunk
+         * @param length the length of the chunk
+         */
+        public void add(long key, int length) {
+            keys.add(key);
+            lengths.add(length);
+            size += length;
+        }
+
+        /**
+         * Builds the manifest as it is stored
+         * @return the manifest
+         */
+        public byte[] encode() {
+            ByteBuffer data = ByteBuffer.allocate(MAGIC_BYTES + 12 + 12 * keys.size());
+            data.putLong(MAGIC).putLong(size).putInt(keys.size());
+            for (int i = 0; i < keys.size(); i++) data.putLong(keys.get(i)).putInt(lengths.get(i));
+            return data.array();
+        }
+
+        /**
+         * Reads a stored manifest
+         * @param data the manifest as it is stored
+         * @return the manifest
+         * @throws StreamCorruptedException if the data isn't a whole manifest
+         */
+        public static Manifest decode(byte[] data) throws StreamCorruptedException {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            if (!isManifest(data) || data.length < MAGIC_BYTES + 12) throw new StreamCorruptedException("Not a manifest");
+            buffer.position(MAGIC_BYTES);
+            long size = buffer.getLong();
+            int count = buffer.getInt();
+            if (count < 0 || buffer.remaining() != 12L * count) throw new StreamCorruptedException(String.format("Manifest of %d chunks is %d bytes", count, data.length));
+
+            Manifest manifest = new Manifest();
+            for (int i = 0; i < count; i++) manifest.add(buffer.getLong(), buffer.getInt());
+            if (manifest.size != size) throw new StreamCorruptedException(String.format("Manifest chunks add up to %d bytes instead of %d", manifest.size, size));
+            return manifest;
+        }
+    }
+
+    /**
+     * Checks that data stored as a manifest is one, which guards against a file of another kind
+     * @param data the data, or at least its first MAGIC_BYTES
+     * @return true if the data starts like a manifest
+     */
+    private static boolean isManifest(byte[] data) {
+        return data != null && data.length >= MAGIC_BYTES && ByteBuffer.wrap(data).getLong() == MAGIC;
+    }
+
+    /**
+     * Gets the key a chunk is stored under, from a SHA-256 of its content
+     * @param chunk the chunk
+     * @return the key, in the same range as the guids of files
+     */
+    public static long key(byte[] chunk) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return ByteBuffer.wrap(digest.digest(chunk)).getLong() & Long.MAX_VALUE;
+        } catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Every Java platform has SHA-256
+        }
+    }
+
+    /**
+     * Describes how much deduplication saved
+     * @return the chunks and bytes sent and the ones their owners already had
+     */
+    public static String report() {
+        return String.format("%d chunks (%d bytes) stored, %d chunks (%d bytes) already in the ring",
+            storedChunks.sum(), storedBytes.sum(), skippedChunks.sum(), skippedBytes.sum());
+    }
+}
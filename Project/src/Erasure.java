@@ -0,0 +1,185 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class stores files as Reed-Solomon fragments instead of whole copies, picked with -Dchord.erasure=k+m
+ * on every peer. A file is cut into stripes of k pieces, each stripe gets m parity pieces, and piece i of
+ * every stripe goes to the i-th of the owner and its successors, so the file survives the loss of any m
+ * of them while taking (k + m) / k times its size. The file's own key holds a small descriptor naming
+ * the fragments, which moves with the key like any other file, and the owner regenerates missing
+ * fragments whenever the peers after it change. The descriptor is written as KeyIndex.DESCRIPTOR, so
+ * readers and repairs know it from the kind in its version rather than from its data
+ */
+public class Erasure {
+    public static final String SCHEME = System.getProperty("chord.erasure"); // k+m, or null to store whole files
+    public static final boolean ENABLED = SCHEME != null;
+    public static final int K = ENABLED ? parse(SCHEME)[0] : 0; // Data pieces per stripe
+    public static final int M = ENABLED ? parse(SCHEME)[1] : 0; // Parity pieces per stripe
+    public static final int MIN_BYTES = 64 << 10; // Smaller files are stored whole
+    public static final int STRIPE_WINDOW = 4; // Stripes a client holds between calls
+    public static final long MAGIC = 0x52534b4d_44455331L; // Starts every descriptor
+    public static final int DESCRIPTOR_BYTES = 36;
+
+    static final LongAdder regeneratedFragments = new LongAdder(); // Fragments rebuilt by repairs run here
+
+    /**
+     * Names the fragments of a file. A stored descriptor is [magic][k int][m int][size long][piece length int]
+     * [write id long], and the write id makes the fragment keys of each write of the file distinct
+     */
+    public static class Descriptor {
+        final int k, m;
+        final long size; // Size of the file
+        final int pieceBytes; // Length of every fragment
+        final long writeId;
+
+        Descriptor(int k, int m, long size, int pieceBytes, long writeId) {
+            this.k = k;
+            this.m = m;
+            this.size = size;
+            this.pieceBytes = pieceBytes;
+            this.writeId = writeId;
+        }
+
+        /**
+         * Makes the descriptor for a new write of a file, with pieces of at most one chunk. The file is
+         * spread evenly over as few stripes as that allows, so the last stripe is hardly padded
+         * @param size the size of the file
+         * @return the descriptor
+         */
+        public static Descriptor create(long size) {
+            long stripes = Math.max(1, (size + (long)K * FileTransfer.CHUNK_SIZE - 1) / ((long)K * FileTransfer.CHUNK_SIZE));
+            int pieceBytes = (int)Math.max(1, (size + stripes * K - 1) / (stripes * K));
+            return new Descriptor(K, M, size, pieceBytes, ThreadLocalRandom.current().nextLong());
+        }
+
+        /**
+         * Gets the number of bytes of the file in each stripe
+         * @return k pieces
+         */
+        public long stripeBytes() {
+            return (long)k * pieceBytes;
+        }
+
+        /**
+         * Gets the number of stripes of the file
+         * @return the stripes, the last of which is padded with zeros
+         */
+        public int stripes() {
+            return (int)((size + stripeBytes() - 1) / stripeBytes());
+        }
+
+        /**
+         * Gets the keys of every fragment of a range of stripes
+         * @param from the first stripe
+         * @param to the stripe after the last one
+         * @return k + m keys per stripe, stripe by stripe
+         */
+        public long[] keys(int from, int to) {
+            long[] keys = new long[(to - from) * (k + m)];
+            for (int stripe = from; stripe < to; stripe++)
+                for (int i = 0; i < k + m; i++) keys[(stripe - from) * (k + m) + i] = key(stripe, i);
+            return keys;
+        }
+
+        /**
+         * Gets the key a fragment is stored under
+         * @param stripe the stripe of the fragment
+         * @param shard the number of the fragment in its stripe, data pieces first
+         * @return the key, mixed so the fragments of a file spread over the key space
+         */
+        public long key(int stripe, int shard) {
+            long x = writeId + stripe * 0x9e3779b97f4a7c15L + (shard + 1) * 0xc2b2ae3d27d4eb4fL;
+            x = (x ^ x >>> 33) * 0xff51afd7ed558ccdL;
+            x = (x ^ x >>> 33) * 0xc4ceb9fe1a85ec53L;
+            return (x ^ x >>> 33) & Long.MAX_VALUE;
+        }
+
+        /**
+         * Builds the descriptor as it is stored
+         * @return the descriptor
+         */
+        public byte[] encode() {
+            return ByteBuffer.allocate(DESCRIPTOR_BYTES).putLong(MAGIC).putInt(k).putInt(m).putLong(size).putInt(pieceBytes).putLong(writeId).array();
+        }
+
+        /**
+         * Reads a stored descriptor
+         * @param data the descriptor as it is stored
+         * @return the descriptor
+         * @throws StreamCorruptedException if the data isn't a descriptor
+         */
+        public static Descriptor decode(byte[] data) throws StreamCorruptedException {
+            if (!isDescriptor(data)) throw new StreamCorruptedException("Not a fragment descriptor");
+            ByteBuffer buffer = ByteBuffer.wrap(data, 8, DESCRIPTOR_BYTES - 8);
+            int k = buffer.getInt(), m = buffer.getInt();
+            long size = buffer.getLong();
+            int pieceBytes = buffer.getInt();
+            if (k < 1 || m < 0 || k + m > 256 || size < 0 || pieceBytes < 1 || pieceBytes > FileTransfer.CHUNK_SIZE)
+                throw new StreamCorruptedException(String.format("Bad descriptor of %d+%d pieces of %d bytes", k, m, pieceBytes));
+            return new Descriptor(k, m, size, pieceBytes, buffer.getLong());
+        }
+    }
+
+    /**
+     * Checks that data stored as a descriptor is one, which guards against a file of another kind
+     * @param data the data, or at least its first DESCRIPTOR_BYTES
+     * @return true if the data is as long as a descriptor and starts like one
+     */
+    private static boolean isDescriptor(byte[] data) {
+        return data != null && data.length == DESCRIPTOR_BYTES && ByteBuffer.wrap(data).getLong() == MAGIC;
+    }
+
+    /**
+     * Cuts a stripe into its data pieces and computes its parity pieces
+     * @param descriptor the descriptor of the file
+     * @param stripe the bytes of the stripe, which may be short at the end of the file
+     * @return the k + m fragments of the stripe
+     */
+    public static byte[][] encode(Descriptor descriptor, byte[] stripe) {
+        byte[][] shards = new byte[descriptor.k + descriptor.m][];
+        for (int i = 0; i < descriptor.k; i++) {
+            shards[i] = new byte[descriptor.pieceBytes];
+            int from = i * descriptor.pieceBytes;
+            if (from < stripe.length) System.arraycopy(stripe, from, shards[i], 0, Math.min(descriptor.pieceBytes, stripe.length - from));
+        }
+        byte[][] data = new byte[descriptor.k][];
+        System.arraycopy(shards, 0, data, 0, descriptor.k);
+        byte[][] parity = new ReedSolomon(descriptor.k, descriptor.m).encode(data);
+        System.arraycopy(parity, 0, shards, descriptor.k, descriptor.m);
+        return shards;
+    }
+
+    /**
+     * Rebuilds the bytes of a stripe from any k of its fragments
+     * @param descriptor the descriptor of the file
+     * @param stripe the number of the stripe
+     * @param shards the fragments of the stripe, with null for the missing ones
+     * @return the bytes of the stripe, without the padding at the end of the file
+     * @throws IOException if fewer than k fragments are present
+     */
+    public static byte[] decode(Descriptor descriptor, int stripe, byte[][] shards) throws IOException {
+        new ReedSolomon(descriptor.k, descriptor.m).reconstructData(shards);
+        int length = (int)Math.min(descriptor.stripeBytes(), descriptor.size - stripe * descriptor.stripeBytes());
+        byte[] data = new byte[length];
+        for (int i = 0; i < descriptor.k && i * descriptor.pieceBytes < length; i++)
+            System.arraycopy(shards[i], 0, data, i * descriptor.pieceBytes, Math.min(descriptor.pieceBytes, length - i * descriptor.pieceBytes));
+        return data;
+    }
+
+    /**
+     * Reads the k+m scheme of -Dchord.erasure
+     * @param scheme the scheme, such as 4+2
+     * @return k and m
+     * @throws IllegalArgumentException if the scheme isn't k+m with k at least 1 and m at least 1
+     */
+    private static int[] parse(String scheme) {
+        String[] parts = scheme.split("\\+");
+        try {
+            int k = Integer.parseInt(parts[0].trim()), m = parts.length == 2 ? Integer.parseInt(parts[1].trim()) : -1;
+            if (k >= 1 && m >= 1 && k + m <= 256) return new int[] { k, m };
+        } catch(NumberFormatException e) {}
+        throw new IllegalArgumentException(String.format("-Dchord.erasure must be k+m, such as 4+2, not %s", scheme));
+    }
+}
@@ -0,0 +1,129 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Class tells which peers have probably failed from how regularly their heartbeats arrive, using the
+ * phi accrual detector of Hayashibara et al. The gaps between a peer's recent heartbeats are taken as
+ * normally distributed, and phi is -log10 of the chance that a gap is at least as long as the time since
+ * the last heartbeat, so phi 1 means a 10% chance of being wrong to suspect the peer, phi 2 a 1% chance
+ * and so on. A peer counts as suspected once phi passes -Dchord.phi (8 by default), which adapts to
+ * how slow and jittery each peer already is instead of waiting out a fixed timeout
+ */
+public class FailureDetector {
+    public static final double THRESHOLD = Double.parseDouble(System.getProperty("chord.phi", "8")); // Phi at which a peer is suspected
+    public static final int WINDOW = 100; // Gaps between heartbeats remembered per peer
+    public static final double MIN_STD_DEV_MILLIS = 100; // Keeps a peer with very regular heartbeats from being suspected on the first late one
+
+    /**
+     * The recent heartbeats of one peer
+     */
+    private static class History {
+        final double[] gaps = new double[WINDOW]; // Milliseconds between heartbeats, oldest overwritten first
+        int count, next;
+        double sum, squares;
+        long lastNanos; // When the last heartbeat arrived
+
+        History(long now, double expectedMillis) {
+            lastNanos = now;
+            // The first gap is a guess, so a peer that fails before its second heartbeat is still suspected
+            add(expectedMillis);
+        }
+
+        void add(double gap) {
+            if (count == WINDOW) {
+                sum -= gaps[next];
+                squares -= gaps[next] * gaps[next];
+            } else count++;
+            gaps[next] = gap;
+            next = (next + 1) % WINDOW;
+            sum += gap;
+            squares += gap * gap;
+        }
+
+        double phi(long now) {
+            double mean = sum / count;
+            double stdDev = Math.max(MIN_STD_DEV_MILLIS, Math.sqrt(Math.max(0, squares / count - mean * mean)));
+            double y = ((now - lastNanos) / 1e6 - mean) / stdDev;
+
+            // A logistic approximation of the normal distribution's tail that stays accurate far out
+            double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+            return y > 0 ? -Math.log10(e / (1 + e)) : -Math.log10(1 - 1 / (1 + e));
+        }
+    }
+
+    private final Map<Long, History> histories = new ConcurrentHashMap<>(); // By guid of the peer
+    private final double expectedMillis; // How often heartbeats are sent
+
+    /**
+     * Constructor for the FailureDetector class
+     * @param expectedMillis how often heartbeats are sent, taken as the first gap of every peer
+     */
+    public FailureDetector(double expectedMillis) {
+        this.expectedMillis = expectedMillis;
+    }
+
+    /**
+     * Records that a peer answered
+     * @param id the guid of the peer
+     */
+    public void heartbeat(long id) {
+        long now = System.nanoTime();
+        History history = histories.get(id);
+        if (history == null && (history = histories.putIfAbsent(id, new History(now, expectedMillis))) == null) return;
+        synchronized(history) {
+            history.add((now - history.lastNanos) / 1e6);
+            history.lastNanos = now;
+        }
+    }
+
+    /**
+     * Gets how strongly a peer is suspected to have failed
+     * @param id the guid of the peer
+     * @return phi, or 0 if the peer has never answered
+     */
+    public double phi(long id) {
+        History history = histories.get(id);
+        if (history == null) return 0;
+        synchronized(history) {
+            return history.phi(System.nanoTime());
+        }
+    }
+
+    /**
+     * Tells whether a peer has probably failed
+     * @param id the guid of the peer
+     * @return true if phi is past the threshold
+     */
+    public boolean isSuspected(long id) {
+        return phi(id) >= THRESHOLD;
+    }
+
+    /**
+     * Forgets the peers that are no longer watched, so they aren't suspected only for no longer being sent heartbeats
+     * @param ids the guids of the peers still watched
+     */
+    public void retain(Set<Long> ids) {
+        histories.keySet().retainAll(ids);
+    }
+
+    /**
+     * Gets the peers that are suspected
+     * @return the guids of the peers with phi past the threshold
+     */
+    public Set<Long> suspects() {
+        Set<Long> suspects = new TreeSet<>();
+        for (long id : histories.keySet())
+            if (isSuspected(id)) suspects.add(id);
+        return suspects;
+    }
+
+    /**
+     * Describes the peers being watched
+     * @return the number of peers watched and phi of each suspected one
+     */
+    public String report() {
+        StringBuilder suspects = new StringBuilder();
+        for (long id : suspects()) suspects.append(String.format(" %d (phi %.1f)", id, phi(id)));
+        return String.format("%d peers watched, %s", histories.size(), suspects.length() == 0 ? "none suspected" : "suspected:" + suspects);
+    }
+}
@@ -0,0 +1,171 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Class stores each file on its own in the repository directory, named by its global unique identifier.
+ * Manifests and descriptors get a suffix naming their kind, so the kind survives a restart
+ */
+public class FileStore implements ObjectStore {
+    public static final int MAP_THRESHOLD = 256 * 1024; // Reads at least this big go through a memory map
+    private static final String[] SUFFIXES = { "", ".manifest", ".descriptor" }; // Added to the name of each kind of file
+
+    private final Path repository; // Directory the files are stored in
+    private final Map<Long, Integer> kinds = new ConcurrentHashMap<>(); // Kind of every file that isn't plain
+
+    /**
+     * Constructor for the FileStore class
+     * @param repository the directory to store the files in
+     */
+    public FileStore(Path repository) {
+        this.repository = repository;
+    }
+
+    /**
+     * Adds every file in the repository to an index
+     * @param index the index to fill
+     * @throws IOException if the repository can't be listed
+     */
+    public void load(KeyIndex index) throws IOException {
+        File[] files = repository.toFile().listFiles();
+        if (files == null) return;
+        Map<Long, File> newest = new HashMap<>();
+        for (File file : files) {
+            // Ignores system files like .DS_store, for example
+            if (!file.getName().matches("[0-9]+(\\.manifest|\\.descriptor)?")) continue;
+            long guidObject = Long.parseLong(file.getName().replaceFirst("\\..*", ""));
+            File other = newest.get(guidObject);
+            // A crash while a file changed kind leaves both names behind, and the older one is stale
+            if (other != null && other.lastModified() > file.lastModified()) {
+                Files.deleteIfExists(file.toPath());
+                continue;
+            }
+            if (other != null) Files.deleteIfExists(other.toPath());
+            newest.put(guidObject, file);
+        }
+        newest.forEach((guidObject, file) -> {
+            int kind = kindOf(file.getName());
+            if (kind != KeyIndex.PLAIN) kinds.put(guidObject, kind);
+            index.put(guidObject, file.length(), KeyIndex.newVersion(kind), KeyIndex.UNKNOWN_CHECKSUM); // Only the data is kept
+        });
+    }
+
+    /**
+     * Moves a fully received file into the repository, replacing any older version. With durable writes
+     * the data is forced first, so a crash never leaves the new name pointing at a half-written file
+     * @param guidObject the global unique identifier of the file
+     * @param staged where the file was received
+     * @param kind the kind of the file from KeyIndex
+     * @throws IOException
+     */
+    public void commit(long guidObject, Path staged, int kind) throws IOException {
+        if (GroupCommit.ENABLED) GroupCommit.force(staged);
+        synchronized(kinds) {
+            // A plain replacing move deletes the old file before renaming, which races with a concurrent commit of the key
+            int previous = kinds.getOrDefault(guidObject, KeyIndex.PLAIN);
+            Files.move(staged, path(guidObject, kind), StandardCopyOption.ATOMIC_MOVE);
+            if (kind == KeyIndex.PLAIN) kinds.remove(guidObject);
+            else kinds.put(guidObject, kind);
+            // A file that changed kind leaves its old name behind
+            if (previous != kind) Files.deleteIfExists(path(guidObject, previous));
+        }
+    }
+
+    /**
+     * Writes a file that is already in memory
+     * @param guidObject the global unique identifier of the file
+     * @param data the data of the file
+     * @param kind the kind of the file from KeyIndex
+     * @throws IOException
+     */
+    public void write(long guidObject, byte[] data, int kind) throws IOException {
+        // Written beside the final name first so readers never see a half-written file, under a name of
+        // its own so concurrent writes of the same key never share it
+        Path staged = Files.createTempFile(repository, String.format(".%d.", guidObject), ".write.part");
+        try {
+            Files.write(staged, data);
+            commit(guidObject, staged, kind);
+        } catch(IOException e) {
+            Files.deleteIfExists(staged);
+            throw e;
+        }
+    }
+
+    /**
+     * Reads part of a file
+     * @param guidObject the global unique identifier of the file
+     * @param offset where to start reading
+     * @param length the maximum number of bytes to read
+     * @return the data, which is shorter than length at the end of the file
+     * @throws IOException if the file doesn't exist
+     */
+    public byte[] read(long guidObject, long offset, int length) throws IOException {
+        try (FileChannel input = FileChannel.open(path(guidObject), StandardOpenOption.READ)) {
+            int count = (int)Math.max(0, Math.min(length, input.size() - offset));
+            byte[] chunk = new byte[count];
+
+            // Large chunks are copied straight out of the page cache, small ones are cheaper to read
+            if (count >= MAP_THRESHOLD) {
+                input.map(FileChannel.MapMode.READ_ONLY, offset, count).get(chunk);
+            } else {
+                ByteBuffer buffer = ByteBuffer.wrap(chunk);
+                while (buffer.hasRemaining() && input.read(buffer, offset + buffer.position()) != -1);
+            }
+            return chunk;
+        }
+    }
+
+    /**
+     * Removes a file
+     * @param guidObject the global unique identifier of the file
+     * @throws IOException if the file doesn't exist
+     */
+    public void delete(long guidObject) throws IOException {
+        synchronized(kinds) {
+            Files.delete(path(guidObject));
+            kinds.remove(guidObject);
+        }
+    }
+
+    /**
+     * Makes every file committed or deleted so far survive a crash. Each file's data was forced when it
+     * was committed, so only the renames and deletions in the repository are left to force
+     * @throws IOException if the repository couldn't be forced
+     */
+    public void sync() throws IOException {
+        GroupCommit.forceDirectory(repository);
+    }
+
+    /**
+     * Gets where a file is stored
+     * @param guidObject the global unique identifier of the file
+     * @return the path of the file, named for its current kind
+     */
+    private Path path(long guidObject) {
+        return path(guidObject, kinds.getOrDefault(guidObject, KeyIndex.PLAIN));
+    }
+
+    /**
+     * Gets where a file of a given kind is stored
+     * @param guidObject the global unique identifier of the file
+     * @param kind the kind of the file from KeyIndex
+     * @return the path of the file
+     */
+    private Path path(long guidObject, int kind) {
+        return repository.resolve(guidObject + SUFFIXES[kind]);
+    }
+
+    /**
+     * Gets the kind of a file from its name in the repository
+     * @param name the name of the file
+     * @return the kind of the file from KeyIndex
+     */
+    private static int kindOf(String name) {
+        for (int kind = SUFFIXES.length - 1; kind > KeyIndex.PLAIN; kind--)
+            if (name.endsWith(SUFFIXES[kind])) return kind;
+        return KeyIndex.PLAIN;
+    }
+}
@@ -1,35 +1,230 @@
 import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
 
+/**
+ * Class reads a file stored on a peer, fetching it one chunk at a time, compressed when both peers compress
+ */
 public class FileStream extends InputStream implements Serializable {
-    private int currentPosition;
-    private byte[] byteBuffer;
-    private int size;
+    private static final long serialVersionUID = 1L;
+
+    private ChordNode source; // The peer that stores the file
+    private long guidObject; // The global unique identifier of the file
+    private long currentPosition;
+    private long size;
+    private long end; // Where the stream stops, the size of the file unless only a range is read
+    private long version; // The version of the file being read, 0 if unknown
+    private boolean hot; // True if the peer that opened the stream has seen many reads of the file lately
+    private long checksum = KeyIndex.UNKNOWN_CHECKSUM; // CRC32 the peer that opened the stream has for the whole file
+
+    private transient long requestedPosition; // Offset of the next chunk to prefetch
+    private transient Deque<Future<byte[]>> prefetched; // Chunks requested ahead of the reader
+    private transient byte[] chunk; // The chunk currently being read
+    private transient int chunkPosition;
 
     public FileStream() {
         currentPosition = 0;
     }
 
-    public FileStream(String pathName) throws IOException {
-        File file = new File(pathName);
-        size = (int)file.length();
-        byteBuffer = new byte[size];
+    /**
+     * Constructor for the FileStream class
+     * @param source the peer that stores the file
+     * @param guidObject the global unique identifier of the file
+     * @throws IOException if the peer doesn't have the file
+     */
+    public FileStream(ChordNode source, long guidObject) throws IOException {
+        this(source, guidObject, source.stub.getSize(guidObject));
+    }
 
-        FileInputStream fileInputStream = new FileInputStream(pathName);
-        int i = 0;
-        while (fileInputStream.available() > 0) {
-            byteBuffer[i++] = (byte)fileInputStream.read();
-        }
-        fileInputStream.close();
-        currentPosition = 0;
+    /**
+     * Constructor for the FileStream class when the size of the file is already known
+     * @param source the peer that stores the file
+     * @param guidObject the global unique identifier of the file
+     * @param size the size of the file in bytes
+     */
+    public FileStream(ChordNode source, long guidObject, long size) {
+        this(source, guidObject, size, 0);
+    }
+
+    /**
+     * Constructor for the FileStream class when the size and version of the file are already known
+     * @param source the peer that stores the file
+     * @param guidObject the global unique identifier of the file
+     * @param size the size of the file in bytes
+     * @param version the version of the file, so the receiver can cache it or store it unchanged
+     */
+    public FileStream(ChordNode source, long guidObject, long size, long version) {
+        this(source, guidObject, size, version, 0, size);
+    }
+
+    /**
+     * Constructor for the FileStream class that reads a range of the file
+     * @param source the peer that stores the file
+     * @param guidObject the global unique identifier of the file
+     * @param size the size of the file in bytes
+     * @param version the version of the file, or 0 if unknown
+     * @param offset where the range starts
+     * @param length the length of the range, which is cut short at the end of the file
+     */
+    public FileStream(ChordNode source, long guidObject, long size, long version, long offset, long length) {
+        this.source = source;
+        this.guidObject = guidObject;
+        this.size = size;
+        this.version = version;
+        currentPosition = Math.min(offset, size);
+        end = currentPosition + Math.min(length, size - currentPosition);
+    }
+
+    /**
+     * Accessor for the version of the file
+     * @return the version of the file, or 0 if unknown
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Accessor for whether the file is hot, which hints to a reader that its next reads are worth sending
+     * along the lookup route, where peers may hold copies of it
+     * @return true if the peer that opened the stream has seen many reads of the file lately
+     */
+    public boolean isHot() {
+        return hot;
+    }
+
+    /**
+     * Mutator for whether the file is hot
+     * @param hot true if the peer opening the stream has seen many reads of the file lately
+     */
+    public void setHot(boolean hot) {
+        this.hot = hot;
+    }
+
+    /**
+     * Accessor for the checksum of the whole file, which a peer copying the file checks what it received against
+     * @return the CRC32 of the file, or KeyIndex.UNKNOWN_CHECKSUM
+     */
+    public long getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * Mutator for the checksum of the whole file
+     * @param checksum the CRC32 of the file, or KeyIndex.UNKNOWN_CHECKSUM
+     */
+    public void setChecksum(long checksum) {
+        this.checksum = checksum;
+    }
+
+    /**
+     * Accessor for the peer that stores the file
+     * @return the peer the chunks are fetched from
+     */
+    public ChordNode getSource() {
+        return source;
+    }
+
+    /**
+     * Accessor for the global unique identifier of the file
+     * @return the key of the file
+     */
+    public long getGuidObject() {
+        return guidObject;
+    }
+
+    /**
+     * Accessor for the size of the file
+     * @return the size of the file in bytes
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Accessor for where the stream is in the file
+     * @return the offset of the next byte read
+     */
+    public long getPosition() {
+        return currentPosition;
+    }
+
+    /**
+     * Accessor for where the stream stops
+     * @return the offset just past the last byte the stream reads
+     */
+    public long getEnd() {
+        return end;
     }
 
     public int read() throws IOException {
-        if (currentPosition < size)
-            return (int)byteBuffer[currentPosition++];
-        return 0;
+        if (!fillChunk()) return -1;
+        currentPosition++;
+        return chunk[chunkPosition++] & 0xff;
+    }
+
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) return 0;
+        if (!fillChunk()) return -1;
+
+        int count = Math.min(length, chunk.length - chunkPosition);
+        System.arraycopy(chunk, chunkPosition, buffer, offset, count);
+        chunkPosition += count;
+        currentPosition += count;
+        return count;
     }
 
     public int available() throws IOException {
-        return size - currentPosition;
+        return (int)Math.min(Integer.MAX_VALUE, end - currentPosition);
+    }
+
+    /**
+     * Skips ahead without fetching the skipped chunks, so a download can resume part way through
+     * @param n the number of bytes to skip
+     * @return the number of bytes skipped
+     * @throws IOException
+     */
+    public long skip(long n) throws IOException {
+        long skipped = Math.max(0, Math.min(n, end - currentPosition));
+        if (chunk != null && chunkPosition + skipped <= chunk.length) {
+            chunkPosition += (int)skipped;
+        } else {
+            close(); // The chunks fetched ahead are before the new position or were asked for from the old one
+        }
+        currentPosition += skipped;
+        return skipped;
+    }
+
+    public void close() throws IOException {
+        if (prefetched != null) prefetched.forEach(f -> f.cancel(true));
+        prefetched = null;
+        chunk = null;
+    }
+
+    /**
+     * Makes sure there are unread bytes in the current chunk, keeping the prefetch window full
+     * @return false if the end of the file was reached
+     * @throws IOException if a chunk could not be fetched
+     */
+    private boolean fillChunk() throws IOException {
+        if (chunk != null && chunkPosition < chunk.length) return true;
+        if (currentPosition >= end) return false;
+
+        if (prefetched == null) {
+            prefetched = new ArrayDeque<>();
+            requestedPosition = currentPosition;
+        }
+        while (prefetched.size() < FileTransfer.WINDOW && requestedPosition < end) {
+            final long offset = requestedPosition;
+            final int length = (int)Math.min(FileTransfer.CHUNK_SIZE, end - offset);
+            // Chunks are unpacked on the threads that fetched them, so several are unpacked at once
+            prefetched.addLast(FileTransfer.executor.submit(() ->
+                Compression.unpack(CallTimeout.bulk(() -> source.stub.getPackedChunk(guidObject, offset, length, Compression.CODECS)))));
+            requestedPosition += length;
+        }
+
+        chunk = FileTransfer.await(prefetched.removeFirst());
+        chunkPosition = 0;
+        if (chunk.length == 0) throw new EOFException(String.format("%d ended early at byte %d", guidObject, currentPosition));
+        return true;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,181 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Class moves file data between peers as a sequence of fixed-size chunks
+ */
+public class FileTransfer {
+    public static final int CHUNK_SIZE = 1 << 20; // Bytes sent per chunk
+    public static final int WINDOW = 4; // Maximum number of chunks in flight per transfer
+    public static final int BATCH_KEYS = 256; // Maximum number of small files sent together when keys move
+    public static final int BATCH_BYTES = 4 * CHUNK_SIZE; // Maximum size of a batch of small files
+    public static final int BATCH_WINDOW = 4; // Maximum number of batches in flight when keys move
+    public static long migrationBytesPerSecond = 64L << 20; // Bandwidth keys may use when they move, 0 for no limit
+
+    // Shared pool of daemon threads that carry chunk calls to remote peers
+    static final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "file-transfer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Streams data to a peer in chunks, keeping at most WINDOW chunks in flight. Each chunk is compressed
+     * on the thread that sends it, so the chunks in flight are compressed in parallel
+     * @param peer the peer that will store the data
+     * @param guidObject the global unique identifier of the file
+     * @param source the data of the file
+     * @return the number of bytes sent
+     * @throws IOException if reading the source or sending any chunk fails
+     */
+    public static long upload(ChordMessageInterface peer, long guidObject, InputStream source) throws IOException {
+        return upload(peer, guidObject, source, KeyIndex.PLAIN);
+    }
+
+    /**
+     * Streams a file of a given kind to a peer in chunks
+     * @param peer the peer that will store the data
+     * @param guidObject the global unique identifier of the file
+     * @param source the data of the file
+     * @param kind the kind of the file from KeyIndex
+     * @return the number of bytes sent
+     * @throws IOException if reading the source or sending any chunk fails
+     */
+    public static long upload(ChordMessageInterface peer, long guidObject, InputStream source, int kind) throws IOException {
+        long transferId = peer.openTransfer(guidObject, kind);
+        Deque<Future<Void>> inFlight = new ArrayDeque<>();
+        long offset = 0;
+        try {
+            byte[] chunk;
+            // Read the next chunk from disk while the previous ones are still on the wire
+            while ((chunk = readChunk(source)) != null) {
+                if (inFlight.size() == WINDOW) await(inFlight.removeFirst());
+
+                final byte[] data = chunk;
+                final long position = offset;
+                inFlight.addLast(executor.submit(() -> {
+                    CallTimeout.bulk(() -> peer.putPackedChunk(transferId, position, Compression.pack(data, Compression.CODECS)));
+                    return null;
+                }));
+                offset += chunk.length;
+            }
+            while (!inFlight.isEmpty()) await(inFlight.removeFirst());
+
+            CallTimeout.bulk(() -> peer.commitTransfer(transferId)); // Waits while the file is copied to the replicas
+        } catch(IOException e) {
+            inFlight.forEach(f -> f.cancel(true));
+            try {
+                peer.abortTransfer(transferId);
+            } catch(IOException e2) {}
+            throw e;
+        }
+        return offset;
+    }
+
+    /**
+     * Opens a file on whichever of its copies answers first, which spreads the reads of a
+     * popular file over every peer that holds it and steers them away from busy peers
+     * @param owner the peer responsible for the file
+     * @param guidObject the global unique identifier of the file
+     * @return a stream that fetches the data of the file in chunks
+     * @throws IOException if no copy of the file could be opened
+     */
+    public static InputStream openFastest(ChordMessageInterface owner, long guidObject) throws IOException {
+        ChordNode[] replicas = owner.getReplicaSet(guidObject); // Also makes sure owner is responsible for the file
+        if (replicas.length == 0) return owner.get(guidObject);
+
+        CompletionService<InputStream> race = new ExecutorCompletionService<>(executor);
+        List<Future<InputStream>> requests = new ArrayList<>();
+        requests.add(race.submit(() -> owner.get(guidObject)));
+        for (ChordNode replica : replicas) requests.add(race.submit(() -> replica.stub.getReplica(guidObject)));
+
+        IOException failure = null;
+        try {
+            for (int i = 0; i < requests.size(); i++) {
+                try {
+                    return await(race.take());
+                } catch(IOException e) {
+                    failure = e;
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Read interrupted");
+                }
+            }
+        } finally {
+            requests.forEach(f -> f.cancel(true));
+        }
+        throw failure;
+    }
+
+    /**
+     * Copies a stream into another one chunk at a time
+     * @param source the stream to read, such as the FileStream returned by get
+     * @param sink where the data is written
+     * @return the number of bytes copied
+     * @throws IOException if reading or writing fails
+     */
+    public static long copy(InputStream source, OutputStream sink) throws IOException {
+        byte[] buffer = new byte[CHUNK_SIZE];
+        long total = 0;
+        int read;
+        while ((read = source.read(buffer)) != -1) {
+            sink.write(buffer, 0, read);
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * Reads up to CHUNK_SIZE bytes from a stream
+     * @param source the stream to read
+     * @return the bytes read, or null at the end of the stream
+     * @throws IOException
+     */
+    static byte[] readChunk(InputStream source) throws IOException {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        int length = 0, read;
+        while (length < CHUNK_SIZE && (read = source.read(chunk, length, CHUNK_SIZE - length)) != -1)
+            length += read;
+
+        if (length == 0) return null;
+        return length == CHUNK_SIZE ? chunk : Arrays.copyOf(chunk, length);
+    }
+
+    /**
+     * Sleeps long enough to keep a migration within migrationBytesPerSecond
+     * @param startNanos when the migration started, from System.nanoTime
+     * @param bytesSent the number of bytes already sent
+     * @throws InterruptedIOException if interrupted while sleeping
+     */
+    static void pace(long startNanos, long bytesSent) throws InterruptedIOException {
+        if (migrationBytesPerSecond <= 0) return;
+        long dueNanos = startNanos + bytesSent * 1000000000L / migrationBytesPerSecond;
+        long waitMillis = (dueNanos - System.nanoTime()) / 1000000;
+        if (waitMillis <= 0) return;
+        try {
+            Thread.sleep(waitMillis);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Migration interrupted");
+        }
+    }
+
+    /**
+     * Waits for a chunk call to finish and unwraps its failure
+     * @param future the pending chunk call
+     * @return the result of the call
+     * @throws IOException if the call failed
+     */
+    static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch(ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException)e.getCause();
+            throw new IOException(e.getCause());
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Transfer interrupted");
+        }
+    }
+}
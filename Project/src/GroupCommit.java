@@ -0,0 +1,138 @@
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class makes the writes to a store survive a crash before they are acknowledged, picked with
+ * -Dchord.durability. With none, the default, writes are flushed whenever the operating system gets to
+ * them. With fsync every write forces the store on its own, and with group a write that arrives while a
+ * force is running waits for the next one, so all the writes that piled up meanwhile share a single
+ * force and durable writes get faster with concurrency instead of being held to one per disk flush
+ */
+public class GroupCommit {
+    public enum Mode { NONE, FSYNC, GROUP }
+
+    public static final Mode MODE = parse(System.getProperty("chord.durability", "none"));
+    public static final boolean ENABLED = MODE != Mode.NONE;
+
+    static final LongAdder syncs = new LongAdder(); // Forces run by every store
+    static final LongAdder commits = new LongAdder(); // Writes made durable by them
+
+    /**
+     * The writes that are waiting for the same force
+     */
+    private static class Batch {
+        int writes;
+        boolean done;
+        IOException failure; // Why the force failed, or null if it succeeded
+    }
+
+    private final ObjectStore store;
+    private Batch open = new Batch(); // Writes that arrived since the last force started
+    private boolean syncing; // True while a force is running
+
+    /**
+     * Constructor for the GroupCommit class
+     * @param store the store whose writes are made durable
+     */
+    public GroupCommit(ObjectStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Waits until a write already applied to the store is durable. With group commit the first write to
+     * find no force running forces the store for every write that is waiting, and the writes arriving
+     * meanwhile wait for the force after it
+     * @throws IOException if the store couldn't be forced, in which case the write may be lost in a crash
+     */
+    public void await() throws IOException {
+        if (MODE == Mode.NONE) return;
+        if (MODE == Mode.FSYNC) {
+            store.sync();
+            syncs.increment();
+            commits.increment();
+            return;
+        }
+
+        Batch batch;
+        synchronized(this) {
+            batch = open;
+            batch.writes++;
+            try {
+                while (syncing && !batch.done) wait();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a write to be forced");
+            }
+            if (batch.done) {
+                if (batch.failure == null) return;
+                throw new SyncFailedException(String.format("Write wasn't forced -> %s", batch.failure.getMessage()));
+            }
+            syncing = true;
+            open = new Batch();
+        }
+
+        IOException failure = new SyncFailedException("Store force was interrupted");
+        try {
+            store.sync();
+            failure = null;
+        } catch(IOException e) {
+            failure = e;
+        } finally {
+            synchronized(this) {
+                batch.done = true;
+                batch.failure = failure;
+                syncing = false;
+                notifyAll();
+            }
+        }
+        if (failure != null) throw failure;
+        syncs.increment();
+        commits.add(batch.writes);
+    }
+
+    /**
+     * Forces the entries of a directory, so files created, renamed or deleted in it stay that way after a crash
+     * @param directory the directory
+     * @throws IOException if the directory couldn't be forced
+     */
+    public static void forceDirectory(Path directory) throws IOException {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch(AccessDeniedException e) {} // Windows can't open a directory, and makes renames durable on its own
+    }
+
+    /**
+     * Forces the data of a file
+     * @param file the file
+     * @throws IOException if the file couldn't be forced
+     */
+    public static void force(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Describes how durable writes are
+     * @return the mode and how many writes shared each force
+     */
+    public static String report() {
+        long forced = syncs.sum(), writes = commits.sum();
+        return String.format("%s, %d writes made durable by %d forces (%.1f writes each)", MODE.name().toLowerCase(), writes, forced,
+                forced == 0 ? 0.0 : (double)writes / forced);
+    }
+
+    /**
+     * Reads the mode of -Dchord.durability
+     * @param mode none, fsync or group
+     * @return the mode
+     * @throws IllegalArgumentException if the mode is none of those
+     */
+    private static Mode parse(String mode) {
+        for (Mode candidate : Mode.values())
+            if (candidate.name().equalsIgnoreCase(mode.trim())) return candidate;
+        throw new IllegalArgumentException(String.format("-Dchord.durability must be none, fsync or group, not %s", mode));
+    }
+}
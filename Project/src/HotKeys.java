@@ -0,0 +1,60 @@
+/**
+ * Class estimates how often each key has been asked for lately with a count-min sketch, so a chord can
+ * tell hot keys apart from the rest in a fixed amount of memory however many keys pass through it.
+ * Each key bumps one counter in each of DEPTH rows, and its count is the smallest of those counters,
+ * which can only overestimate. Every counter is halved once per DECAY_MILLIS, so a key that stops being
+ * asked for cools down and counts measure recent requests rather than all of them
+ */
+public class HotKeys {
+    public static final int THRESHOLD = Integer.getInteger("chord.hotThreshold", 32); // Requests within about one decay period that make a key hot
+    public static final int DEPTH = 4; // Rows of counters, each with its own hash
+    public static final int WIDTH = 1024; // Counters in each row, a power of two
+    public static final long DECAY_MILLIS = 10000; // How often every count is halved
+
+    private final int[][] counts = new int[DEPTH][WIDTH];
+    private long decayedAt = System.nanoTime(); // When the counts were last halved
+
+    /**
+     * Counts a request for a key
+     * @param key the global unique identifier key
+     * @return the estimated number of recent requests for the key, including this one
+     */
+    public synchronized int add(long key) {
+        long now = System.nanoTime();
+        if (now - decayedAt > DECAY_MILLIS * 1000000) {
+            for (int[] row : counts)
+                for (int i = 0; i < WIDTH; i++) row[i] >>>= 1;
+            decayedAt = now;
+        }
+
+        int estimate = Integer.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            int slot = slot(key, row);
+            if (counts[row][slot] < Integer.MAX_VALUE) counts[row][slot]++;
+            estimate = Math.min(estimate, counts[row][slot]);
+        }
+        return estimate;
+    }
+
+    /**
+     * Tells whether a key is hot
+     * @param count the estimated number of recent requests for the key
+     * @return true if the count reached THRESHOLD, which never happens with a threshold of 0
+     */
+    public static boolean isHot(int count) {
+        return THRESHOLD > 0 && count >= THRESHOLD;
+    }
+
+    /**
+     * Picks the counter of a key in a row, with a different mix of the key's bits for every row
+     * @param key the global unique identifier key
+     * @param row the row
+     * @return the position of the counter in the row
+     */
+    private static int slot(long key, int row) {
+        long x = key + (row + 1) * 0x9e3779b97f4a7c15L;
+        x = (x ^ x >>> 33) * 0xff51afd7ed558ccdL;
+        x = (x ^ x >>> 33) * 0xc4ceb9fe1a85ec53L;
+        return (int)(x ^ x >>> 33) & (WIDTH - 1);
+    }
+}
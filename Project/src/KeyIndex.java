@@ -0,0 +1,267 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+
+/**
+ * Class keeps the keys stored by a chord in sorted primitive arrays, along with the size, version and
+ * checksum of each file. The checksum is the CRC32 of the whole file, or UNKNOWN_CHECKSUM when the file
+ * was loaded from a store that doesn't keep one or arrived in a way that couldn't be checked
+ */
+public class KeyIndex {
+    private long[] keys = new long[16]; // Sorted keys, only the first count are used
+    private long[] sizes = new long[16]; // Size in bytes of the file for the key at the same position
+    private long[] versions = new long[16]; // Version of the file for the key at the same position
+    private long[] checksums = new long[16]; // CRC32 of the file for the key at the same position
+    private int count;
+    private long totalBytes;
+
+    // Kinds of file, named by the client that writes the file and kept in the low bits of its version
+    public static final int PLAIN = 0; // The data of the file itself
+    public static final int MANIFEST = 1; // A Dedup manifest listing the chunks of the file
+    public static final int DESCRIPTOR = 2; // An Erasure descriptor of the fragments of the file
+    private static final int KIND_MASK = 3;
+
+    public static final long UNKNOWN_CHECKSUM = -1; // The checksum of a file that was never computed
+    private static final long CRC_POLYNOMIAL = 0xedb88320L; // Reversed CRC32 polynomial, as java.util.zip uses
+
+    /**
+     * Picks a version for new contents of a plain file
+     * @return a version other than 0, which means unknown
+     */
+    public static long newVersion() {
+        return newVersion(PLAIN);
+    }
+
+    /**
+     * Picks a version for new contents of a file. Versions are random so that two chords never hand
+     * out the same version for different contents of the same key, except for the low bits, which
+     * carry the kind of the file wherever the version goes
+     * @param kind PLAIN, MANIFEST or DESCRIPTOR
+     * @return a version other than 0, which means unknown
+     * @throws IllegalArgumentException if the kind is none of those
+     */
+    public static long newVersion(int kind) {
+        if (kind < PLAIN || kind > DESCRIPTOR) throw new IllegalArgumentException(String.format("Unknown kind of file %d", kind));
+        long version;
+        do {
+            version = ThreadLocalRandom.current().nextLong() & ~KIND_MASK | kind;
+        } while (version == 0);
+        return version;
+    }
+
+    /**
+     * Gets the kind of a file from its version
+     * @param version the version of the file, or 0 if it is unknown
+     * @return PLAIN, MANIFEST or DESCRIPTOR
+     */
+    public static int kind(long version) {
+        return (int)(version & KIND_MASK);
+    }
+
+    /**
+     * Computes the checksum of a whole file
+     * @param data the data of the file
+     * @return the CRC32 of the data
+     */
+    public static long checksum(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+
+    /**
+     * Computes the checksum of two pieces of a file put together, as zlib's crc32_combine does, so a file
+     * received in chunks that arrive in any order is checked without reading it again
+     * @param first the CRC32 of the first piece
+     * @param second the CRC32 of the piece that follows it
+     * @param secondLength the length of the second piece in bytes
+     * @return the CRC32 of both pieces, one after the other
+     */
+    public static long combine(long first, long second, long secondLength) {
+        if (secondLength <= 0) return first;
+
+        // Appending n zero bytes to the first piece is a linear map over GF(2), squared up from one zero bit
+        long[] even = new long[32], odd = new long[32];
+        odd[0] = CRC_POLYNOMIAL;
+        for (int n = 1; n < 32; n++) odd[n] = 1L << (n - 1);
+        square(even, odd); // Two zero bits
+        square(odd, even); // Four zero bits
+        do {
+            square(even, odd);
+            if ((secondLength & 1) != 0) first = times(even, first);
+            secondLength >>= 1;
+            if (secondLength == 0) break;
+            square(odd, even);
+            if ((secondLength & 1) != 0) first = times(odd, first);
+            secondLength >>= 1;
+        } while (secondLength != 0);
+        return first ^ second;
+    }
+
+    /**
+     * Multiplies a vector by a matrix over GF(2)
+     * @param matrix the columns of the matrix
+     * @param vector the vector, a bit per row
+     * @return the product
+     */
+    private static long times(long[] matrix, long vector) {
+        long sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1)
+            if ((vector & 1) != 0) sum ^= matrix[i];
+        return sum;
+    }
+
+    /**
+     * Squares a matrix over GF(2)
+     * @param square where the square is put
+     * @param matrix the matrix
+     */
+    private static void square(long[] square, long[] matrix) {
+        for (int n = 0; n < 32; n++) square[n] = times(matrix, matrix[n]);
+    }
+
+    /**
+     * Adds a key or updates its size, version and checksum
+     * @param key the global unique identifier of the file
+     * @param size the size of the file in bytes
+     * @param version the version of the contents of the file
+     * @param checksum the CRC32 of the file, or UNKNOWN_CHECKSUM
+     */
+    public synchronized void put(long key, long size, long version, long checksum) {
+        int i = Arrays.binarySearch(keys, 0, count, key);
+        if (i >= 0) {
+            totalBytes += size - sizes[i];
+            sizes[i] = size;
+            versions[i] = version;
+            checksums[i] = checksum;
+            return;
+        }
+
+        i = -(i + 1);
+        if (count == keys.length) {
+            keys = Arrays.copyOf(keys, count * 2);
+            sizes = Arrays.copyOf(sizes, count * 2);
+            versions = Arrays.copyOf(versions, count * 2);
+            checksums = Arrays.copyOf(checksums, count * 2);
+        }
+        System.arraycopy(keys, i, keys, i + 1, count - i);
+        System.arraycopy(sizes, i, sizes, i + 1, count - i);
+        System.arraycopy(versions, i, versions, i + 1, count - i);
+        System.arraycopy(checksums, i, checksums, i + 1, count - i);
+        keys[i] = key;
+        sizes[i] = size;
+        versions[i] = version;
+        checksums[i] = checksum;
+        count++;
+        totalBytes += size;
+    }
+
+    /**
+     * Removes a key
+     * @param key the global unique identifier of the file
+     * @return true if the key was in the index
+     */
+    public synchronized boolean remove(long key) {
+        int i = Arrays.binarySearch(keys, 0, count, key);
+        if (i < 0) return false;
+
+        totalBytes -= sizes[i];
+        System.arraycopy(keys, i + 1, keys, i, count - i - 1);
+        System.arraycopy(sizes, i + 1, sizes, i, count - i - 1);
+        System.arraycopy(versions, i + 1, versions, i, count - i - 1);
+        System.arraycopy(checksums, i + 1, checksums, i, count - i - 1);
+        count--;
+        return true;
+    }
+
+    /**
+     * Gets the size of the file for a key
+     * @param key the global unique identifier of the file
+     * @return the size of the file in bytes, or -1 if the key isn't in the index
+     */
+    public synchronized long size(long key) {
+        int i = Arrays.binarySearch(keys, 0, count, key);
+        return i < 0 ? -1 : sizes[i];
+    }
+
+    /**
+     * Gets the version of the file for a key
+     * @param key the global unique identifier of the file
+     * @return the version of the file, or 0 if the key isn't in the index
+     */
+    public synchronized long version(long key) {
+        int i = Arrays.binarySearch(keys, 0, count, key);
+        return i < 0 ? 0 : versions[i];
+    }
+
+    /**
+     * Gets the checksum of the file for a key
+     * @param key the global unique identifier of the file
+     * @return the CRC32 of the file, or UNKNOWN_CHECKSUM if it isn't known or the key isn't in the index
+     */
+    public synchronized long checksum(long key) {
+        int i = Arrays.binarySearch(keys, 0, count, key);
+        return i < 0 ? UNKNOWN_CHECKSUM : checksums[i];
+    }
+
+    /**
+     * Gets every key in the index
+     * @return the keys in ascending order
+     */
+    public synchronized long[] keys() {
+        return Arrays.copyOf(keys, count);
+    }
+
+    /**
+     * Gets the keys strictly between key1 and key2, wrapping around the ring like Chord.isKeyInOpenInterval
+     * @param key1 the lower-bound key
+     * @param key2 the upper-bound key
+     * @return the keys in the interval, in ring order starting after key1
+     */
+    public synchronized long[] keysInOpenInterval(long key1, long key2) {
+        int from = upperBound(key1), to = lowerBound(key2);
+        if (key1 < key2) return Arrays.copyOfRange(keys, from, Math.max(from, to));
+
+        // The interval wraps, so it is everything after key1 followed by everything before key2
+        long[] result = new long[(count - from) + to];
+        System.arraycopy(keys, from, result, 0, count - from);
+        System.arraycopy(keys, 0, result, count - from, to);
+        return result;
+    }
+
+    /**
+     * Accessor for the number of keys in the index
+     * @return the number of keys
+     */
+    public synchronized int count() {
+        return count;
+    }
+
+    /**
+     * Accessor for the total size of the files in the index
+     * @return the sum of the file sizes in bytes
+     */
+    public synchronized long totalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Finds the first position holding a key greater than or equal to a key
+     * @param key the key to search for
+     * @return the position in keys
+     */
+    private int lowerBound(long key) {
+        int i = Arrays.binarySearch(keys, 0, count, key);
+        return i >= 0 ? i : -(i + 1);
+    }
+
+    /**
+     * Finds the first position holding a key strictly greater than a key
+     * @param key the key to search for
+     * @return the position in keys
+     */
+    private int upperBound(long key) {
+        int i = Arrays.binarySearch(keys, 0, count, key);
+        return i >= 0 ? i + 1 : -(i + 1);
+    }
+}
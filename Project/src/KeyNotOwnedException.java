@@ -0,0 +1,17 @@
+import java.io.*;
+
+/**
+ * Thrown by a peer that is asked to store or serve a key outside the range it is responsible for
+ */
+public class KeyNotOwnedException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Constructor for the KeyNotOwnedException class
+     * @param key the global unique identifier key that was rejected
+     * @param guid the global unique identifier of the peer that rejected it
+     */
+    public KeyNotOwnedException(long key, long guid) {
+        super(String.format("%d is not responsible for key %d", guid, key));
+    }
+}
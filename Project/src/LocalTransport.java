@@ -0,0 +1,146 @@
+import java.io.*;
+import java.lang.reflect.*;
+import java.nio.*;
+import java.rmi.*;
+import java.rmi.server.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Class connects chords that all live in this process, so a ring of hundreds of peers can run in one
+ * JVM. Calls run on the caller's thread, but their arguments and results still go through the frames
+ * of Wire, so peers only ever share copies just as they would over a network, and the bytes they
+ * exchange can be counted. A latency and a failure rate can be injected into every call
+ */
+public class LocalTransport implements Transport {
+    private final Map<Integer, Map<Long, Chord>> chords = new ConcurrentHashMap<>(); // Exported chords by port and guid
+    private final Map<Integer, Chord> first = new ConcurrentHashMap<>(); // The chord peers join through at each port
+    private final Map<String, ChordMessageInterface> peers = new ConcurrentHashMap<>(); // Stubs by port and guid
+
+    volatile long latencyMicros; // Added to every call
+    volatile double failureRate; // Chance that a call fails as if the peer couldn't be reached
+    final LongAdder calls = new LongAdder();
+    final LongAdder bytes = new LongAdder(); // Request and response frames, as they would be sent
+    final LongAdder failures = new LongAdder(); // Calls failed by failureRate
+
+    /**
+     * Makes a chord reachable by the other chords of this transport
+     * @param chord the chord to serve
+     * @param port the port other chords reach it at, which only has to be unique within this transport
+     * @throws IOException if another chord already has the guid at the port
+     */
+    public synchronized void export(Chord chord, int port) throws IOException {
+        if (chords.computeIfAbsent(port, p -> new ConcurrentHashMap<>()).putIfAbsent(chord.guid, chord) != null)
+            throw new java.net.BindException(String.format("Chord %d is already at port %d", chord.guid, port));
+        first.putIfAbsent(port, chord);
+    }
+
+    /**
+     * Takes a chord off this transport, so every call to it fails as if it had crashed. When the first
+     * chord at a port goes, peers join through another chord at the port
+     * @param chord the chord
+     * @throws IOException if the chord couldn't be unexported
+     */
+    public synchronized void unexport(Chord chord) throws IOException {
+        int port = chord.self.port;
+        Map<Long, Chord> atPort = chords.get(port);
+        if (atPort != null && atPort.remove(chord.guid, chord)) {
+            if (atPort.isEmpty()) {
+                chords.remove(port);
+                first.remove(port);
+            } else if (first.get(port) == chord) first.put(port, atPort.values().iterator().next());
+        }
+        try {
+            UnicastRemoteObject.unexportObject(chord, true);
+        } catch(NoSuchObjectException e) {}
+    }
+
+    /**
+     * Gets the stub for a chord at a port. The address is the same for every chord in this process,
+     * so only the port is used
+     * @param ip the ip address of the peer
+     * @param port the port of the peer
+     * @param guid the guid of the chord, or FIRST
+     * @return a stub that calls the chord at the port
+     */
+    public ChordMessageInterface connect(String ip, int port, long guid) {
+        return peers.computeIfAbsent(port + "/" + guid, key -> (ChordMessageInterface)Proxy.newProxyInstance(
+                ChordMessageInterface.class.getClassLoader(), new Class<?>[] { ChordMessageInterface.class }, new Peer(port, guid)));
+    }
+
+    /**
+     * Describes the traffic carried so far
+     * @return the number of calls, bytes and injected failures
+     */
+    public String report() {
+        return String.format("%d calls, %d bytes, %d injected failures", calls.sum(), bytes.sum(), failures.sum());
+    }
+
+    /**
+     * The stub side of one chord at a port
+     */
+    private class Peer implements InvocationHandler {
+        final int port;
+        final long guid; // The guid of the chord, or FIRST
+
+        Peer(int port, long guid) {
+            this.port = port;
+            this.guid = guid;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                if (method.getName().equals("equals")) return proxy == args[0];
+                if (method.getName().equals("hashCode")) return Long.hashCode(guid) * 31 + port;
+                return String.format("LocalTransport stub for %d at port %d", guid, port);
+            }
+
+            calls.increment();
+            if (latencyMicros > 0) LockSupport.parkNanos(latencyMicros * 1000);
+            Map<Long, Chord> atPort = chords.get(port);
+            if (atPort == null) throw new ConnectException(String.format("Connection refused to port %d", port));
+            Chord chord = guid == FIRST ? first.get(port) : atPort.get(guid);
+            if (chord == null) throw new NoSuchObjectException(String.format("No chord %d at port %d", guid, port));
+            if (failureRate > 0 && ThreadLocalRandom.current().nextDouble() < failureRate) {
+                failures.increment();
+                throw new ConnectException(String.format("Injected failure calling %s on port %d", method.getName(), port));
+            }
+
+            // The arguments are decoded into fresh objects, as the peer would receive them
+            Wire.Frame request = decode(Wire.request(0, guid, method, args));
+            request.payload.readLong();
+            Class<?>[] types = method.getParameterTypes();
+            Object[] copies = new Object[types.length];
+            for (int i = 0; i < types.length; i++) copies[i] = Wire.read(request.payload, types[i], LocalTransport.this);
+
+            ByteBuffer response;
+            try {
+                response = Wire.response(0, method.getReturnType(), method.invoke(chord, copies));
+            } catch(InvocationTargetException e) {
+                response = Wire.failure(0, e.getCause());
+            }
+
+            Wire.Frame frame = decode(response);
+            if (frame.kind == Wire.OK) return Wire.read(frame.payload, method.getReturnType(), LocalTransport.this);
+
+            // Like RMI, a remote exception thrown by the peer itself arrives wrapped in a ServerException,
+            // while a chord that is no longer at the port is reported as is
+            Throwable failure = Wire.readFailure(frame.payload);
+            if (failure instanceof RemoteException && !(failure instanceof NoSuchObjectException)) throw new ServerException("Peer failed", (RemoteException)failure);
+            throw failure;
+        }
+
+        /**
+         * Counts a frame and reads it back as its receiver would
+         * @param frame the frame, starting with its length
+         * @return the decoded frame
+         */
+        Wire.Frame decode(ByteBuffer frame) {
+            bytes.add(frame.remaining());
+            frame.position(4);
+            return new Wire.Frame(frame.slice());
+        }
+    }
+}
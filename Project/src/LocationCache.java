@@ -0,0 +1,81 @@
+import java.util.*;
+
+/**
+ * Class remembers which peer owns which range of keys so repeated lookups can skip the ring
+ */
+public class LocationCache {
+    public static final int CAPACITY = 256; // Maximum number of ranges remembered
+
+    /**
+     * The keys in (start, owner] are owned by owner
+     */
+    private static class Range {
+        final long start, end;
+        final ChordNode owner;
+
+        Range(long start, ChordNode owner) {
+            this.start = start;
+            this.end = owner.id;
+            this.owner = owner;
+        }
+    }
+
+    private final TreeMap<Long, Range> ranges = new TreeMap<>(); // Ranges by their end key
+    private final LinkedHashMap<Long, Range> recent = new LinkedHashMap<Long, Range>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Range> eldest) {
+            if (size() <= CAPACITY) return false;
+            ranges.remove(eldest.getKey());
+            return true;
+        }
+    }; // The same ranges from least to most recently used
+
+    /**
+     * Finds the cached owner of a key
+     * @param key the global unique identifier key
+     * @return the peer that owned the key when it was cached, or null if no range covers it
+     */
+    public synchronized ChordNode get(long key) {
+        // The range that covers the key is the one with the first end at or after it, wrapping around the ring
+        Map.Entry<Long, Range> entry = ranges.ceilingEntry(key);
+        if (entry == null) entry = ranges.firstEntry();
+        if (entry == null) return null;
+
+        Range range = entry.getValue();
+        if (!isKeyInRange(key, range)) return null;
+        recent.get(range.end); // Mark the range as recently used
+        return range.owner;
+    }
+
+    /**
+     * Remembers that a peer owns a range of keys
+     * @param start the key just before the range, usually the id of the owner's predecessor
+     * @param owner the peer that owns the range, whose id is the last key of the range
+     */
+    public synchronized void put(long start, ChordNode owner) {
+        Range range = new Range(start, owner);
+        ranges.put(range.end, range);
+        recent.put(range.end, range);
+    }
+
+    /**
+     * Forgets every range owned by a peer, after it rejected a key or could not be reached
+     * @param owner the peer to forget
+     */
+    public synchronized void invalidate(ChordNode owner) {
+        ranges.remove(owner.id);
+        recent.remove(owner.id);
+    }
+
+    /**
+     * Determines if a key is in (start, end] of a range, where the range may wrap around the ring
+     * @param key the key to test
+     * @param range the range to test against
+     * @return true if the key is covered by the range
+     */
+    private static boolean isKeyInRange(long key, Range range) {
+        if (range.start == range.end) return true; // A lone peer owns the whole ring
+        if (range.start < range.end) return key > range.start && key <= range.end;
+        return key > range.start || key <= range.end;
+    }
+}
@@ -0,0 +1,179 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Class runs a chord's periodic maintenance tasks, each on its own schedule. A task that changes
+ * the ring, or any join or failure reported through disturb, sends every task back to its shortest
+ * interval so the ring recovers quickly. Each round that changes nothing doubles the interval of
+ * its task up to a maximum, so a stable ring does little background work
+ */
+public class Maintenance {
+    public static final int STABLE_ROUNDS = 3; // Rounds without a change each task needs before the ring counts as converged
+
+    private final ScheduledExecutorService executor;
+    private final List<Task> tasks = new ArrayList<>();
+    private boolean running = true;
+
+    private long disturbedAt = System.nanoTime(); // When the ring last started changing, 0 once it converged
+    private long lastChangeAt = disturbedAt; // When a task last changed the ring
+    private long lastConvergenceMillis = -1; // How long the ring took to stop changing the last time
+    private int convergences;
+
+    /**
+     * One round of maintenance
+     */
+    public interface Step {
+        /**
+         * Runs the round
+         * @return true if the round changed this chord's view of the ring
+         * @throws Exception if the round failed, which counts as a change
+         */
+        boolean run() throws Exception;
+    }
+
+    /**
+     * A maintenance step along with its schedule
+     */
+    private class Task implements Runnable {
+        final String name;
+        final Step step;
+        final long minMillis, maxMillis;
+        long intervalMillis;
+        int stableRounds;
+        long rounds;
+        boolean inProgress; // True while the step runs, when the task reschedules itself afterwards
+        ScheduledFuture<?> next;
+
+        Task(String name, Step step, long minMillis, long maxMillis) {
+            this.name = name;
+            this.step = step;
+            this.minMillis = minMillis;
+            this.maxMillis = maxMillis;
+            this.intervalMillis = minMillis;
+        }
+
+        public void run() {
+            synchronized(Maintenance.this) {
+                inProgress = true;
+            }
+
+            // A failure is caught here so it can never stop the schedule
+            boolean changed;
+            try {
+                changed = step.run();
+            } catch(Exception e) {
+                System.out.printf("Maintenance task %s failed -> %s\n", name, e);
+                changed = true;
+            }
+
+            synchronized(Maintenance.this) {
+                inProgress = false;
+                rounds++;
+                if (changed) disturb();
+                else {
+                    stableRounds++;
+                    intervalMillis = Math.min(maxMillis, intervalMillis * 2);
+                    checkConverged();
+                }
+                if (running) next = executor.schedule(this, intervalMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Constructor for the Maintenance class
+     * @param threads the number of tasks that may run at the same time
+     */
+    public Maintenance(int threads) {
+        executor = Executors.newScheduledThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "chord-maintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Adds a task and schedules its first round
+     * @param name the name of the task, used in reports
+     * @param minMillis the interval while the ring is changing
+     * @param maxMillis the interval once the ring is stable
+     * @param step the work done each round
+     */
+    public synchronized void schedule(String name, long minMillis, long maxMillis, Step step) {
+        Task task = new Task(name, step, minMillis, maxMillis);
+        tasks.add(task);
+        task.next = executor.schedule(task, minMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Reports that the ring changed, such as after a join or a failure, which makes every task run
+     * again within its shortest interval
+     */
+    public synchronized void disturb() {
+        long now = System.nanoTime();
+        if (disturbedAt == 0) disturbedAt = now;
+        lastChangeAt = now;
+
+        for (Task task : tasks) {
+            task.stableRounds = 0;
+            if (task.intervalMillis == task.minMillis) continue;
+            task.intervalMillis = task.minMillis;
+
+            // A waiting task is moved forward, a running one picks up the new interval when it finishes
+            if (!task.inProgress && task.next != null && task.next.getDelay(TimeUnit.MILLISECONDS) > task.minMillis && task.next.cancel(false))
+                task.next = executor.schedule(task, task.minMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Records how long the ring took to converge once every task has gone STABLE_ROUNDS rounds without a change
+     */
+    private void checkConverged() {
+        if (disturbedAt == 0) return;
+        for (Task task : tasks)
+            if (task.stableRounds < STABLE_ROUNDS) return;
+
+        lastConvergenceMillis = (lastChangeAt - disturbedAt) / 1000000;
+        convergences++;
+        disturbedAt = 0;
+        System.out.printf("Ring converged in %d ms\n", lastConvergenceMillis);
+    }
+
+    /**
+     * Accessor for how long the ring took to stop changing after it was last disturbed
+     * @return the time in milliseconds, or -1 if it hasn't converged yet
+     */
+    public synchronized long lastConvergenceMillis() {
+        return lastConvergenceMillis;
+    }
+
+    /**
+     * Tells whether the ring is still settling after a change
+     * @return true if the ring changed and hasn't converged since
+     */
+    public synchronized boolean isConverging() {
+        return disturbedAt != 0;
+    }
+
+    /**
+     * Describes the schedule of every task along with the convergence metrics
+     * @return a report with one line per task
+     */
+    public synchronized String report() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("Maintenance: %s, last convergence %s, %d convergences\n",
+                disturbedAt != 0 ? "converging" : "stable",
+                lastConvergenceMillis < 0 ? "none" : lastConvergenceMillis + " ms", convergences));
+        for (Task task : tasks)
+            report.append(String.format("  %s every %d ms, %d rounds\n", task.name, task.intervalMillis, task.rounds));
+        return report.toString();
+    }
+
+    /**
+     * Stops every task
+     */
+    public synchronized void shutdown() {
+        running = false;
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,335 @@
+import com.sun.net.httpserver.*;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Class collects the latencies, lookup hops, traffic and migration progress of a machine, shared by its
+ * virtual nodes. Recording only bumps striped counters and one histogram bucket, so it is cheap enough
+ * to leave on all the time.
+ * The metrics are printed by the stats command and can be served in the Prometheus text format
+ */
+public class Metrics {
+    public static final long CALLERS = -1; // Stands for the peer behind incoming calls, which isn't known
+    public static final int HOP_SAMPLE = 64; // One lookup in this many is repeated in the background to count its hops
+
+    /**
+     * The operations whose latency is recorded
+     */
+    public enum Op {
+        LOOKUP, PUT, PUT_BATCH, GET, GET_BATCH, DELETE, NOTIFY, STABILIZE;
+
+        String label() {
+            return name().toLowerCase();
+        }
+    }
+
+    private final Histogram[] latencies = new Histogram[Op.values().length]; // In nanoseconds
+    final Histogram hops = new Histogram(); // Hops of sampled lookups started here
+    final LongAdder lookupsForwarded = new LongAdder(); // Lookups this chord passed on to a finger
+    final LongAdder migratedKeys = new LongAdder(), migratedBytes = new LongAdder(), migrationFailedKeys = new LongAdder();
+    final LongAdder migrationPendingKeys = new LongAdder(); // Keys waiting to be handed over or copied to another peer
+    private final Map<Long, LongAdder> sent = new ConcurrentHashMap<>(), received = new ConcurrentHashMap<>(); // File bytes by peer
+
+    /**
+     * A histogram with buckets that grow with the value, so every recorded value is within 1/8 of
+     * the bucket it falls in. Values below 16 get a bucket each
+     */
+    static class Histogram {
+        private static final int SUB_BITS = 3; // Each power of two is split in 2^SUB_BITS buckets
+        private static final int BUCKETS = (64 - SUB_BITS) << SUB_BITS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder(), sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        /**
+         * Adds a value
+         * @param value the value, where negative values count as 0
+         */
+        void record(long value) {
+            value = Math.max(0, value);
+            counts.incrementAndGet(bucket(value));
+            count.increment();
+            sum.add(value);
+            if (value > max.get()) max.accumulateAndGet(value, Math::max);
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        long sum() {
+            return sum.sum();
+        }
+
+        long max() {
+            return max.get();
+        }
+
+        double mean() {
+            long n = count.sum();
+            return n == 0 ? 0 : (double)sum.sum() / n;
+        }
+
+        /**
+         * Gets a percentile of the values recorded so far
+         * @param percent the percentile, such as 99.9
+         * @return the highest value of the bucket the percentile falls in, at most the largest value, or 0 if there are none
+         */
+        long percentile(double percent) {
+            long n = count.sum();
+            if (n == 0) return 0;
+            long rank = Math.max(1, (long)Math.ceil(n * percent / 100)), seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts.get(i);
+                if (seen >= rank) return Math.min(highest(i), max.get());
+            }
+            return max.get();
+        }
+
+        /**
+         * Gets the bucket of a value
+         * @param value the value, at least 0
+         * @return the index of the bucket
+         */
+        private static int bucket(long value) {
+            if (value < 2 << SUB_BITS) return (int)value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            return ((exponent - SUB_BITS) << SUB_BITS) + (int)(value >>> (exponent - SUB_BITS));
+        }
+
+        /**
+         * Gets the highest value that falls in a bucket
+         * @param bucket the index of the bucket
+         * @return the value
+         */
+        private static long highest(int bucket) {
+            if (bucket < 2 << SUB_BITS) return bucket;
+            int exponent = (bucket >> SUB_BITS) + SUB_BITS - 1;
+            long mantissa = (bucket & ((1 << SUB_BITS) - 1)) + (1 << SUB_BITS);
+            return ((mantissa + 1) << (exponent - SUB_BITS)) - 1;
+        }
+    }
+
+    /**
+     * Constructor for the Metrics class
+     */
+    public Metrics() {
+        for (int i = 0; i < latencies.length; i++) latencies[i] = new Histogram();
+    }
+
+    /**
+     * Records how long an operation took
+     * @param op the operation
+     * @param startNanos the value of System.nanoTime() when the operation started
+     */
+    public void record(Op op, long startNanos) {
+        latencies[op.ordinal()].record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Counts file bytes sent to a peer
+     * @param peer the guid of the peer, or CALLERS for the replies to incoming calls
+     * @param bytes the number of bytes
+     */
+    public void sent(long peer, long bytes) {
+        sent.computeIfAbsent(peer, p -> new LongAdder()).add(bytes);
+    }
+
+    /**
+     * Counts file bytes received from a peer
+     * @param peer the guid of the peer, or CALLERS for incoming calls
+     * @param bytes the number of bytes
+     */
+    public void received(long peer, long bytes) {
+        received.computeIfAbsent(peer, p -> new LongAdder()).add(bytes);
+    }
+
+    /**
+     * Describes the metrics for a person to read
+     * @param chord the chord, for what it stores
+     * @return a report with a line per operation and per peer
+     */
+    public String report(Chord chord) {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%-10s %10s %10s %10s %10s %10s\n", "operation", "count", "p50 us", "p99 us", "p999 us", "max us"));
+        for (Op op : Op.values()) {
+            Histogram h = latencies[op.ordinal()];
+            report.append(String.format("%-10s %10d %10.1f %10.1f %10.1f %10.1f\n", op.label(), h.count(),
+                    h.percentile(50) / 1e3, h.percentile(99) / 1e3, h.percentile(99.9) / 1e3, h.max() / 1e3));
+        }
+        report.append(String.format("Lookup hops: %.2f average, %d p50, %d p99, %d max over %d sampled lookups, %d lookups forwarded\n",
+                hops.mean(), hops.percentile(50), hops.percentile(99), hops.max(), hops.count(), lookupsForwarded.sum()));
+        long[] stored = stored(chord);
+        report.append(String.format("Stored: %d keys (%d bytes), %d copies for predecessors (%d bytes), %d bytes in the read cache\n",
+                stored[0], stored[1], stored[2], stored[3], chord.cache.usedBytes()));
+        if (chord.colocated.size() > 1) {
+            report.append(String.format("Virtual nodes: %d, keys of each:", chord.colocated.size()));
+            for (Chord node : chord.colocated.values()) report.append(String.format(" %d=%d", node.guid, node.index.count()));
+            report.append('\n');
+        }
+        report.append(String.format("Migration: %d keys (%d bytes) handed over or copied, %d failed, %d pending\n",
+                migratedKeys.sum(), migratedBytes.sum(), migrationFailedKeys.sum(), migrationPendingKeys.sum()));
+        report.append(String.format("Compression: %s\n", Compression.report()));
+        report.append(String.format("Durability: %s\n", GroupCommit.report()));
+        report.append(String.format("Path cache: %d copies (%d bytes) of hot files, %d reads answered, %d copies fetched, %d invalidated, %d reads routed, %d routes failed\n",
+                chord.pathCache.count(), chord.pathCache.usedBytes(), PathCache.hits.sum(), PathCache.copies.sum(), PathCache.invalidations.sum(),
+                PathCache.routedReads.sum(), PathCache.routeFailures.sum()));
+        if (Dedup.ENABLED) report.append(String.format("Deduplication: %s\n", Dedup.report()));
+        if (Erasure.ENABLED) report.append(String.format("Erasure coding %s: %d fragments (%d bytes) held on this machine, %d regenerated\n",
+                Erasure.SCHEME, chord.fragmentIndex.count(), chord.fragmentIndex.totalBytes(), Erasure.regeneratedFragments.sum()));
+        report.append(String.format("%-20s %14s %14s\n", "peer", "bytes sent", "bytes received"));
+        for (long peer : peers())
+            report.append(String.format("%-20s %14d %14d\n", peer == CALLERS ? "callers" : Long.toString(peer), total(sent, peer), total(received, peer)));
+        return report.toString();
+    }
+
+    /**
+     * Describes the metrics in the Prometheus text format
+     * @param chord the chord, for what it stores
+     * @return the metrics, one sample per line
+     */
+    public String prometheus(Chord chord) {
+        StringBuilder out = new StringBuilder();
+        out.append("# HELP chord_operation_seconds Latency of the operations this chord served\n");
+        out.append("# TYPE chord_operation_seconds summary\n");
+        for (Op op : Op.values())
+            summary(out, "chord_operation_seconds", String.format("op=\"%s\",", op.label()), latencies[op.ordinal()], 1e-9);
+
+        out.append("# HELP chord_lookup_hops Hops of sampled lookups started by this chord\n");
+        out.append("# TYPE chord_lookup_hops summary\n");
+        summary(out, "chord_lookup_hops", "", hops, 1);
+        counter(out, "chord_lookups_forwarded_total", "Lookups this chord passed on to a finger", lookupsForwarded.sum());
+
+        out.append("# HELP chord_keys Files held by this chord\n");
+        out.append("# TYPE chord_keys gauge\n");
+        long[] stored = stored(chord);
+        out.append(String.format("chord_keys{store=\"primary\"} %d\n", stored[0]));
+        out.append(String.format("chord_keys{store=\"replica\"} %d\n", stored[2]));
+        out.append("# HELP chord_stored_bytes Bytes of the files held by this chord\n");
+        out.append("# TYPE chord_stored_bytes gauge\n");
+        out.append(String.format("chord_stored_bytes{store=\"primary\"} %d\n", stored[1]));
+        out.append(String.format("chord_stored_bytes{store=\"replica\"} %d\n", stored[3]));
+        out.append("# HELP chord_vnode_keys Files each virtual node of this machine is responsible for\n");
+        out.append("# TYPE chord_vnode_keys gauge\n");
+        for (Chord node : chord.colocated.values())
+            out.append(String.format("chord_vnode_keys{vnode=\"%d\"} %d\n", node.guid, node.index.count()));
+        gauge(out, "chord_read_cache_bytes", "Bytes held by the read cache", chord.cache.usedBytes());
+        gauge(out, "chord_path_cache_bytes", "Bytes of hot files copied along lookup routes", chord.pathCache.usedBytes());
+
+        counter(out, "chord_migrated_keys_total", "Keys handed over or copied to other peers", migratedKeys.sum());
+        counter(out, "chord_migrated_bytes_total", "Bytes of the keys handed over or copied to other peers", migratedBytes.sum());
+        counter(out, "chord_migration_failed_keys_total", "Keys that failed to be handed over or copied", migrationFailedKeys.sum());
+        counter(out, "chord_compression_raw_bytes_total", "Bytes of chunks and files before they were packed", Compression.rawBytes.sum());
+        counter(out, "chord_compression_packed_bytes_total", "Bytes of chunks and files once packed", Compression.packedBytes.sum());
+        counter(out, "chord_dedup_stored_bytes_total", "Bytes of content-defined chunks sent to their owners", Dedup.storedBytes.sum());
+        counter(out, "chord_dedup_skipped_bytes_total", "Bytes of content-defined chunks their owners already had", Dedup.skippedBytes.sum());
+        counter(out, "chord_durable_syncs_total", "Forces of a store that made writes durable", GroupCommit.syncs.sum());
+        counter(out, "chord_durable_writes_total", "Writes made durable by those forces", GroupCommit.commits.sum());
+        counter(out, "chord_path_cache_hits_total", "Reads answered from a copy of a hot file", PathCache.hits.sum());
+        counter(out, "chord_path_cache_copies_total", "Copies of hot files fetched from their owners", PathCache.copies.sum());
+        counter(out, "chord_path_cache_invalidations_total", "Copies of hot files dropped because the file changed", PathCache.invalidations.sum());
+        counter(out, "chord_path_cache_routed_reads_total", "Reads of hot files sent along the lookup route", PathCache.routedReads.sum());
+        counter(out, "chord_path_cache_route_failures_total", "Routed reads that failed and asked the owner instead", PathCache.routeFailures.sum());
+        counter(out, "chord_erasure_regenerated_fragments_total", "Erasure-coded fragments rebuilt by repairs", Erasure.regeneratedFragments.sum());
+        gauge(out, "chord_erasure_fragment_bytes", "Bytes of erasure-coded fragments held on this machine", chord.fragmentIndex.totalBytes());
+        gauge(out, "chord_migration_pending_keys", "Keys waiting to be handed over or copied", migrationPendingKeys.sum());
+        gauge(out, "chord_suspected_peers", "Peers the failure detector suspects have failed", chord.detector.suspects().size());
+
+        out.append("# HELP chord_sent_bytes_total File bytes sent to each peer\n");
+        out.append("# TYPE chord_sent_bytes_total counter\n");
+        for (long peer : peers()) out.append(String.format("chord_sent_bytes_total{peer=\"%s\"} %d\n", label(peer), total(sent, peer)));
+        out.append("# HELP chord_received_bytes_total File bytes received from each peer\n");
+        out.append("# TYPE chord_received_bytes_total counter\n");
+        for (long peer : peers()) out.append(String.format("chord_received_bytes_total{peer=\"%s\"} %d\n", label(peer), total(received, peer)));
+        return out.toString();
+    }
+
+    /**
+     * Serves the Prometheus text format at http://host:port/metrics
+     * @param chord the chord the metrics belong to
+     * @param port the port to listen on
+     * @throws IOException if the port can't be opened
+     */
+    public void serve(Chord chord, int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = prometheus(chord).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "chord-metrics");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+        System.out.printf("Serving metrics at http://localhost:%d/metrics\n", port);
+    }
+
+    /**
+     * Writes a histogram as a Prometheus summary
+     * @param out where the summary is written
+     * @param name the name of the metric
+     * @param labels labels to add to every sample, each followed by a comma
+     * @param histogram the histogram
+     * @param scale what each recorded value is multiplied by
+     */
+    private static void summary(StringBuilder out, String name, String labels, Histogram histogram, double scale) {
+        for (double quantile : new double[] { 0.5, 0.99, 0.999 })
+            out.append(String.format("%s{%squantile=\"%s\"} %s\n", name, labels, quantile, histogram.percentile(quantile * 100) * scale));
+        String plain = labels.isEmpty() ? "" : "{" + labels.substring(0, labels.length() - 1) + "}";
+        out.append(String.format("%s_sum%s %s\n", name, plain, histogram.sum() * scale));
+        out.append(String.format("%s_count%s %d\n", name, plain, histogram.count()));
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        out.append(String.format("# HELP %s %s\n# TYPE %s counter\n%s %d\n", name, help, name, name, value));
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, long value) {
+        out.append(String.format("# HELP %s %s\n# TYPE %s gauge\n%s %d\n", name, help, name, name, value));
+    }
+
+    /**
+     * Gets every peer that bytes were sent to or received from
+     * @return the guids of the peers, sorted
+     */
+    private SortedSet<Long> peers() {
+        SortedSet<Long> peers = new TreeSet<>(sent.keySet());
+        peers.addAll(received.keySet());
+        return peers;
+    }
+
+    /**
+     * Adds up what the virtual nodes of a machine store, since they share its store and its metrics
+     * @param chord any of the virtual nodes
+     * @return the keys and bytes held as owner, followed by the keys and bytes held as copies
+     */
+    private static long[] stored(Chord chord) {
+        long[] stored = new long[4];
+        for (Chord node : chord.colocated.values()) {
+            stored[0] += node.index.count();
+            stored[1] += node.index.totalBytes();
+            stored[2] += node.replicaIndex.count();
+            stored[3] += node.replicaIndex.totalBytes();
+        }
+        return stored;
+    }
+
+    private static long total(Map<Long, LongAdder> bytes, long peer) {
+        LongAdder adder = bytes.get(peer);
+        return adder == null ? 0 : adder.sum();
+    }
+
+    private static String label(long peer) {
+        return peer == CALLERS ? "callers" : Long.toString(peer);
+    }
+}
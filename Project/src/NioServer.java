@@ -0,0 +1,245 @@
+import java.io.*;
+import java.lang.reflect.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.rmi.NoSuchObjectException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Class serves the chords at a port over NioTransport. A single selector thread accepts connections, splits
+ * the bytes they send into frames and writes back responses, while the calls themselves run on a pool of
+ * workers so a slow call never holds up the others on the same connection
+ */
+public class NioServer implements Runnable {
+    private final Map<Long, Chord> chords = new ConcurrentHashMap<>(); // The chords at this port by guid
+    private volatile Chord first; // The chord peers join through
+    private final Transport transport; // Resolves the peers named in requests
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final Queue<Connection> flushes = new ConcurrentLinkedQueue<>(); // Connections with responses to write
+
+    // Calls can block on calls to other peers, so the pool grows instead of queueing them
+    private static final ExecutorService workers = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "nio-server");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * The server side of a connection from one peer
+     */
+    private class Connection {
+        final SocketChannel channel;
+        final SelectionKey key;
+        ByteBuffer input = ByteBuffer.allocate(64 << 10); // Bytes received that don't make a whole frame yet
+        final Queue<ByteBuffer> output = new ConcurrentLinkedQueue<>(); // Responses waiting to be written
+
+        Connection(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.key = channel.register(selector, SelectionKey.OP_READ, this);
+        }
+
+        /**
+         * Reads what the peer sent and starts a call for every complete frame
+         * @throws IOException if the connection broke
+         */
+        void read() throws IOException {
+            if (channel.read(input) < 0) throw new EOFException("Connection closed");
+            input.flip();
+            while (input.remaining() >= 4) {
+                int frameBytes = input.getInt(input.position());
+                if (frameBytes < Wire.HEADER_BYTES || frameBytes > Wire.MAX_FRAME_BYTES)
+                    throw new StreamCorruptedException(String.format("Bad frame length %d", frameBytes));
+                if (input.remaining() < 4 + frameBytes) {
+                    // Make room for the rest of a frame larger than the buffer
+                    if (input.capacity() < 4 + frameBytes) input = ByteBuffer.allocate(4 + frameBytes).put(input);
+                    else input.compact();
+                    return;
+                }
+
+                input.position(input.position() + 4);
+                ByteBuffer body = ByteBuffer.allocate(frameBytes);
+                ByteBuffer slice = input.slice();
+                slice.limit(frameBytes);
+                body.put(slice).flip();
+                input.position(input.position() + frameBytes);
+                workers.execute(() -> call(this, new Wire.Frame(body)));
+            }
+            input.compact();
+        }
+
+        /**
+         * Queues a response and has the selector thread write it
+         * @param response the response frame
+         */
+        void send(ByteBuffer response) {
+            output.add(response);
+            flushes.add(this);
+            selector.wakeup();
+        }
+
+        /**
+         * Writes as much of the queued responses as the socket takes without blocking, and asks
+         * the selector to say when the socket can take more
+         * @throws IOException if the connection broke
+         */
+        void flush() throws IOException {
+            ByteBuffer next;
+            while ((next = output.peek()) != null) {
+                channel.write(next);
+                if (next.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                output.poll();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        void close() {
+            key.cancel();
+            try {
+                channel.close();
+            } catch(IOException e) {}
+        }
+    }
+
+    /**
+     * Constructor for the NioServer class
+     * @param port the port to listen on
+     * @param transport resolves the peers named in requests
+     * @throws IOException if the port can't be opened
+     */
+    public NioServer(int port, Transport transport) throws IOException {
+        this.transport = transport;
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Starts serving a chord at this port
+     * @param chord the chord
+     */
+    public void add(Chord chord) {
+        chords.put(chord.guid, chord);
+        if (first == null) first = chord;
+    }
+
+    /**
+     * Stops serving a chord. When the first chord goes, peers join through another chord at this port
+     * @param chord the chord
+     * @return true if no chords are left
+     */
+    public boolean remove(Chord chord) {
+        chords.remove(chord.guid);
+        if (first == chord) first = chords.values().stream().findFirst().orElse(null);
+        return chords.isEmpty();
+    }
+
+    /**
+     * Starts the selector thread
+     */
+    public void start() {
+        Thread thread = new Thread(this, "nio-selector");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops accepting connections and closes the ones that are open
+     * @throws IOException if the port couldn't be closed
+     */
+    public void close() throws IOException {
+        server.close();
+        selector.wakeup();
+    }
+
+    public void run() {
+        while (server.isOpen()) {
+            try {
+                selector.select();
+            } catch(IOException e) {
+                System.out.printf("Stopped serving on %s -> %s\n", server.socket().getLocalSocketAddress(), e.getMessage());
+                return;
+            }
+
+            Connection pending;
+            while ((pending = flushes.poll()) != null) {
+                try {
+                    if (pending.key.isValid()) pending.flush();
+                } catch(IOException e) {
+                    pending.close();
+                }
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                try {
+                    if (key.isAcceptable()) {
+                        SocketChannel channel = server.accept();
+                        if (channel == null) continue;
+                        channel.configureBlocking(false);
+                        channel.socket().setTcpNoDelay(true);
+                        new Connection(channel);
+                        continue;
+                    }
+                    Connection connection = (Connection)key.attachment();
+                    if (key.isReadable()) connection.read();
+                    if (key.isValid() && key.isWritable()) connection.flush();
+                } catch(IOException | CancelledKeyException e) {
+                    if (key.attachment() != null) ((Connection)key.attachment()).close();
+                }
+            }
+        }
+
+        // The port was closed, so drop the connections still open
+        for (SelectionKey key : selector.keys())
+            if (key.attachment() != null) ((Connection)key.attachment()).close();
+        try {
+            selector.close();
+        } catch(IOException e) {}
+    }
+
+    /**
+     * Runs one call on the chord and sends back its result or the exception it threw
+     * @param connection the connection the request came from
+     * @param request the request frame
+     */
+    private void call(Connection connection, Wire.Frame request) {
+        ByteBuffer response;
+        try {
+            Method method = Wire.METHODS[request.kind];
+            long target = request.payload.readLong();
+            Chord chord = target == Transport.FIRST ? first : chords.get(target);
+            if (chord == null) throw new NoSuchObjectException(String.format("No chord %d at this port", target));
+            Class<?>[] types = method.getParameterTypes();
+            Object[] args = new Object[types.length];
+            for (int i = 0; i < types.length; i++) args[i] = Wire.read(request.payload, types[i], transport);
+
+            Object result;
+            try {
+                result = method.invoke(chord, args);
+            } catch(InvocationTargetException e) {
+                response = Wire.failure(request.requestId, e.getCause());
+                connection.send(response);
+                return;
+            }
+            response = Wire.response(request.requestId, method.getReturnType(), result);
+        } catch(Exception e) {
+            try {
+                response = Wire.failure(request.requestId, e);
+            } catch(IOException e2) {
+                connection.close();
+                return;
+            }
+        }
+        connection.send(response);
+    }
+}
@@ -0,0 +1,230 @@
+import java.io.*;
+import java.lang.reflect.*;
+import java.net.InetSocketAddress;
+import java.nio.*;
+import java.nio.channels.*;
+import java.rmi.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Class connects chords over plain NIO sockets using the binary frames of Wire. Each peer is reached
+ * through a single connection that carries any number of calls at once: callers write their request
+ * and wait, while one reader thread hands each response to the caller with the same request id
+ */
+public class NioTransport implements Transport {
+    private static final NioTransport SHARED = new NioTransport();
+
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>(); // Connections by address
+    private final Map<String, ChordMessageInterface> stubs = new ConcurrentHashMap<>(); // Stubs by address and guid
+    private final Map<Integer, NioServer> servers = new HashMap<>(); // The server at each port
+
+    /**
+     * Accessor for the transport shared by every chord in this process
+     * @return the shared transport
+     */
+    public static NioTransport shared() {
+        return SHARED;
+    }
+
+    /**
+     * Starts serving a chord on a port, starting the server at the port for its first chord
+     * @param chord the chord to serve
+     * @param port the port to listen on
+     * @throws IOException if the port can't be opened
+     */
+    public synchronized void export(Chord chord, int port) throws IOException {
+        NioServer server = servers.get(port);
+        if (server == null) {
+            server = new NioServer(port, this);
+            servers.put(port, server);
+            server.start();
+        }
+        server.add(chord);
+    }
+
+    /**
+     * Stops serving a chord, and closes its port once no chords are left at it
+     * @param chord the chord
+     * @throws IOException if the port couldn't be closed
+     */
+    public synchronized void unexport(Chord chord) throws IOException {
+        NioServer server = servers.get(chord.self.port);
+        if (server != null && server.remove(chord)) {
+            servers.remove(chord.self.port);
+            server.close();
+        }
+    }
+
+    /**
+     * Gets the stub for a chord at an address. Every chord at the address is called through the same
+     * connection, which is only opened by the first call, and opened again by the next call after it breaks
+     * @param ip the ip address of the peer
+     * @param port the port of the peer
+     * @param guid the guid of the chord, or FIRST
+     * @return a stub that sends calls through the shared connection to the chord
+     */
+    public ChordMessageInterface connect(String ip, int port, long guid) {
+        return stubs.computeIfAbsent(ip + ":" + port + "/" + guid, key -> {
+            Peer peer = peers.computeIfAbsent(ip + ":" + port, address -> new Peer(ip, port));
+            return (ChordMessageInterface)Proxy.newProxyInstance(ChordMessageInterface.class.getClassLoader(),
+                    new Class<?>[] { ChordMessageInterface.class }, (proxy, method, args) -> {
+                if (method.getDeclaringClass() != Object.class) return peer.call(guid, method, args);
+                switch(method.getName()) {
+                    case "equals": return proxy == args[0];
+                    case "hashCode": return System.identityHashCode(proxy);
+                    default: return String.format("NioTransport stub for %d at %s:%d", guid, ip, port);
+                }
+            });
+        });
+    }
+
+    /**
+     * The client side of the connection to one peer
+     */
+    private class Peer {
+        final String ip;
+        final int port;
+        final AtomicLong nextRequestId = new AtomicLong();
+        final Map<Long, CompletableFuture<Wire.Frame>> pending = new ConcurrentHashMap<>(); // Calls waiting for a response
+        SocketChannel channel; // Null until the first call, and again after the connection breaks
+
+        Peer(String ip, int port) {
+            this.ip = ip;
+            this.port = port;
+        }
+
+        /**
+         * Calls a method of a chord at the peer and waits for the result
+         * @param target the guid of the chord, or FIRST
+         * @param method the method
+         * @param args the arguments of the call
+         * @return the result of the call
+         * @throws Throwable what the call threw, or a RemoteException if the peer couldn't be reached or didn't answer in time
+         */
+        Object call(long target, Method method, Object[] args) throws Throwable {
+            long requestId = nextRequestId.incrementAndGet();
+            ByteBuffer request = Wire.request(requestId, target, method, args);
+            CompletableFuture<Wire.Frame> response = new CompletableFuture<>();
+            pending.put(requestId, response);
+            try {
+                SocketChannel channel = open();
+                try {
+                    // Requests from many threads are pipelined on the connection without waiting for each other's responses
+                    synchronized(channel) {
+                        while (request.hasRemaining()) channel.write(request);
+                    }
+                } catch(IOException e) {
+                    close(channel, e);
+                }
+
+                Wire.Frame frame;
+                int timeout = CallTimeout.millis();
+                try {
+                    frame = timeout == 0 ? response.get() : response.get(timeout, TimeUnit.MILLISECONDS);
+                } catch(TimeoutException e) {
+                    // The connection is left open for the other calls on it, which time out on their own
+                    throw new UnmarshalException(String.format("No answer from %s:%d to %s within %d ms", ip, port, method.getName(), timeout),
+                            new java.net.SocketTimeoutException("Read timed out"));
+                }
+                if (frame.kind == Wire.OK) return Wire.read(frame.payload, method.getReturnType(), NioTransport.this);
+
+                // Like RMI, a remote exception thrown by the peer itself arrives wrapped in a ServerException,
+                // while a chord that is no longer at the port is reported as is
+                Throwable failure = Wire.readFailure(frame.payload);
+                if (failure instanceof RemoteException && !(failure instanceof NoSuchObjectException))
+                    throw new ServerException("Peer failed", (RemoteException)failure);
+                throw failure;
+            } catch(ExecutionException e) {
+                throw e.getCause();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Call interrupted");
+            } finally {
+                pending.remove(requestId);
+            }
+        }
+
+        /**
+         * Gets the connection to the peer, opening it if needed
+         * @return the open connection
+         * @throws java.rmi.ConnectException if the peer can't be reached within the connect timeout
+         */
+        synchronized SocketChannel open() throws java.rmi.ConnectException {
+            if (channel != null) return channel;
+            SocketChannel opening = null;
+            try {
+                opening = SocketChannel.open();
+                opening.socket().connect(new InetSocketAddress(ip, port), CONNECT_TIMEOUT_MILLIS);
+                opening.socket().setTcpNoDelay(true);
+                channel = opening;
+            } catch(IOException e) {
+                try {
+                    if (opening != null) opening.close();
+                } catch(IOException ignored) {}
+                throw new java.rmi.ConnectException(String.format("Connection refused to %s:%d", ip, port), e);
+            }
+
+            SocketChannel opened = channel;
+            Thread reader = new Thread(() -> readResponses(opened), "nio-client");
+            reader.setDaemon(true);
+            reader.start();
+            return channel;
+        }
+
+        /**
+         * Hands each response arriving on a connection to the call waiting for it, until the connection breaks
+         * @param channel the connection
+         */
+        void readResponses(SocketChannel channel) {
+            ByteBuffer length = ByteBuffer.allocate(4);
+            try {
+                while (true) {
+                    length.clear();
+                    readFully(channel, length);
+                    int frameBytes = length.getInt(0);
+                    if (frameBytes < Wire.HEADER_BYTES || frameBytes > Wire.MAX_FRAME_BYTES)
+                        throw new StreamCorruptedException(String.format("Bad frame length %d", frameBytes));
+
+                    ByteBuffer body = ByteBuffer.allocate(frameBytes);
+                    readFully(channel, body);
+                    body.flip();
+                    Wire.Frame frame = new Wire.Frame(body);
+                    CompletableFuture<Wire.Frame> response = pending.get(frame.requestId);
+                    if (response != null) response.complete(frame);
+                }
+            } catch(IOException e) {
+                close(channel, e);
+            }
+        }
+
+        /**
+         * Closes a broken connection and fails every call still waiting on it
+         * @param channel the connection
+         * @param cause why the connection broke
+         */
+        void close(SocketChannel channel, IOException cause) {
+            synchronized(this) {
+                if (this.channel == channel) this.channel = null;
+            }
+            try {
+                channel.close();
+            } catch(IOException e) {}
+
+            RemoteException failure = new java.rmi.ConnectIOException(String.format("Connection to %s:%d lost", ip, port), cause);
+            pending.values().forEach(f -> f.completeExceptionally(failure));
+        }
+    }
+
+    /**
+     * Reads from a blocking channel until a buffer is full
+     * @param channel the channel to read
+     * @param buffer the buffer to fill
+     * @throws IOException if the channel is closed first
+     */
+    static void readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            if (channel.read(buffer) < 0) throw new EOFException("Connection closed");
+    }
+}
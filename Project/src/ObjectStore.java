@@ -0,0 +1,15 @@
+import java.io.*;
+import java.nio.file.Path;
+
+/**
+ * Storage engine that holds the files a chord is responsible for. Every file is stored with its kind
+ * from KeyIndex, which load hands back in the version of the file
+ */
+interface ObjectStore {
+    void load(KeyIndex index)                             throws IOException;
+    void commit(long guidObject, Path staged, int kind)   throws IOException;
+    void write(long guidObject, byte[] data, int kind)    throws IOException;
+    byte[] read(long guidObject, long offset, int length) throws IOException;
+    void delete(long guidObject)                          throws IOException;
+    void sync()                                           throws IOException;
+}
@@ -0,0 +1,181 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class holds copies of hot files owned by other peers, so a chord on the lookup route of a popular key
+ * can answer reads of it without passing them on to the owner. A copy lives for -Dchord.pathCacheMillis
+ * (10 s by default) and is dropped earlier when the owner reports that the file was overwritten or deleted.
+ * The owner may report a change while a copy is still on its way here, so every report is remembered for
+ * as long as a copy lives and a copy fetched before the last report of its key is never kept.
+ * Copies travel as [version long] followed by the file packed by Compression
+ */
+public class PathCache {
+    public static final long TTL_MILLIS = Long.getLong("chord.pathCacheMillis", 10000); // How long a copy is served
+    public static final int MAX_BYTES = 256 << 10; // Larger files are never copied along the route
+    public static final long DEFAULT_BYTES = 16L << 20; // Budget used when chord.pathCacheBytes isn't set
+
+    static final LongAdder hits = new LongAdder(); // Reads answered from a copy
+    static final LongAdder copies = new LongAdder(); // Copies fetched from owners
+    static final LongAdder invalidations = new LongAdder(); // Copies dropped because the owner's file changed
+    static final LongAdder routedReads = new LongAdder(); // Reads of hot files sent along the lookup route
+    static final LongAdder routeFailures = new LongAdder(); // Routed reads that failed and asked the owner instead
+
+    /**
+     * A copy of a file along with the version it was read at
+     */
+    public static class Copy {
+        final long version;
+        final byte[] data;
+
+        Copy(long version, byte[] data) {
+            this.version = version;
+            this.data = data;
+        }
+
+        /**
+         * Builds the copy as it travels, packing the file with the best codec the receiver takes
+         * @param codecs the codecs the receiver takes, as a bit per codec of Compression
+         * @return the version followed by the packed file
+         */
+        public byte[] encode(int codecs) {
+            return encode(version, Compression.pack(data, codecs));
+        }
+
+        /**
+         * Builds a copy as it travels from a file that is already packed
+         * @param version the version of the file
+         * @param packed the file packed by Compression
+         * @return the version followed by the packed file
+         */
+        public static byte[] encode(long version, byte[] packed) {
+            return ByteBuffer.allocate(8 + packed.length).putLong(version).put(packed).array();
+        }
+
+        /**
+         * Reads a copy as it travels
+         * @param encoded the version followed by the packed file
+         * @return the copy
+         * @throws IOException if the copy is truncated or the file is corrupt
+         */
+        public static Copy decode(byte[] encoded) throws IOException {
+            if (encoded.length < 9) throw new StreamCorruptedException(String.format("Copy of %d bytes is truncated", encoded.length));
+            return new Copy(ByteBuffer.wrap(encoded).getLong(), Compression.unpack(Arrays.copyOfRange(encoded, 8, encoded.length)));
+        }
+    }
+
+    /**
+     * A copy held here along with when it stops being served
+     */
+    private static class Entry {
+        final Copy copy;
+        final long expiresAt;
+
+        Entry(Copy copy, long expiresAt) {
+            this.copy = copy;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final long capacityBytes;
+    private long usedBytes;
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>(16, 0.75f, true); // By key, least recently used first
+    private final Map<Long, Long> invalidatedAt = new HashMap<>(); // When each key was last reported changed
+
+    /**
+     * Constructor for the PathCache class
+     * @param capacityBytes the most data the cache may hold, 0 to disable it
+     */
+    public PathCache(long capacityBytes) {
+        this.capacityBytes = Math.max(0, capacityBytes);
+    }
+
+    /**
+     * Creates a cache whose budget comes from the chord.pathCacheBytes system property
+     * @return the cache
+     */
+    public static PathCache fromProperties() {
+        return new PathCache(Long.getLong("chord.pathCacheBytes", DEFAULT_BYTES));
+    }
+
+    /**
+     * Looks up the copy of a file
+     * @param guidObject the global unique identifier of the file
+     * @return the copy, or null if no copy is held or it expired
+     */
+    public synchronized Copy get(long guidObject) {
+        Entry entry = entries.get(guidObject);
+        if (entry == null) return null;
+        if (entry.expiresAt - System.nanoTime() < 0) {
+            remove(guidObject);
+            return null;
+        }
+        hits.increment();
+        return entry.copy;
+    }
+
+    /**
+     * Keeps the copy of a file, unless the owner reported a change since the copy was requested
+     * @param guidObject the global unique identifier of the file
+     * @param copy the copy, whose data must not be modified afterwards
+     * @param requestedAt when the copy was requested from the owner, from System.nanoTime
+     */
+    public synchronized void put(long guidObject, Copy copy, long requestedAt) {
+        if (copy.data.length > MAX_BYTES || copy.data.length > capacityBytes) return;
+        Long changedAt = invalidatedAt.get(guidObject);
+        if (changedAt != null && changedAt - requestedAt >= 0) return;
+
+        remove(guidObject);
+        entries.put(guidObject, new Entry(copy, System.nanoTime() + TTL_MILLIS * 1000000));
+        usedBytes += copy.data.length;
+        copies.increment();
+
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (usedBytes > capacityBytes) {
+            usedBytes -= eldest.next().copy.data.length;
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Drops the copy of a file that was overwritten or deleted, and remembers the change so a copy
+     * already on its way isn't kept
+     * @param guidObject the global unique identifier of the file
+     */
+    public synchronized void invalidate(long guidObject) {
+        long now = System.nanoTime();
+        if (remove(guidObject)) invalidations.increment();
+        invalidatedAt.put(guidObject, now);
+        // A report older than any copy that could still arrive is no longer needed
+        invalidatedAt.values().removeIf(at -> now - at > TTL_MILLIS * 1000000);
+    }
+
+    /**
+     * Accessor for the amount of data in the cache
+     * @return the number of bytes held
+     */
+    public synchronized long usedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * Accessor for the number of copies held
+     * @return the number of files with a copy, including expired ones not yet dropped
+     */
+    public synchronized int count() {
+        return entries.size();
+    }
+
+    /**
+     * Drops the copy of a file
+     * @param guidObject the global unique identifier of the file
+     * @return true if a copy was held
+     */
+    private boolean remove(long guidObject) {
+        Entry entry = entries.remove(guidObject);
+        if (entry == null) return false;
+        usedBytes -= entry.copy.data.length;
+        return true;
+    }
+}
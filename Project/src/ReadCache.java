@@ -0,0 +1,145 @@
+import java.util.*;
+
+/**
+ * Class keeps recently read file data in memory up to a byte budget, evicting the least recently used
+ * entries first. Every entry remembers the version of the file it came from, so a lookup only hits when
+ * the caller's version matches and data from an older version of the file is never returned
+ */
+public class ReadCache {
+    public static final long DEFAULT_BYTES = 64L << 20; // Budget used when chord.cacheBytes isn't set
+
+    private final long capacityBytes;
+    private long usedBytes;
+    private final LinkedHashMap<Slot, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Identifies a piece of a file by its key and the offset of its first byte
+     */
+    private static class Slot {
+        final long guidObject;
+        final long offset;
+
+        Slot(long guidObject, long offset) {
+            this.guidObject = guidObject;
+            this.offset = offset;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Slot)) return false;
+            Slot slot = (Slot)o;
+            return guidObject == slot.guidObject && offset == slot.offset;
+        }
+
+        public int hashCode() {
+            return Long.hashCode(guidObject) * 31 + Long.hashCode(offset);
+        }
+    }
+
+    /**
+     * Data cached for a slot along with the version of the file it was read from
+     */
+    private static class Entry {
+        final long version;
+        final byte[] data;
+
+        Entry(long version, byte[] data) {
+            this.version = version;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Constructor for the ReadCache class
+     * @param capacityBytes the most data the cache may hold, 0 to disable it
+     */
+    public ReadCache(long capacityBytes) {
+        this.capacityBytes = Math.max(0, capacityBytes);
+    }
+
+    /**
+     * Creates a cache whose budget comes from the chord.cacheBytes system property
+     * @return the cache
+     */
+    public static ReadCache fromProperties() {
+        return new ReadCache(Long.getLong("chord.cacheBytes", DEFAULT_BYTES));
+    }
+
+    /**
+     * Looks up data read from a file
+     * @param guidObject the global unique identifier of the file
+     * @param offset the offset of the data in the file
+     * @param version the current version of the file
+     * @return the cached data, or null if it isn't cached for that version
+     */
+    public synchronized byte[] get(long guidObject, long offset, long version) {
+        Slot slot = new Slot(guidObject, offset);
+        Entry entry = entries.get(slot);
+        if (entry == null) return null;
+        if (entry.version != version) {
+            // The file changed since it was cached
+            remove(slot);
+            return null;
+        }
+        return entry.data;
+    }
+
+    /**
+     * Gets the version of the data cached for a file
+     * @param guidObject the global unique identifier of the file
+     * @param offset the offset of the data in the file
+     * @return the version of the cached data, or 0 if nothing is cached
+     */
+    public synchronized long version(long guidObject, long offset) {
+        Entry entry = entries.get(new Slot(guidObject, offset));
+        return entry == null ? 0 : entry.version;
+    }
+
+    /**
+     * Caches data read from a file, evicting the least recently used entries to stay within budget.
+     * Data larger than an eighth of the budget is not cached so a single big file can't flush the hot set
+     * @param guidObject the global unique identifier of the file
+     * @param offset the offset of the data in the file
+     * @param version the version of the file the data was read from
+     * @param data the data, which must not be modified afterwards
+     */
+    public synchronized void put(long guidObject, long offset, long version, byte[] data) {
+        if (version == 0 || !accepts(data.length)) return;
+
+        Slot slot = new Slot(guidObject, offset);
+        remove(slot);
+        entries.put(slot, new Entry(version, data));
+        usedBytes += data.length;
+
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (usedBytes > capacityBytes) {
+            usedBytes -= eldest.next().data.length;
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Tells whether data of a given size would be cached, so callers can skip buffering it otherwise
+     * @param size the size of the data in bytes
+     * @return true if put would keep the data
+     */
+    public boolean accepts(long size) {
+        return size <= capacityBytes / 8;
+    }
+
+    /**
+     * Accessor for the amount of data in the cache
+     * @return the number of bytes cached
+     */
+    public synchronized long usedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * Drops the data cached for a slot
+     * @param slot the slot to drop
+     */
+    private void remove(Slot slot) {
+        Entry entry = entries.remove(slot);
+        if (entry != null) usedBytes -= entry.data.length;
+    }
+}
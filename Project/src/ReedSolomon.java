@@ -0,0 +1,184 @@
+import java.io.*;
+
+/**
+ * Class encodes k data shards into m parity shards over GF(2^8), so that any k of the k + m shards are
+ * enough to rebuild the others. The code is systematic: the data shards are stored as they are, and each
+ * parity shard is a row of a Cauchy matrix times the data shards, which keeps every k by k submatrix of
+ * the generator invertible
+ */
+public class ReedSolomon {
+    private static final int POLYNOMIAL = 0x11d; // x^8 + x^4 + x^3 + x^2 + 1
+    private static final int[] LOG = new int[256];
+    private static final int[] EXP = new int[510];
+    private static final byte[][] MUL = new byte[256][256]; // Product of every pair of field elements
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = EXP[i + 255] = x;
+            LOG[x] = i;
+            x <<= 1;
+            if (x >= 256) x ^= POLYNOMIAL;
+        }
+        for (int a = 1; a < 256; a++)
+            for (int b = 1; b < 256; b++) MUL[a][b] = (byte)EXP[LOG[a] + LOG[b]];
+    }
+
+    final int dataShards, parityShards;
+    private final byte[][] parity; // Coefficients of each parity shard, a row per parity shard and a column per data shard
+
+    /**
+     * Constructor for the ReedSolomon class
+     * @param dataShards the number of data shards, k
+     * @param parityShards the number of parity shards, m
+     * @throws IllegalArgumentException if there are no data shards or more than 256 shards in all
+     */
+    public ReedSolomon(int dataShards, int parityShards) {
+        if (dataShards < 1 || parityShards < 0 || dataShards + parityShards > 256)
+            throw new IllegalArgumentException(String.format("Can't code %d data and %d parity shards", dataShards, parityShards));
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+        parity = new byte[parityShards][dataShards];
+        for (int r = 0; r < parityShards; r++)
+            for (int c = 0; c < dataShards; c++) parity[r][c] = (byte)inverse((dataShards + r) ^ c);
+    }
+
+    /**
+     * Computes the parity shards of some data shards
+     * @param data the data shards, all of the same length
+     * @return the parity shards
+     */
+    public byte[][] encode(byte[][] data) {
+        byte[][] shards = new byte[parityShards][data[0].length];
+        for (int r = 0; r < parityShards; r++) multiply(parity[r], data, shards[r]);
+        return shards;
+    }
+
+    /**
+     * Rebuilds the missing shards in place from any dataShards of the others
+     * @param shards every shard in order, data shards first, with null for the missing ones
+     * @throws IOException if fewer than dataShards shards are present
+     */
+    public void reconstruct(byte[][] shards) throws IOException {
+        reconstructData(shards);
+        byte[][] data = new byte[dataShards][];
+        System.arraycopy(shards, 0, data, 0, dataShards);
+        for (int r = 0; r < parityShards; r++) {
+            if (shards[dataShards + r] != null) continue;
+            shards[dataShards + r] = new byte[data[0].length];
+            multiply(parity[r], data, shards[dataShards + r]);
+        }
+    }
+
+    /**
+     * Rebuilds the missing data shards in place from any dataShards of the shards, leaving the parity
+     * shards as they are
+     * @param shards every shard in order, data shards first, with null for the missing ones
+     * @throws IOException if fewer than dataShards shards are present
+     */
+    public void reconstructData(byte[][] shards) throws IOException {
+        int[] present = new int[dataShards];
+        int count = 0, length = 0;
+        for (int i = 0; i < shards.length && count < dataShards; i++) {
+            if (shards[i] == null) continue;
+            present[count++] = i;
+            length = shards[i].length;
+        }
+        if (count < dataShards) throw new IOException(String.format("Only %d of the %d shards needed are left", count, dataShards));
+
+        // The data shards are the inverse of the generator rows that are present times those shards
+        boolean dataMissing = false;
+        for (int i = 0; i < dataShards; i++) dataMissing |= shards[i] == null;
+        if (dataMissing) {
+            byte[][] rows = new byte[dataShards][];
+            byte[][] inputs = new byte[dataShards][];
+            for (int i = 0; i < dataShards; i++) {
+                rows[i] = generatorRow(present[i]);
+                inputs[i] = shards[present[i]];
+            }
+            byte[][] decode = invert(rows);
+            for (int i = 0; i < dataShards; i++) {
+                if (shards[i] != null) continue;
+                shards[i] = new byte[length];
+                multiply(decode[i], inputs, shards[i]);
+            }
+        }
+    }
+
+    /**
+     * Gets the coefficients that make a shard from the data shards
+     * @param shard the number of the shard
+     * @return a unit row for a data shard, or the row of a parity shard
+     */
+    private byte[] generatorRow(int shard) {
+        if (shard >= dataShards) return parity[shard - dataShards].clone();
+        byte[] row = new byte[dataShards];
+        row[shard] = 1;
+        return row;
+    }
+
+    /**
+     * Adds up the inputs scaled by their coefficients
+     * @param coefficients a coefficient per input
+     * @param inputs the inputs, all as long as output
+     * @param output where the sum is written
+     */
+    private static void multiply(byte[] coefficients, byte[][] inputs, byte[] output) {
+        for (int i = 0; i < inputs.length; i++) {
+            int c = coefficients[i] & 0xff;
+            if (c == 0) continue;
+            byte[] input = inputs[i];
+            if (c == 1) {
+                for (int b = 0; b < output.length; b++) output[b] ^= input[b];
+                continue;
+            }
+            byte[] products = MUL[c];
+            for (int b = 0; b < output.length; b++) output[b] ^= products[input[b] & 0xff];
+        }
+    }
+
+    /**
+     * Inverts a square matrix by Gauss-Jordan elimination
+     * @param matrix the matrix, which is overwritten
+     * @return the inverse
+     * @throws IOException if the matrix is singular, which a Cauchy generator never is
+     */
+    private static byte[][] invert(byte[][] matrix) throws IOException {
+        int n = matrix.length;
+        byte[][] inverse = new byte[n][n];
+        for (int i = 0; i < n; i++) inverse[i][i] = 1;
+
+        for (int col = 0; col < n; col++) {
+            int pivot = col;
+            while (pivot < n && matrix[pivot][col] == 0) pivot++;
+            if (pivot == n) throw new StreamCorruptedException("Shards can't be decoded");
+            byte[] swap = matrix[col]; matrix[col] = matrix[pivot]; matrix[pivot] = swap;
+            swap = inverse[col]; inverse[col] = inverse[pivot]; inverse[pivot] = swap;
+
+            byte[] scale = MUL[inverse(matrix[col][col] & 0xff)];
+            for (int c = 0; c < n; c++) {
+                matrix[col][c] = scale[matrix[col][c] & 0xff];
+                inverse[col][c] = scale[inverse[col][c] & 0xff];
+            }
+            for (int row = 0; row < n; row++) {
+                int factor = matrix[row][col] & 0xff;
+                if (row == col || factor == 0) continue;
+                byte[] products = MUL[factor];
+                for (int c = 0; c < n; c++) {
+                    matrix[row][c] ^= products[matrix[col][c] & 0xff];
+                    inverse[row][c] ^= products[inverse[col][c] & 0xff];
+                }
+            }
+        }
+        return inverse;
+    }
+
+    /**
+     * Gets the multiplicative inverse of a field element
+     * @param x the element, which isn't 0
+     * @return the inverse of x
+     */
+    private static int inverse(int x) {
+        return EXP[255 - LOG[x]];
+    }
+}
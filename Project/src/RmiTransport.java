@@ -0,0 +1,169 @@
+import java.io.*;
+import java.net.*;
+import java.rmi.*;
+import java.rmi.registry.*;
+import java.rmi.server.*;
+import java.util.*;
+
+/**
+ * Class connects chords with Java RMI. Each port gets a registry, where every chord exported at the port
+ * is bound as "Chord/{guid}" and the first of them is also bound as "Chord" for peers joining through it.
+ * Every RMI connection this process opens gives up after Transport.CONNECT_TIMEOUT_MILLIS when the peer
+ * can't be reached, and after the timeout CallTimeout picks for the call when it doesn't answer
+ */
+public class RmiTransport implements Transport {
+    private static final RmiTransport SHARED = new RmiTransport();
+
+    private final Map<Integer, Registry> registries = new HashMap<>(); // The registry created at each port
+    private final Map<Integer, List<Chord>> chords = new HashMap<>(); // The chords bound at each port, first one first
+
+    static {
+        // RMI waits this long for a new connection's handshake, a minute by default, before the socket's own read timeout applies
+        if (System.getProperty("sun.rmi.transport.tcp.handshakeTimeout") == null)
+            System.setProperty("sun.rmi.transport.tcp.handshakeTimeout", Integer.toString(CONNECT_TIMEOUT_MILLIS));
+        try {
+            RMISocketFactory.setSocketFactory(new TimeoutSocketFactory());
+        } catch(IOException e) {
+            System.out.printf("Keeping the RMI socket factory that was already set, without timeouts -> %s\n", e.getMessage());
+        }
+    }
+
+    /**
+     * Opens the sockets of RMI with the connect and read timeouts of Transport. Without them a call to a
+     * machine that went away waits for the operating system to give up, which can take minutes, and a
+     * call to a machine that hangs waits forever
+     */
+    private static class TimeoutSocketFactory extends RMISocketFactory {
+        public Socket createSocket(String host, int port) throws IOException {
+            Socket socket = new TimeoutSocket();
+            try {
+                socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+                socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+            } catch(IOException e) {
+                socket.close();
+                throw e;
+            }
+            return socket;
+        }
+
+        public ServerSocket createServerSocket(int port) throws IOException {
+            return new ServerSocket(port);
+        }
+    }
+
+    /**
+     * Socket whose reads wait as long as CallTimeout allows the call being answered. RMI reads the answer
+     * to a call on the thread that made it, and a connection only carries one call at a time, so each
+     * read can take its timeout from the calling thread
+     */
+    private static class TimeoutSocket extends Socket {
+        private InputStream input;
+
+        public synchronized InputStream getInputStream() throws IOException {
+            if (input == null) {
+                input = new FilterInputStream(super.getInputStream()) {
+                    @Override
+                    public int read() throws IOException {
+                        timeout();
+                        return super.read();
+                    }
+
+                    @Override
+                    public int read(byte[] buffer, int offset, int length) throws IOException {
+                        timeout();
+                        return super.read(buffer, offset, length);
+                    }
+                };
+            }
+            return input;
+        }
+
+        /**
+         * Applies the timeout of the calling thread to the next read
+         * @throws IOException if the socket is closed
+         */
+        private void timeout() throws IOException {
+            int millis = CallTimeout.millis();
+            if (getSoTimeout() != millis) setSoTimeout(millis);
+        }
+    }
+
+    /**
+     * Accessor for the transport shared by every chord in this process
+     * @return the shared transport
+     */
+    public static RmiTransport shared() {
+        return SHARED;
+    }
+
+    /**
+     * Binds a chord in the registry at the port, creating the registry for the first chord
+     * @param chord the chord to serve
+     * @param port the port of the registry
+     * @throws IOException if the registry can't be created
+     */
+    public synchronized void export(Chord chord, int port) throws IOException {
+        Registry registry = registries.get(port);
+        if (registry == null) {
+            registry = LocateRegistry.createRegistry(port);
+            registries.put(port, registry);
+            chords.put(port, new ArrayList<>());
+            registry.rebind("Chord", chord);
+        }
+        registry.rebind(name(chord.guid), chord);
+        chords.get(port).add(chord);
+    }
+
+    /**
+     * Removes a chord from its registry and from RMI. When the first chord goes, peers join through
+     * another chord at the port, and once none are left the registry is removed too, which lets the
+     * process exit once nothing else is exported
+     * @param chord the chord
+     * @throws IOException if the chord couldn't be unexported
+     */
+    public synchronized void unexport(Chord chord) throws IOException {
+        int port = chord.self.port;
+        Registry registry = registries.get(port);
+        List<Chord> atPort = chords.get(port);
+        if (registry != null && atPort.contains(chord)) {
+            try {
+                registry.unbind(name(chord.guid));
+            } catch(NotBoundException e) {}
+            boolean first = atPort.get(0) == chord;
+            atPort.remove(chord);
+            if (atPort.isEmpty()) {
+                registries.remove(port);
+                chords.remove(port);
+                UnicastRemoteObject.unexportObject(registry, true);
+            } else if (first) registry.rebind("Chord", atPort.get(0));
+        }
+        UnicastRemoteObject.unexportObject(chord, true);
+    }
+
+    /**
+     * Looks up a chord bound in the registry at an address
+     * @param ip the ip address of the registry
+     * @param port the port of the registry
+     * @param guid the guid of the chord, or FIRST
+     * @return the RMI stub of the chord
+     * @throws RemoteException if the registry can't be reached or has no such chord
+     */
+    public ChordMessageInterface connect(String ip, int port, long guid) throws RemoteException {
+        String name = guid == FIRST ? "Chord" : name(guid);
+        try {
+            Registry registry = LocateRegistry.getRegistry(ip, port);
+            return (ChordMessageInterface)(registry.lookup(name));
+        } catch(NotBoundException e) {
+            throw new RemoteException(String.format("No chord is bound as %s at %s:%d", name, ip, port), e);
+        }
+    }
+
+    /**
+     * Gets the name a chord is bound as
+     * @param guid the guid of the chord
+     * @return the name
+     */
+    private static String name(long guid) {
+        return "Chord/" + guid;
+    }
+}
@@ -0,0 +1,407 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Class appends files to large segment files, which saves an inode and an open per small file.
+ * Every record is [magic][guidObject][length][crc32][data], where a length of -1 marks a deletion and
+ * the magic names the kind of the file
+ */
+public class SegmentStore implements ObjectStore {
+    public static final long SEGMENT_BYTES = 64L << 20; // A segment is sealed once it grows past this size
+    public static final double COMPACTION_RATIO = 0.5; // Sealed segments with less live data than this are compacted
+    public static final long COMPACTION_INTERVAL = 10000; // Milliseconds between compaction passes
+
+    private static final int[] MAGICS = { 0x43484f52, 0x43484f4d, 0x43484f44 }; // Start of a record for each kind of file
+    private static final int HEADER_BYTES = 24;
+
+    /**
+     * Where the data of a file lives
+     */
+    private static class Location {
+        final int segment;
+        final long offset; // Start of the data, just past the record header
+        final long length;
+        final int kind; // Kind of the file from KeyIndex
+        final int crc; // Checksum of the data, from the record header
+
+        Location(int segment, long offset, long length, int kind, int crc) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.kind = kind;
+            this.crc = crc;
+        }
+    }
+
+    private final Path repository; // Directory the segments are stored in
+    private final Map<Long, Location> locations = new HashMap<>();
+    private final TreeMap<Integer, FileChannel> segments = new TreeMap<>(); // Open segments by id, the last is active
+    private final Map<Integer, Long> liveBytes = new HashMap<>(); // Bytes of each segment still referenced
+    private final Set<Integer> unsynced = new HashSet<>(); // Sealed segments written since they were last forced
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private Timer compactor;
+
+    /**
+     * Constructor for the SegmentStore class
+     * @param repository the directory to store the segments in
+     */
+    public SegmentStore(Path repository) {
+        this.repository = repository;
+    }
+
+    /**
+     * Replays every segment to rebuild the locations of the files, then starts background compaction.
+     * A torn record at the end of the last segment, left by a crash, is cut off
+     * @param index the index to fill
+     * @throws IOException if a segment can't be read
+     */
+    public void load(KeyIndex index) throws IOException {
+        lock.writeLock().lock();
+        try {
+            File[] files = repository.toFile().listFiles((dir, name) -> name.matches("segment-[0-9]+\\.log"));
+            if (files != null) {
+                for (File file : files) {
+                    int id = Integer.parseInt(file.getName().replaceAll("[^0-9]", ""));
+                    segments.put(id, FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE));
+                    liveBytes.put(id, 0L);
+                }
+            }
+            for (Map.Entry<Integer, FileChannel> segment : segments.entrySet())
+                replay(segment.getKey(), segment.getValue(), segment.getKey().equals(segments.lastKey()));
+            if (segments.isEmpty()) roll();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        locations.forEach((guidObject, location) -> index.put(guidObject, location.length, KeyIndex.newVersion(location.kind), location.crc & 0xffffffffL));
+
+        compactor = new Timer("segment-compactor", true);
+        compactor.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                compact();
+            }
+        }, COMPACTION_INTERVAL, COMPACTION_INTERVAL);
+    }
+
+    /**
+     * Appends a fully received file to the active segment and removes the staged copy
+     * @param guidObject the global unique identifier of the file
+     * @param staged where the file was received
+     * @param kind the kind of the file from KeyIndex
+     * @throws IOException
+     */
+    public void commit(long guidObject, Path staged, int kind) throws IOException {
+        try (FileChannel input = FileChannel.open(staged, StandardOpenOption.READ)) {
+            CRC32 crc = new CRC32();
+            ByteBuffer buffer = ByteBuffer.allocate(FileTransfer.CHUNK_SIZE);
+            while (input.read(buffer) != -1) {
+                buffer.flip();
+                crc.update(buffer);
+                buffer.clear();
+            }
+            input.position(0);
+            append(guidObject, input.size(), (int)crc.getValue(), input, kind);
+        }
+        Files.delete(staged);
+    }
+
+    /**
+     * Appends a file that is already in memory to the active segment
+     * @param guidObject the global unique identifier of the file
+     * @param data the data of the file
+     * @param kind the kind of the file from KeyIndex
+     * @throws IOException
+     */
+    public void write(long guidObject, byte[] data, int kind) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        append(guidObject, data.length, (int)crc.getValue(), Channels.newChannel(new ByteArrayInputStream(data)), kind);
+    }
+
+    /**
+     * Reads part of a file
+     * @param guidObject the global unique identifier of the file
+     * @param offset where to start reading
+     * @param length the maximum number of bytes to read
+     * @return the data, which is shorter than length at the end of the file
+     * @throws IOException if the file doesn't exist
+     */
+    public byte[] read(long guidObject, long offset, int length) throws IOException {
+        lock.readLock().lock();
+        try {
+            Location location = locations.get(guidObject);
+            if (location == null) throw new FileNotFoundException(String.format("%d is not in this repository", guidObject));
+
+            int count = (int)Math.max(0, Math.min(length, location.length - offset));
+            ByteBuffer buffer = ByteBuffer.allocate(count);
+            FileChannel segment = segments.get(location.segment);
+            while (buffer.hasRemaining() && segment.read(buffer, location.offset + offset + buffer.position()) != -1);
+            return buffer.array();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a file by appending a deletion record for it
+     * @param guidObject the global unique identifier of the file
+     * @throws IOException if the file doesn't exist
+     */
+    public void delete(long guidObject) throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (!locations.containsKey(guidObject))
+                throw new FileNotFoundException(String.format("%d is not in this repository", guidObject));
+            append(guidObject, -1, 0, null, KeyIndex.PLAIN);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Makes every record appended so far survive a crash by forcing the active segment and any segment
+     * sealed since the last force. Records only ever go to the active segment, so a sealed segment is
+     * done with once it has been forced
+     * @throws IOException if a segment couldn't be forced
+     */
+    public void sync() throws IOException {
+        Map<Integer, FileChannel> dirty = new HashMap<>();
+        lock.readLock().lock();
+        try {
+            for (int id : unsynced) dirty.put(id, segments.get(id));
+            dirty.put(segments.lastKey(), segments.lastEntry().getValue());
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        for (FileChannel segment : dirty.values()) {
+            try {
+                if (segment != null) segment.force(false);
+            } catch(ClosedChannelException e) {} // Compacted away, after its live records were forced elsewhere
+        }
+
+        lock.writeLock().lock();
+        try {
+            unsynced.removeAll(dirty.keySet());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Appends a record to the active segment and points the file at it
+     * @param guidObject the global unique identifier of the file
+     * @param length the length of the data, or -1 for a deletion
+     * @param crc the checksum of the data
+     * @param data a channel positioned at the start of the data, or null for a deletion
+     * @param kind the kind of the file from KeyIndex
+     * @throws IOException
+     */
+    private void append(long guidObject, long length, int crc, ReadableByteChannel data, int kind) throws IOException {
+        lock.writeLock().lock();
+        try {
+            int id = segments.lastKey();
+            FileChannel segment = segments.get(id);
+            long position = segment.size();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGICS[kind]).putLong(guidObject).putLong(length).putInt(crc).flip();
+            while (header.hasRemaining()) segment.write(header, position + header.position());
+
+            // Copying from a file channel stays in the kernel
+            for (long written = 0, copied; written < length; written += copied) {
+                copied = segment.transferFrom(data, position + HEADER_BYTES + written, length - written);
+                if (copied == 0) {
+                    segment.truncate(position); // Drop the partial record so a replay never sees it
+                    throw new EOFException(String.format("%d ended after %d of %d bytes", guidObject, written, length));
+                }
+            }
+
+            release(locations.remove(guidObject));
+            if (length >= 0) {
+                locations.put(guidObject, new Location(id, position + HEADER_BYTES, length, kind, crc));
+                liveBytes.merge(id, HEADER_BYTES + length, Long::sum);
+            }
+            if (segment.size() >= SEGMENT_BYTES) roll();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Applies the records of a segment to the file locations
+     * @param id the id of the segment
+     * @param segment the segment to replay
+     * @param last true if this is the newest segment, whose tail may be torn
+     * @throws IOException if the segment is corrupt anywhere but the tail of the newest segment
+     */
+    private void replay(int id, FileChannel segment, boolean last) throws IOException {
+        long position = 0, size = segment.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        while (position < size) {
+            header.clear();
+            while (header.hasRemaining() && segment.read(header, position + header.position()) != -1);
+            header.flip();
+
+            long guidObject = 0, length = -2;
+            int crc = 0, kind = header.remaining() == HEADER_BYTES ? kindOf(header.getInt()) : -1;
+            if (kind >= 0) {
+                guidObject = header.getLong();
+                length = header.getLong();
+                crc = header.getInt();
+            }
+            if (length < -1 || position + HEADER_BYTES + Math.max(0, length) > size || !checksum(segment, position + HEADER_BYTES, length, crc)) {
+                if (!last) throw new IOException(String.format("Segment %d is corrupt at byte %d", id, position));
+                System.out.printf("Truncating segment %d at byte %d after an incomplete write\n", id, position);
+                segment.truncate(position);
+                return;
+            }
+
+            release(locations.remove(guidObject));
+            if (length >= 0) {
+                locations.put(guidObject, new Location(id, position + HEADER_BYTES, length, kind, crc));
+                liveBytes.merge(id, HEADER_BYTES + length, Long::sum);
+            }
+            position += HEADER_BYTES + Math.max(0, length);
+        }
+    }
+
+    /**
+     * Gets the kind of file a record holds from its magic
+     * @param magic the first int of the record
+     * @return the kind of the file from KeyIndex, or -1 if this isn't the start of a record
+     */
+    private static int kindOf(int magic) {
+        for (int kind = 0; kind < MAGICS.length; kind++)
+            if (MAGICS[kind] == magic) return kind;
+        return -1;
+    }
+
+    /**
+     * Verifies the data of a record against its checksum
+     * @param segment the segment holding the record
+     * @param offset where the data starts
+     * @param length the length of the data, or -1 for a deletion
+     * @param crc the expected checksum
+     * @return true if the data matches
+     * @throws IOException
+     */
+    private boolean checksum(FileChannel segment, long offset, long length, int crc) throws IOException {
+        if (length < 0) return true;
+        CRC32 actual = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate((int)Math.min(FileTransfer.CHUNK_SIZE, Math.max(1, length)));
+        for (long read = 0; read < length; ) {
+            buffer.clear();
+            buffer.limit((int)Math.min(buffer.capacity(), length - read));
+            int count = segment.read(buffer, offset + read);
+            if (count <= 0) return false;
+            buffer.flip();
+            actual.update(buffer);
+            read += count;
+        }
+        return (int)actual.getValue() == crc;
+    }
+
+    /**
+     * Marks the space of a record as garbage
+     * @param location the record that is no longer referenced, or null
+     */
+    private void release(Location location) {
+        if (location != null) liveBytes.merge(location.segment, -(HEADER_BYTES + location.length), Long::sum);
+    }
+
+    /**
+     * Seals the active segment and starts a new one
+     * @throws IOException if the new segment can't be created
+     */
+    private void roll() throws IOException {
+        if (!segments.isEmpty()) unsynced.add(segments.lastKey());
+        int id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+        Path path = repository.resolve(String.format("segment-%06d.log", id));
+        segments.put(id, FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE));
+        liveBytes.put(id, 0L);
+        if (GroupCommit.ENABLED) GroupCommit.forceDirectory(repository); // Segments are rolled rarely, so this can wait under the lock
+    }
+
+    /**
+     * Copies the live records out of sealed segments that are mostly garbage, then deletes those segments
+     */
+    void compact() {
+        List<Integer> candidates = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (Map.Entry<Integer, FileChannel> segment : segments.headMap(segments.lastKey()).entrySet()) {
+                long size = segment.getValue().size();
+                if (size > 0 && liveBytes.get(segment.getKey()) < size * COMPACTION_RATIO) candidates.add(segment.getKey());
+            }
+        } catch(IOException e) {
+            return;
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        for (int id : candidates) {
+            try {
+                compact(id);
+            } catch(IOException e) {
+                System.out.printf("Failed to compact segment %d -> %s\n", id, e.getMessage());
+                return;
+            }
+        }
+    }
+
+    /**
+     * Moves the live records of one sealed segment to the active segment and deletes it
+     * @param id the id of the segment
+     * @throws IOException
+     */
+    private void compact(int id) throws IOException {
+        FileChannel segment = segments.get(id);
+        long position = 0, size = segment.size(), reclaimed = size;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        while (position < size) {
+            header.clear();
+            while (header.hasRemaining() && segment.read(header, position + header.position()) != -1);
+            header.flip();
+            int kind = kindOf(header.getInt());
+            long guidObject = header.getLong(), length = header.getLong();
+            int crc = header.getInt();
+
+            lock.writeLock().lock();
+            try {
+                Location location = locations.get(guidObject);
+                boolean live = location != null && location.segment == id && location.offset == position + HEADER_BYTES;
+
+                // A deletion has to outlive any older segment that may still hold the deleted data
+                boolean tombstone = length < 0 && location == null && !segments.firstKey().equals(id);
+                if (live || tombstone) {
+                    append(guidObject, length, crc, segment.position(position + HEADER_BYTES), kind);
+                    reclaimed -= HEADER_BYTES + Math.max(0, length);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            position += HEADER_BYTES + Math.max(0, length);
+        }
+        if (GroupCommit.ENABLED) sync(); // The records moved out must be durable before the segment is gone
+
+        lock.writeLock().lock();
+        try {
+            unsynced.remove(id);
+            segments.remove(id).close();
+            liveBytes.remove(id);
+            Files.delete(repository.resolve(String.format("segment-%06d.log", id)));
+        } finally {
+            lock.writeLock().unlock();
+        }
+        System.out.printf("Compacted segment %d, reclaiming %d bytes\n", id, reclaimed);
+    }
+}
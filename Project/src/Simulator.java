@@ -0,0 +1,316 @@
+import java.io.*;
+import java.nio.file.*;
+import java.rmi.*;
+import java.util.*;
+import java.util.stream.*;
+
+/**
+ * Class runs a ring of many chords in this process over LocalTransport, to check routing and maintenance
+ * at a scale that would otherwise take one JVM per peer. The ring is seeded with files and grows by
+ * doubling up to the requested size, and then a tenth of the peers crash at once. After each step the
+ * simulator waits for the ring to settle and reports how long that took, how many files changed hands,
+ * how evenly the files are spread and how many hops lookups take.
+ * Run with java Simulator [peers] [files] [latency ms] [failure rate]
+ */
+public class Simulator {
+    public static final int FIRST_PORT = 7000; // Ports only have to be unique within the transport
+    public static final int LOOKUPS = 2000; // Random lookups timed after each step
+    public static final long SETTLE_MILLIS = 60000; // Longest wait for the ring to settle after a step
+
+    private final LocalTransport transport = new LocalTransport();
+    private final List<Chord> chords = new ArrayList<>(); // The live chords
+    private final List<Long> created = new ArrayList<>(); // Every chord started, so their directories can be removed
+    private final Random random = new Random(327);
+    private final PrintStream out; // Where the report goes, while the chords' own messages are dropped
+    private int nextPort = FIRST_PORT;
+
+    /**
+     * What a step did to the ring
+     */
+    private static class Step {
+        final String name;
+        double joinMillis; // Average time joinRing took, or 0 when no peer joined
+        long stabilizedMillis = -1; // Until every successor and predecessor was right, -1 if it never was
+        long settledMillis = -1; // Until every chord's maintenance converged, -1 if it never did
+        int movedKeys, lostKeys;
+        long movedBytes, sentBytes;
+
+        Step(String name) {
+            this.name = name;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int peers = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int files = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        long latencyMillis = args.length > 2 ? Long.parseLong(args[2]) : 0;
+        double failureRate = args.length > 3 ? Double.parseDouble(args[3]) : 0;
+
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            public void write(int b) {}
+            public void write(byte[] b, int off, int len) {}
+        }));
+
+        Simulator simulator = new Simulator(out);
+        simulator.transport.latencyMicros = latencyMillis * 1000;
+        simulator.transport.failureRate = failureRate;
+        out.printf("Simulating %d peers with %d files, %d ms latency and %.3f failure rate per call\n", peers, files, latencyMillis, failureRate);
+        try {
+            simulator.run(peers, files);
+        } finally {
+            simulator.cleanUp();
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Constructor for the Simulator class
+     * @param out where the report is printed
+     */
+    public Simulator(PrintStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Seeds a single chord with files, grows the ring to its full size and then crashes part of it
+     * @param peers the size the ring grows to
+     * @param files the number of files stored
+     * @throws IOException if a chord can't be started or the files can't be stored
+     */
+    public void run(int peers, int files) throws IOException {
+        Chord first = start();
+        for (int i = 0; i < files; i++) {
+            byte[] data = new byte[1024 + random.nextInt(3072)];
+            random.nextBytes(data);
+            FileTransfer.upload(first, ChordUser.hash("file-" + i), new ByteArrayInputStream(data));
+        }
+
+        out.printf("%-14s %8s %9s %9s %7s %9s %5s %9s %6s %5s %5s %5s %4s %6s %6s\n", "step", "join ms", "stable ms", "settle ms",
+                "moved", "moved KB", "lost", "keys/peer", "max/avg", "hops", "p50", "p99", "max", "wrong", "failed");
+        for (int size = 2; chords.size() < peers; size = Math.min(peers, size * 2)) {
+            int target = size;
+            measure(new Step("grow to " + target), () -> {
+                long joining = 0;
+                int joined = 0;
+                while (chords.size() < target) {
+                    Chord known = chords.get(random.nextInt(chords.size()));
+                    Chord chord = start();
+                    long start = System.nanoTime();
+                    chord.joinRing(known.self.ip, known.self.port);
+                    joining += System.nanoTime() - start;
+                    joined++;
+                }
+                return joining / 1e6 / joined;
+            });
+        }
+
+        measure(new Step("crash " + Math.max(1, chords.size() / 10)), () -> {
+            for (int i = Math.max(1, chords.size() / 10); i > 0; i--) crash(chords.remove(random.nextInt(chords.size())));
+            return 0;
+        });
+        out.printf("Transport carried %s\n", transport.report());
+    }
+
+    /**
+     * Something done to the ring, such as peers joining or crashing
+     */
+    private interface Change {
+        /**
+         * Changes the ring
+         * @return the average time a join took in milliseconds, or 0
+         * @throws IOException if a chord couldn't be started
+         */
+        double apply() throws IOException;
+    }
+
+    /**
+     * Changes the ring, waits for it to settle and prints what happened
+     * @param step the step being measured
+     * @param change what the step does
+     * @throws IOException if a chord couldn't be started
+     */
+    private void measure(Step step, Change change) throws IOException {
+        Map<Long, Chord> before = holders();
+        long sentBefore = transport.bytes.sum();
+
+        step.joinMillis = change.apply();
+        long start = System.nanoTime(), deadline = start + SETTLE_MILLIS * 1000000;
+        while (System.nanoTime() < deadline) {
+            if (step.stabilizedMillis < 0 && isRingCorrect()) step.stabilizedMillis = (System.nanoTime() - start) / 1000000;
+            if (step.stabilizedMillis >= 0 && chords.stream().noneMatch(c -> c.maintenance.isConverging())) {
+                step.settledMillis = (System.nanoTime() - start) / 1000000;
+                break;
+            }
+            sleep(20);
+        }
+        step.sentBytes = transport.bytes.sum() - sentBefore;
+
+        Map<Long, Chord> after = holders();
+        for (Map.Entry<Long, Chord> entry : before.entrySet()) {
+            Chord holder = after.get(entry.getKey());
+            if (holder == null) step.lostKeys++;
+            else if (holder != entry.getValue()) {
+                step.movedKeys++;
+                step.movedBytes += holder.index.size(entry.getKey());
+            }
+        }
+        print(step);
+    }
+
+    /**
+     * Prints the row of a step, with the spread of the files and the hops of random lookups as they are now
+     * @param step the step
+     */
+    private void print(Step step) {
+        int[] counts = chords.stream().mapToInt(c -> c.index.count()).toArray();
+        double average = IntStream.of(counts).average().orElse(0);
+        int most = IntStream.of(counts).max().orElse(0);
+
+        // Look up random keys from random peers and check the answers against the sorted ring
+        long[] ids = chords.stream().mapToLong(c -> c.guid).sorted().toArray();
+        int[] hops = new int[LOOKUPS];
+        int wrong = 0, failed = 0, answered = 0;
+        for (int i = 0; i < LOOKUPS; i++) {
+            long key = random.nextLong() & Long.MAX_VALUE;
+            Chord from = chords.get(random.nextInt(chords.size()));
+            try {
+                int count = from.countHops(key);
+                ChordNode owner = from.locateSuccessor(key);
+                hops[answered++] = count;
+                if (owner == null || owner.id != successorOf(ids, key)) wrong++;
+            } catch(RemoteException | IllegalArgumentException e) {
+                failed++;
+            }
+        }
+        hops = Arrays.copyOf(hops, answered);
+        Arrays.sort(hops);
+
+        out.printf("%-14s %8.1f %9s %9s %7d %9d %5d %9.1f %6.2f %5.2f %5d %5d %4d %6d %6d\n", step.name, step.joinMillis,
+                step.stabilizedMillis < 0 ? "timeout" : Long.toString(step.stabilizedMillis),
+                step.settledMillis < 0 ? "timeout" : Long.toString(step.settledMillis),
+                step.movedKeys, step.movedBytes / 1024, step.lostKeys, average, average == 0 ? 0 : most / average,
+                IntStream.of(hops).average().orElse(0), percentile(hops, 50), percentile(hops, 99), percentile(hops, 100), wrong, failed);
+
+        // The hop distribution, as the number of lookups that took each number of hops
+        StringBuilder distribution = new StringBuilder("  hops:");
+        for (int h = 0, i = 0; i < hops.length; h++) {
+            int n = 0;
+            while (i < hops.length && hops[i] == h) {
+                n++;
+                i++;
+            }
+            distribution.append(String.format(" %d=%d", h, n));
+        }
+        out.printf("%s, %d KB sent while settling\n", distribution, step.sentBytes / 1024);
+    }
+
+    /**
+     * Tells whether every live chord has the right successor and predecessor
+     * @return true if the ring is whole
+     */
+    private boolean isRingCorrect() {
+        long[] ids = chords.stream().mapToLong(c -> c.guid).sorted().toArray();
+        for (Chord chord : chords) {
+            int i = Arrays.binarySearch(ids, chord.guid);
+            ChordNode successor = chord.successor, predecessor = chord.predecessor;
+            if (successor == null || successor.id != ids[(i + 1) % ids.length]) return false;
+            if (ids.length > 1 && (predecessor == null || predecessor.id != ids[(i + ids.length - 1) % ids.length])) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Maps every stored key to the chord that holds it
+     * @return the holder of each key
+     */
+    private Map<Long, Chord> holders() {
+        Map<Long, Chord> holders = new HashMap<>();
+        for (Chord chord : chords)
+            for (long key : chord.index.keys()) holders.put(key, chord);
+        return holders;
+    }
+
+    /**
+     * Starts a chord with an empty repository
+     * @return the chord, alone in a ring of its own
+     * @throws IOException if the repository can't be created
+     */
+    private Chord start() throws IOException {
+        int port = nextPort++;
+        long guid = ChordUser.hash(Integer.toString(port));
+        delete(Paths.get(Long.toString(guid)));
+        Files.createDirectories(Paths.get(String.format("%d/repository", guid)));
+        created.add(guid);
+
+        Chord chord = new Chord(port, guid, transport);
+        chords.add(chord);
+        return chord;
+    }
+
+    /**
+     * Stops a chord without letting it leave the ring, so its neighbors have to notice it is gone
+     * @param chord the chord
+     * @throws IOException if the chord couldn't be taken off the transport
+     */
+    private void crash(Chord chord) throws IOException {
+        chord.maintenance.shutdown();
+        transport.unexport(chord);
+    }
+
+    /**
+     * Stops every chord and removes the directories they created
+     * @throws IOException if a directory couldn't be removed
+     */
+    private void cleanUp() throws IOException {
+        for (Chord chord : chords) crash(chord);
+        for (long guid : created) delete(Paths.get(Long.toString(guid)));
+    }
+
+    /**
+     * Finds the peer responsible for a key in a sorted ring
+     * @param ids the guids of the peers, sorted
+     * @param key the key
+     * @return the guid of the first peer at or after the key, wrapping around the ring
+     */
+    private static long successorOf(long[] ids, long key) {
+        int i = Arrays.binarySearch(ids, key);
+        if (i < 0) i = -i - 1;
+        return ids[i % ids.length];
+    }
+
+    /**
+     * Gets a percentile of sorted values
+     * @param sorted the values, sorted
+     * @param percent the percentile, 100 for the largest value
+     * @return the value, or 0 if there are none
+     */
+    private static int percentile(int[] sorted, int percent) {
+        if (sorted.length == 0) return 0;
+        return sorted[Math.min(sorted.length - 1, sorted.length * percent / 100)];
+    }
+
+    /**
+     * Sleeps, stopping early if the thread is interrupted
+     * @param millis the time to sleep
+     */
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Deletes a directory and everything in it, if it exists
+     * @param directory the directory
+     * @throws IOException
+     */
+    private static void delete(Path directory) throws IOException {
+        if (!Files.exists(directory)) return;
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) Files.delete(path);
+        }
+    }
+}
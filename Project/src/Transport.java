@@ -0,0 +1,61 @@
+import java.io.*;
+import java.rmi.*;
+
+/**
+ * Interface for the ways chords can reach each other. A transport makes a chord reachable at a port
+ * and hands out stubs that forward the calls of ChordMessageInterface to the chord at another address.
+ * The virtual nodes of a machine all share its port, and are told apart by their guid. A call to a peer
+ * that can't be reached within -Dchord.connectTimeout or doesn't answer within the timeout CallTimeout
+ * picks for the call fails with a RemoteException, so a crashed machine never holds up its caller for long
+ */
+interface Transport {
+    long FIRST = 0; // Stands for the guid of the first chord exported at a port, which is where peers join
+    int CONNECT_TIMEOUT_MILLIS = Integer.getInteger("chord.connectTimeout", 1000); // Longest wait to reach a peer
+    int READ_TIMEOUT_MILLIS = Integer.getInteger("chord.readTimeout", 5000); // Longest wait for the answer to a lookup, heartbeat or other short call
+    // Longest wait for the answer to a call that moves file data, 0 for no limit since a notify or a put can move many files
+    int BULK_TIMEOUT_MILLIS = Integer.getInteger("chord.bulkTimeout", 0);
+
+    /**
+     * Makes a chord reachable by other peers, sharing the port with any chords already exported at it
+     * @param chord the chord to serve
+     * @param port the port to listen on
+     * @throws IOException if the port can't be opened
+     */
+    void export(Chord chord, int port) throws IOException;
+
+    /**
+     * Stops serving a chord that was exported by this transport
+     * @param chord the chord
+     * @throws IOException if the chord couldn't be unexported
+     */
+    void unexport(Chord chord) throws IOException;
+
+    /**
+     * Gets a stub for one of the chords at an address
+     * @param ip the ip address of the peer
+     * @param port the port of the peer
+     * @param guid the guid of the chord, or FIRST
+     * @return a stub whose calls are carried to the chord
+     * @throws RemoteException if the peer can't be reached
+     */
+    ChordMessageInterface connect(String ip, int port, long guid) throws RemoteException;
+
+    /**
+     * Gets a stub for the first chord exported at an address
+     * @param ip the ip address of the peer
+     * @param port the port of the peer
+     * @return a stub whose calls are carried to the chord
+     * @throws RemoteException if the peer can't be reached
+     */
+    default ChordMessageInterface connect(String ip, int port) throws RemoteException {
+        return connect(ip, port, FIRST);
+    }
+
+    /**
+     * Gets the transport picked with -Dchord.transport=rmi (the default) or -Dchord.transport=nio
+     * @return the shared transport of that kind
+     */
+    static Transport fromProperties() {
+        return "nio".equals(System.getProperty("chord.transport")) ? NioTransport.shared() : RmiTransport.shared();
+    }
+}
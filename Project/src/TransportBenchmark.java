@@ -0,0 +1,111 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Class compares the latency and throughput of RMI and NIO by running a two-peer ring on each
+ * transport in this process and timing lookups, writes and reads through a stub, the same calls
+ * ChordUser makes. Run with java TransportBenchmark [calls] [threads] [file bytes]
+ */
+public class TransportBenchmark {
+    private interface Call {
+        void run(int i) throws IOException;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int calls = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int fileBytes = args.length > 2 ? Integer.parseInt(args[2]) : 4096;
+
+        System.out.printf("%d calls per measurement, %d threads for throughput, %d byte files\n", calls, threads, fileBytes);
+        System.out.printf("%-5s %-7s %10s %10s %10s %12s\n", "", "", "avg us", "p50 us", "p99 us", "calls/s");
+        run("RMI", RmiTransport.shared(), 5600, calls, threads, fileBytes);
+        run("NIO", NioTransport.shared(), 5610, calls, threads, fileBytes);
+        System.exit(0);
+    }
+
+    /**
+     * Starts a two-peer ring on a transport and measures it
+     * @param name the name printed for the transport
+     * @param transport the transport to measure
+     * @param port the port of the first peer, the second one uses the next port
+     * @param calls the number of calls per measurement
+     * @param threads the number of threads making calls at once when measuring throughput
+     * @param fileBytes the size of the files written and read
+     * @throws Exception if the ring can't be started
+     */
+    private static void run(String name, Transport transport, int port, int calls, int threads, int fileBytes) throws Exception {
+        Chord first = start(port, transport), second = start(port + 1, transport);
+        second.joinRing("127.0.0.1", port);
+        Thread.sleep(2000); // Let the ring stabilize
+
+        ChordMessageInterface stub = transport.connect("127.0.0.1", port);
+        Random random = new Random(port);
+        long[] keys = new long[calls];
+        for (int i = 0; i < calls; i++) keys[i] = random.nextLong() & Long.MAX_VALUE;
+        byte[] data = new byte[fileBytes];
+        random.nextBytes(data);
+
+        measure(name, "lookup", calls, threads, i -> stub.locateSuccessor(keys[i]));
+        measure(name, "put", calls, threads, i -> FileTransfer.upload(stub.locateSuccessor(keys[i]).stub, keys[i], new ByteArrayInputStream(data)));
+        measure(name, "get", calls, threads, i -> FileTransfer.copy(stub.locateSuccessor(keys[i]).stub.get(keys[i]), new ByteArrayOutputStream(fileBytes)));
+
+        first.maintenance.shutdown();
+        second.maintenance.shutdown();
+    }
+
+    /**
+     * Creates a peer with an empty repository
+     * @param port the port of the peer
+     * @param transport the transport of the peer
+     * @return the peer
+     * @throws IOException if the repository can't be created
+     */
+    private static Chord start(int port, Transport transport) throws IOException {
+        long guid = ChordUser.hash(Integer.toString(port));
+        Path repository = Paths.get(String.format("%d/repository", guid));
+        Files.createDirectories(repository);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(repository)) {
+            for (Path file : files) Files.deleteIfExists(file);
+        }
+        return new Chord(port, guid, transport);
+    }
+
+    /**
+     * Times a call made one at a time for latency, then from several threads at once for throughput
+     * @param transport the name of the transport
+     * @param operation the name of the call
+     * @param calls the number of calls per measurement
+     * @param threads the number of threads for the throughput measurement
+     * @param call the call, given the index of a key
+     * @throws Exception if any call fails
+     */
+    private static void measure(String transport, String operation, int calls, int threads, Call call) throws Exception {
+        long[] nanos = new long[calls];
+        for (int i = 0; i < calls; i++) {
+            long start = System.nanoTime();
+            call.run(i);
+            nanos[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(nanos);
+        double average = Arrays.stream(nanos).average().orElse(0) / 1000;
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Void>> results = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < calls; i++) {
+            final int index = i;
+            results.add(pool.submit(() -> {
+                call.run(index);
+                return null;
+            }));
+        }
+        for (Future<Void> result : results) result.get();
+        double perSecond = calls * 1e9 / (System.nanoTime() - start);
+        pool.shutdown();
+
+        System.out.printf("%-5s %-7s %10.1f %10.1f %10.1f %12.0f\n", transport, operation, average,
+                nanos[calls / 2] / 1000.0, nanos[calls * 99 / 100] / 1000.0, perSecond);
+    }
+}
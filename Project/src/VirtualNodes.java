@@ -0,0 +1,104 @@
+import java.rmi.*;
+import java.util.*;
+
+/**
+ * Class runs the virtual nodes of one machine. Each virtual node is a chord with a ring position of its
+ * own, so a machine owns many small ranges of the ring instead of one large one, which spreads the keys
+ * evenly even when there are few machines. The virtual nodes share the machine's port and store.
+ * The number of virtual nodes is -Dchord.vnodes (1 by default) scaled by -Dchord.weight (1.0 by default),
+ * so a machine with twice the weight takes about twice as much of the ring
+ */
+public class VirtualNodes {
+    public static final int VNODES = Math.max(1, Integer.getInteger("chord.vnodes", 1)); // Virtual nodes of a machine with weight 1
+    public static final double WEIGHT = Double.parseDouble(System.getProperty("chord.weight", "1")); // Share of the ring this machine takes
+
+    private final List<Chord> chords = new ArrayList<>(); // The virtual nodes, starting with the primary
+
+    /**
+     * Constructor for the VirtualNodes class. The first virtual node opens the store, and the others
+     * join its ring, taking over their ranges of the files it holds
+     * @param port the port shared by the virtual nodes
+     * @param transport carries calls between the virtual nodes and other peers
+     * @throws RemoteException if a virtual node can't be reached at the port
+     */
+    public VirtualNodes(int port, Transport transport) throws RemoteException {
+        Chord primary = new Chord(port, guid(port, 0), transport);
+        chords.add(primary);
+        for (int i = 1; i < count(); i++) {
+            Chord chord = new Chord(port, guid(port, i), transport, primary);
+            chords.add(chord);
+            chord.joinRing(primary.self.ip, port);
+        }
+    }
+
+    /**
+     * Gets the number of virtual nodes this machine runs
+     * @return -Dchord.vnodes scaled by -Dchord.weight, and at least 1
+     */
+    public static int count() {
+        return Math.max(1, (int)Math.round(VNODES * WEIGHT));
+    }
+
+    /**
+     * Gets the ring position of a virtual node. The first one keeps the position a machine has without
+     * virtual nodes, so its directory and the peers that know it stay the same
+     * @param port the port of the machine
+     * @param i the number of the virtual node, starting at 0
+     * @return the guid of the virtual node
+     */
+    public static long guid(int port, int i) {
+        return ChordUser.hash(i == 0 ? Integer.toString(port) : port + "#" + i);
+    }
+
+    /**
+     * Accessor for the first virtual node, which peers join through and which runs the client
+     * @return the primary chord
+     */
+    public Chord primary() {
+        return chords.get(0);
+    }
+
+    /**
+     * Joins every virtual node to the ring of another peer. Each one only takes over the range
+     * between itself and its new predecessor
+     * @param ip the ip address of the peer
+     * @param port the port of the peer
+     * @throws RemoteException
+     */
+    public void joinRing(String ip, int port) throws RemoteException {
+        for (Chord chord : chords) chord.joinRing(ip, port);
+    }
+
+    /**
+     * Removes every virtual node from the ring. A virtual node hands its files to its successor, so one
+     * whose successor is another virtual node of this machine has to leave first, or that successor
+     * would take the files after it left. Going around the ring from the node after one whose successor
+     * is on another machine does that, and the files end up with the peers after this machine's ranges
+     */
+    public void leave() {
+        List<Chord> ring = new ArrayList<>(chords);
+        ring.sort(Comparator.comparingLong(chord -> chord.guid));
+        int start = -1;
+        for (int i = 0; i < ring.size() && start < 0; i++) {
+            ChordNode successor = ring.get(i).successor;
+            if (successor != null && !primary().colocated.containsKey(successor.id)) start = (i + 1) % ring.size();
+        }
+        if (start < 0) return; // Every successor is on this machine, so there is no one to hand the files to
+
+        for (int i = 0; i < ring.size(); i++) {
+            Chord chord = ring.get((start + i) % ring.size());
+            chord.leave();
+            primary().colocated.remove(chord.guid);
+        }
+    }
+
+    /**
+     * Prints the status of every virtual node to the console
+     */
+    public void print() {
+        for (int i = 0; i < chords.size(); i++) {
+            if (chords.size() > 1) System.out.printf("\n===== Virtual node %d of %d: %d =====", i + 1, chords.size(), chords.get(i).guid);
+            chords.get(i).print();
+        }
+    }
+}
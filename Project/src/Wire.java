@@ -0,0 +1,288 @@
+import java.io.*;
+import java.lang.reflect.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * Class encodes the calls of ChordMessageInterface in the compact binary frames NioTransport sends.
+ * Every frame is [length int][request id long][kind byte][payload], where the kind of a request is the
+ * index of the method being called and the kind of a response is OK or FAILED. The payload of a request
+ * starts with the guid of the chord being called, since the virtual nodes of a machine share its port.
+ * Arguments and results are written field by field in the order the method declares them, with no class descriptors
+ */
+class Wire {
+    public static final byte OK = 0; // Kind of a response carrying the result of a call
+    public static final byte FAILED = 1; // Kind of a response carrying the exception a call threw
+    public static final int HEADER_BYTES = 8 + 1; // Request id and kind, after the length
+    public static final int MAX_FRAME_BYTES = 64 << 20; // Larger frames are refused as corrupt
+
+    // Both ends number the methods the same way by sorting them on their full signature
+    static final Method[] METHODS = ChordMessageInterface.class.getMethods();
+    private static final Map<Method, Integer> INDEX = new HashMap<>();
+    static {
+        Arrays.sort(METHODS, Comparator.comparing(Method::toGenericString));
+        for (int i = 0; i < METHODS.length; i++) INDEX.put(METHODS[i], i);
+    }
+
+    /**
+     * A decoded frame
+     */
+    static class Frame {
+        final long requestId;
+        final byte kind;
+        final DataInputStream payload;
+
+        Frame(ByteBuffer body) {
+            requestId = body.getLong();
+            kind = body.get();
+            payload = new DataInputStream(new ByteArrayInputStream(body.array(), body.arrayOffset() + body.position(), body.remaining()));
+        }
+    }
+
+    /**
+     * Starts a frame whose length is filled in by finish
+     * @param buffer where the frame is built
+     * @param requestId the request the frame belongs to
+     * @param kind the method index of a request, or OK or FAILED for a response
+     * @return a stream to write the payload to
+     * @throws IOException
+     */
+    static DataOutputStream begin(ByteArrayOutputStream buffer, long requestId, byte kind) throws IOException {
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeInt(0);
+        out.writeLong(requestId);
+        out.writeByte(kind);
+        return out;
+    }
+
+    /**
+     * Fills in the length of a frame started by begin
+     * @param buffer the buffer holding the frame
+     * @return the frame, ready to be written to a channel
+     */
+    static ByteBuffer finish(ByteArrayOutputStream buffer) {
+        ByteBuffer frame = ByteBuffer.wrap(buffer.toByteArray());
+        frame.putInt(0, frame.capacity() - 4);
+        return frame;
+    }
+
+    /**
+     * Encodes a call to a method of ChordMessageInterface
+     * @param requestId the identifier the response will carry
+     * @param target the guid of the chord being called, or Transport.FIRST
+     * @param method the method being called
+     * @param args the arguments of the call, or null if it has none
+     * @return the request frame
+     * @throws IOException if an argument can't be encoded
+     */
+    static ByteBuffer request(long requestId, long target, Method method, Object[] args) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = begin(buffer, requestId, (byte)(int)INDEX.get(method));
+        out.writeLong(target);
+        Class<?>[] types = method.getParameterTypes();
+        for (int i = 0; i < types.length; i++) write(out, types[i], args[i]);
+        return finish(buffer);
+    }
+
+    /**
+     * Encodes the result of a call
+     * @param requestId the identifier of the request
+     * @param type the return type of the method
+     * @param result what the method returned
+     * @return the response frame
+     * @throws IOException if the result can't be encoded
+     */
+    static ByteBuffer response(long requestId, Class<?> type, Object result) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        write(begin(buffer, requestId, OK), type, result);
+        return finish(buffer);
+    }
+
+    /**
+     * Encodes an exception thrown by a call. Failures are rare, so they keep Java serialization
+     * to arrive with their original type
+     * @param requestId the identifier of the request
+     * @param failure what the method threw
+     * @return the response frame
+     * @throws IOException
+     */
+    static ByteBuffer failure(long requestId, Throwable failure) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(begin(buffer, requestId, FAILED));
+        out.writeObject(failure);
+        out.flush();
+        return finish(buffer);
+    }
+
+    /**
+     * Decodes an exception encoded by failure
+     * @param payload the payload of the response
+     * @return the exception the call threw
+     * @throws IOException if the payload is corrupt
+     */
+    static Throwable readFailure(DataInputStream payload) throws IOException {
+        try {
+            return (Throwable)new ObjectInputStream(payload).readObject();
+        } catch(ClassNotFoundException e) {
+            throw new StreamCorruptedException(e.getMessage());
+        }
+    }
+
+    /**
+     * Writes one argument or result
+     * @param out where the value is written
+     * @param type the declared type of the value
+     * @param value the value
+     * @throws IOException if values of the type can't be sent
+     */
+    static void write(DataOutputStream out, Class<?> type, Object value) throws IOException {
+        if (type == void.class) return;
+        else if (type == long.class) out.writeLong((Long)value);
+        else if (type == int.class) out.writeInt((Integer)value);
+        else if (type == boolean.class) out.writeBoolean((Boolean)value);
+        else if (type == String.class) {
+            out.writeBoolean(value != null);
+            if (value != null) out.writeUTF((String)value);
+        } else if (type == byte[].class) writeBytes(out, (byte[])value);
+        else if (type == long[].class) {
+            long[] longs = (long[])value;
+            out.writeInt(longs == null ? -1 : longs.length);
+            if (longs != null) for (long l : longs) out.writeLong(l);
+        } else if (type == boolean[].class) {
+            boolean[] flags = (boolean[])value;
+            out.writeInt(flags == null ? -1 : flags.length);
+            if (flags != null) for (boolean flag : flags) out.writeBoolean(flag);
+        } else if (type == byte[][].class) {
+            byte[][] arrays = (byte[][])value;
+            out.writeInt(arrays == null ? -1 : arrays.length);
+            if (arrays != null) for (byte[] bytes : arrays) writeBytes(out, bytes);
+        } else if (type == ChordNode.class) writeNode(out, (ChordNode)value);
+        else if (type == ChordNode[].class) {
+            ChordNode[] nodes = (ChordNode[])value;
+            out.writeInt(nodes == null ? -1 : nodes.length);
+            if (nodes != null) for (ChordNode node : nodes) writeNode(out, node);
+        } else if (type == InputStream.class) {
+            // Only a handle is sent, and the receiver pulls the chunks from the peer that stores the file
+            if (value != null && !(value instanceof FileStream))
+                throw new NotSerializableException(value.getClass().getName());
+            FileStream stream = (FileStream)value;
+            out.writeBoolean(stream != null);
+            if (stream == null) return;
+            writeNode(out, stream.getSource());
+            out.writeLong(stream.getGuidObject());
+            out.writeLong(stream.getSize());
+            out.writeLong(stream.getVersion());
+            out.writeLong(stream.getPosition());
+            out.writeLong(stream.getEnd());
+            out.writeBoolean(stream.isHot());
+            out.writeLong(stream.getChecksum());
+        } else throw new NotSerializableException(type.getName());
+    }
+
+    /**
+     * Reads one argument or result written by write
+     * @param in where the value is read from
+     * @param type the declared type of the value
+     * @param transport resolves the addresses of peers into stubs
+     * @return the value
+     * @throws IOException if the data is corrupt
+     */
+    static Object read(DataInputStream in, Class<?> type, Transport transport) throws IOException {
+        if (type == void.class) return null;
+        else if (type == long.class) return in.readLong();
+        else if (type == int.class) return in.readInt();
+        else if (type == boolean.class) return in.readBoolean();
+        else if (type == String.class) return in.readBoolean() ? in.readUTF() : null;
+        else if (type == byte[].class) return readBytes(in);
+        else if (type == long[].class) {
+            int length = in.readInt();
+            if (length < 0) return null;
+            long[] longs = new long[length];
+            for (int i = 0; i < length; i++) longs[i] = in.readLong();
+            return longs;
+        } else if (type == boolean[].class) {
+            int length = in.readInt();
+            if (length < 0) return null;
+            boolean[] flags = new boolean[length];
+            for (int i = 0; i < length; i++) flags[i] = in.readBoolean();
+            return flags;
+        } else if (type == byte[][].class) {
+            int length = in.readInt();
+            if (length < 0) return null;
+            byte[][] arrays = new byte[length][];
+            for (int i = 0; i < length; i++) arrays[i] = readBytes(in);
+            return arrays;
+        } else if (type == ChordNode.class) return readNode(in, transport);
+        else if (type == ChordNode[].class) {
+            int length = in.readInt();
+            if (length < 0) return null;
+            ChordNode[] nodes = new ChordNode[length];
+            for (int i = 0; i < length; i++) nodes[i] = readNode(in, transport);
+            return nodes;
+        } else if (type == InputStream.class) {
+            if (!in.readBoolean()) return null;
+            ChordNode source = readNode(in, transport);
+            long guidObject = in.readLong(), size = in.readLong(), version = in.readLong();
+            long position = in.readLong(), end = in.readLong();
+            FileStream stream = new FileStream(source, guidObject, size, version, position, end - position);
+            stream.setHot(in.readBoolean());
+            stream.setChecksum(in.readLong());
+            return stream;
+        }
+        throw new NotSerializableException(type.getName());
+    }
+
+    /**
+     * Writes a byte array preceded by its length, -1 for null
+     * @param out where the array is written
+     * @param bytes the array
+     * @throws IOException
+     */
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes == null ? -1 : bytes.length);
+        if (bytes != null) out.write(bytes);
+    }
+
+    /**
+     * Reads a byte array written by writeBytes
+     * @param in where the array is read from
+     * @return the array
+     * @throws IOException
+     */
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * Writes the address of a peer, which is all a receiver needs to call it
+     * @param out where the peer is written
+     * @param node the peer
+     * @throws IOException
+     */
+    private static void writeNode(DataOutputStream out, ChordNode node) throws IOException {
+        out.writeBoolean(node != null);
+        if (node == null) return;
+        out.writeLong(node.id);
+        out.writeUTF(node.ip);
+        out.writeInt(node.port);
+    }
+
+    /**
+     * Reads a peer written by writeNode
+     * @param in where the peer is read from
+     * @param transport connects to the peer
+     * @return the peer, with a stub that calls it through the transport
+     * @throws IOException
+     */
+    private static ChordNode readNode(DataInputStream in, Transport transport) throws IOException {
+        if (!in.readBoolean()) return null;
+        long id = in.readLong();
+        String ip = in.readUTF();
+        int port = in.readInt();
+        return new ChordNode(id, ip, port, transport.connect(ip, port, id));
+    }
+}
@@ -0,0 +1,142 @@
+import java.io.*;
+import java.lang.reflect.Proxy;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListSet;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that range reads hand back exactly the bytes asked for and that a download cut off part way
+ * through continues from its last verified chunk, fetching only the chunks it is missing
+ */
+public class ChordClientTest {
+    private static final long KEY = 42;
+
+    @TempDir
+    Path directory;
+
+    /**
+     * A peer that serves one file chunk by chunk and can be made to fail from an offset on
+     */
+    private static class Peer {
+        final byte[] data;
+        final Set<Long> fetched = new ConcurrentSkipListSet<>(); // Offsets of the chunks served
+        volatile long failFrom = Long.MAX_VALUE; // Chunks that start here or later can't be fetched
+        final ChordNode node;
+
+        Peer(byte[] data) {
+            this.data = data;
+            ChordMessageInterface stub = (ChordMessageInterface)Proxy.newProxyInstance(ChordMessageInterface.class.getClassLoader(),
+                new Class<?>[] { ChordMessageInterface.class }, (proxy, method, args) -> {
+                    if (!method.getName().equals("getPackedChunk")) throw new UnsupportedOperationException(method.getName());
+                    long offset = (Long)args[1];
+                    if (offset >= failFrom) throw new java.rmi.ConnectException("Link dropped");
+                    fetched.add(offset);
+                    byte[] chunk = Arrays.copyOfRange(data, (int)offset, (int)Math.min(data.length, offset + (Integer)args[2]));
+                    return Compression.pack(chunk, (Integer)args[3]);
+                });
+            node = new ChordNode(1, "localhost", 1099, stub);
+        }
+
+        /**
+         * Opens the file from its start
+         * @param version the version of the file
+         * @return the stream
+         */
+        FileStream open(long version) {
+            return new FileStream(node, KEY, data.length, version);
+        }
+    }
+
+    @Test
+    public void rangesAreCutToTheFile() throws IOException {
+        Peer peer = new Peer(random(3 * FileTransfer.CHUNK_SIZE + 100, 1));
+        long[][] ranges = { { 0, 10 }, { FileTransfer.CHUNK_SIZE - 5, 10 }, { 5, 2L * FileTransfer.CHUNK_SIZE }, { peer.data.length - 50, 1000 }, { peer.data.length, 10 } };
+        for (long[] range : ranges) {
+            FileStream stream = new FileStream(peer.node, KEY, peer.data.length, 1, range[0], range[1]);
+            int end = (int)Math.min(peer.data.length, range[0] + range[1]);
+            assertEquals(end, stream.getEnd());
+            assertArrayEquals(Arrays.copyOfRange(peer.data, (int)range[0], end), readAll(stream), String.format("%d bytes at %d", range[1], range[0]));
+        }
+
+        // Skipping ahead doesn't fetch the chunks skipped over
+        FileStream stream = peer.open(1);
+        peer.fetched.clear();
+        assertEquals(2L * FileTransfer.CHUNK_SIZE + 1, stream.skip(2L * FileTransfer.CHUNK_SIZE + 1));
+        assertEquals(peer.data[2 * FileTransfer.CHUNK_SIZE + 1], (byte)stream.read());
+        assertFalse(peer.fetched.contains(0L));
+        assertFalse(peer.fetched.contains((long)FileTransfer.CHUNK_SIZE));
+    }
+
+    @Test
+    public void aDownloadThatIsCutOffResumesFromItsLastVerifiedChunk() throws IOException {
+        Peer peer = new Peer(random(6 * FileTransfer.CHUNK_SIZE + 100, 2));
+        Path path = directory.resolve("file");
+        peer.failFrom = 3L * FileTransfer.CHUNK_SIZE;
+        assertThrows(IOException.class, () -> ChordClient.download(peer.open(7), path));
+        assertFalse(Files.exists(path));
+        assertTrue(Files.exists(directory.resolve("file.part")));
+
+        peer.failFrom = Long.MAX_VALUE;
+        peer.fetched.clear();
+        ChordClient.download(peer.open(7), path);
+        assertArrayEquals(peer.data, Files.readAllBytes(path));
+        assertEquals(3L * FileTransfer.CHUNK_SIZE, (long)peer.fetched.iterator().next(), "a verified chunk was fetched again");
+        assertFalse(Files.exists(directory.resolve("file.part")));
+        assertFalse(Files.exists(directory.resolve("file.part.crc")));
+    }
+
+    @Test
+    public void aDamagedOrOutdatedPartFileIsFetchedAgain() throws IOException {
+        Peer peer = new Peer(random(4 * FileTransfer.CHUNK_SIZE, 3));
+        Path path = directory.resolve("file");
+        Path part = directory.resolve("file.part");
+        peer.failFrom = 3L * FileTransfer.CHUNK_SIZE;
+        assertThrows(IOException.class, () -> ChordClient.download(peer.open(7), path));
+        assertEquals(3L * FileTransfer.CHUNK_SIZE, Files.size(part));
+
+        // A flipped byte in the first chunk makes every chunk from there on suspect
+        byte[] damaged = Files.readAllBytes(part);
+        damaged[10] ^= 1;
+        Files.write(part, damaged);
+        peer.failFrom = Long.MAX_VALUE;
+        peer.fetched.clear();
+        ChordClient.download(peer.open(7), path);
+        assertArrayEquals(peer.data, Files.readAllBytes(path));
+        assertTrue(peer.fetched.contains(0L));
+
+        // A part file left by another version is thrown away
+        peer.failFrom = 2L * FileTransfer.CHUNK_SIZE;
+        assertThrows(IOException.class, () -> ChordClient.download(peer.open(7), path));
+        Peer newer = new Peer(random(4 * FileTransfer.CHUNK_SIZE, 4));
+        ChordClient.download(newer.open(8), path);
+        assertArrayEquals(newer.data, Files.readAllBytes(path));
+        assertTrue(newer.fetched.contains(0L));
+    }
+
+    /**
+     * Reads a stream to its end
+     * @param stream the stream
+     * @return the bytes read
+     * @throws IOException if the stream can't be read
+     */
+    private static byte[] readAll(InputStream stream) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        FileTransfer.copy(stream, data);
+        return data.toByteArray();
+    }
+
+    /**
+     * Makes random data that is the same on every run
+     * @param length the number of bytes
+     * @param seed the seed
+     * @return the data
+     */
+    private static byte[] random(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,135 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that CompressedStore hands back exactly what was stored, whole or in parts, across overwrites
+ */
+public class CompressedStoreTest {
+    private static final long KEY = 42;
+
+    @TempDir
+    Path repository;
+
+    @Test
+    public void readsNeverMixOneVersionsLayoutWithAnothersData() throws Exception {
+        CompressedStore store = new CompressedStore(new FileStore(repository));
+        // One version barely shrinks and the other shrinks to almost nothing, so their layouts differ everywhere
+        byte[] random = new byte[5 * FileTransfer.CHUNK_SIZE / 2];
+        new Random(1).nextBytes(random);
+        byte[] zeros = new byte[random.length];
+        store.write(KEY, random, KeyIndex.PLAIN);
+
+        ExecutorService readers = Executors.newFixedThreadPool(4);
+        long until = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        List<Future<Integer>> reads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) reads.add(readers.submit(() -> {
+            int count = 0;
+            for (; System.nanoTime() < until; count++) {
+                byte[] data = store.read(KEY, 0, Integer.MAX_VALUE);
+                assertTrue(Arrays.equals(random, data) || Arrays.equals(zeros, data), "a read mixed two versions");
+            }
+            return count;
+        }));
+        for (int i = 0; System.nanoTime() < until; i++) store.write(KEY, i % 2 == 0 ? zeros : random, KeyIndex.PLAIN);
+
+        for (Future<Integer> read : reads) assertTrue(read.get() > 0);
+        readers.shutdown();
+    }
+
+    @Test
+    public void readsWholeFilesAndRangesAcrossChunkBoundaries() throws IOException {
+        CompressedStore store = new CompressedStore(new FileStore(repository));
+        byte[] data = compressible(3 * FileTransfer.CHUNK_SIZE + 1234);
+        store.write(KEY, data, KeyIndex.PLAIN);
+        // A file received in chunks is packed from its staged copy
+        Path staged = repository.resolve(".43.part");
+        Files.write(staged, data);
+        store.commit(KEY + 1, staged, KeyIndex.MANIFEST);
+        assertFalse(Files.exists(staged));
+        store.write(KEY + 2, new byte[0], KeyIndex.PLAIN);
+
+        for (long key : new long[] { KEY, KEY + 1 }) {
+            assertArrayEquals(data, store.read(key, 0, Integer.MAX_VALUE));
+            checkRanges(store, key, data);
+        }
+        assertEquals(0, store.read(KEY + 2, 0, 100).length);
+        assertThrows(FileNotFoundException.class, () -> store.read(KEY + 3, 0, 100));
+
+        // A packed chunk can be sent on as it is and unpacked by its receiver
+        for (int chunk = 0; chunk < 4; chunk++) {
+            int from = chunk * FileTransfer.CHUNK_SIZE;
+            byte[] packed = store.readPacked(KEY, from);
+            assertArrayEquals(Arrays.copyOfRange(data, from, Math.min(data.length, from + FileTransfer.CHUNK_SIZE)), Compression.unpack(packed));
+        }
+        assertNull(store.readPacked(KEY, 5));
+        assertNull(store.readPacked(KEY, 4L * FileTransfer.CHUNK_SIZE));
+
+        store.delete(KEY);
+        assertThrows(FileNotFoundException.class, () -> store.read(KEY, 0, 100));
+    }
+
+    @Test
+    public void reloadsPackedFilesAndReadsFilesStoredBeforeCompressionAsTheyAre() throws IOException {
+        byte[] packed = compressible(2 * FileTransfer.CHUNK_SIZE + 7);
+        byte[] raw = compressible(FileTransfer.CHUNK_SIZE / 2);
+        byte[] tiny = "short".getBytes();
+        new CompressedStore(new FileStore(repository)).write(KEY, packed, KeyIndex.DESCRIPTOR);
+        FileStore plain = new FileStore(repository);
+        plain.write(KEY + 1, raw, KeyIndex.PLAIN);
+        plain.write(KEY + 2, tiny, KeyIndex.PLAIN);
+
+        KeyIndex index = new KeyIndex();
+        CompressedStore store = new CompressedStore(new FileStore(repository));
+        store.load(index);
+        // The index holds the unpacked sizes and the kinds the files were stored with
+        assertEquals(packed.length, index.size(KEY));
+        assertEquals(KeyIndex.DESCRIPTOR, KeyIndex.kind(index.version(KEY)));
+        assertEquals(raw.length, index.size(KEY + 1));
+        assertEquals(tiny.length, index.size(KEY + 2));
+
+        assertArrayEquals(packed, store.read(KEY, 0, Integer.MAX_VALUE));
+        checkRanges(store, KEY, packed);
+        assertArrayEquals(raw, store.read(KEY + 1, 0, Integer.MAX_VALUE));
+        checkRanges(store, KEY + 1, raw);
+        assertArrayEquals(tiny, store.read(KEY + 2, 0, Integer.MAX_VALUE));
+        assertNull(store.readPacked(KEY + 1, 0));
+    }
+
+    /**
+     * Reads ranges that start and end on either side of each chunk boundary and compares them with the file
+     * @param store the store holding the file
+     * @param key the global unique identifier of the file
+     * @param data the whole file
+     * @throws IOException if a read fails
+     */
+    private static void checkRanges(CompressedStore store, long key, byte[] data) throws IOException {
+        for (long boundary = 0; boundary <= data.length; boundary += FileTransfer.CHUNK_SIZE) {
+            for (long offset : new long[] { boundary - 1, boundary, boundary + 1 }) {
+                if (offset < 0) continue;
+                for (int length : new int[] { 0, 1, 2, FileTransfer.CHUNK_SIZE, FileTransfer.CHUNK_SIZE + 2 }) {
+                    int from = (int)Math.min(offset, data.length);
+                    byte[] expected = Arrays.copyOfRange(data, from, (int)Math.min(data.length, offset + length));
+                    assertArrayEquals(expected, store.read(key, offset, length), String.format("%d bytes at %d of %d", length, offset, key));
+                }
+            }
+        }
+        assertEquals(0, store.read(key, data.length + 10L, 10).length);
+    }
+
+    /**
+     * Makes data that packs well but still differs from chunk to chunk
+     * @param length the number of bytes
+     * @return the data
+     */
+    private static byte[] compressible(int length) {
+        byte[] data = new byte[length];
+        Random random = new Random(length);
+        for (int i = 0; i < length; i++) data[i] = (byte)(i % 251 < 200 ? i / 4096 : random.nextInt());
+        return data;
+    }
+}
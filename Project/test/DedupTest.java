@@ -0,0 +1,130 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that Dedup cuts files the same way whatever the stream hands back, so an edit only changes the
+ * chunks around it, and that manifests are read back as written or refused
+ */
+public class DedupTest {
+    @Test
+    public void chunksJoinBackIntoTheFileWithinTheirBounds() throws IOException {
+        byte[] data = random(4 << 20, 1);
+        List<byte[]> chunks = chunks(new ByteArrayInputStream(data));
+
+        ByteArrayOutputStream joined = new ByteArrayOutputStream();
+        for (int i = 0; i < chunks.size(); i++) {
+            int length = chunks.get(i).length;
+            assertTrue(length <= Dedup.MAX_BYTES, "chunk " + i + " is " + length + " bytes");
+            if (i + 1 < chunks.size()) assertTrue(length >= Dedup.MIN_BYTES, "chunk " + i + " is " + length + " bytes");
+            joined.write(chunks.get(i));
+        }
+        assertArrayEquals(data, joined.toByteArray());
+        // The hash, not the maximum, decides most cuts
+        assertTrue(chunks.size() > data.length / Dedup.MAX_BYTES * 2, chunks.size() + " chunks");
+
+        assertArrayEquals(new byte[][] { "short".getBytes() }, chunks(new ByteArrayInputStream("short".getBytes())).toArray());
+        assertTrue(chunks(new ByteArrayInputStream(new byte[0])).isEmpty());
+        // Data with no cut points is cut at the maximum
+        for (byte[] chunk : chunks(new ByteArrayInputStream(new byte[3 * Dedup.MAX_BYTES]))) assertEquals(Dedup.MAX_BYTES, chunk.length);
+    }
+
+    @Test
+    public void cutsDoNotDependOnHowTheStreamIsRead() throws IOException {
+        byte[] data = random(2 << 20, 2);
+        Random sizes = new Random(2);
+        // A stream that hands back a few bytes at a time, like a socket
+        InputStream trickle = new FilterInputStream(new ByteArrayInputStream(data)) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return super.read(b, off, Math.min(len, 1 + sizes.nextInt(3000)));
+            }
+        };
+        assertEquals(keys(chunks(new ByteArrayInputStream(data))), keys(chunks(trickle)));
+    }
+
+    @Test
+    public void anEditOnlyChangesTheChunksAroundIt() throws IOException {
+        byte[] data = random(4 << 20, 3);
+        List<Long> before = keys(chunks(new ByteArrayInputStream(data)));
+        // Insert a few bytes in the middle, which shifts everything after them
+        int at = data.length / 2;
+        ByteArrayOutputStream edited = new ByteArrayOutputStream();
+        edited.write(data, 0, at);
+        edited.write("edited".getBytes());
+        edited.write(data, at, data.length - at);
+        List<Long> after = keys(chunks(new ByteArrayInputStream(edited.toByteArray())));
+
+        Set<Long> added = new HashSet<>(after);
+        added.removeAll(before);
+        assertTrue(added.size() <= 2, added.size() + " chunks changed");
+        assertEquals(before.subList(0, 3), after.subList(0, 3));
+        assertEquals(before.subList(before.size() - 3, before.size()), after.subList(after.size() - 3, after.size()));
+    }
+
+    @Test
+    public void manifestsAreReadBackAsWritten() throws IOException {
+        Dedup.Manifest manifest = new Dedup.Manifest();
+        for (byte[] chunk : chunks(new ByteArrayInputStream(random(1 << 20, 4)))) manifest.add(Dedup.key(chunk), chunk.length);
+        Dedup.Manifest decoded = Dedup.Manifest.decode(manifest.encode());
+        assertEquals(manifest.keys, decoded.keys);
+        assertEquals(manifest.lengths, decoded.lengths);
+        assertEquals(1 << 20, decoded.size);
+        assertEquals(0, Dedup.Manifest.decode(new Dedup.Manifest().encode()).size);
+    }
+
+    @Test
+    public void damagedManifestsAreRefused() {
+        Dedup.Manifest manifest = new Dedup.Manifest();
+        manifest.add(7, 100);
+        manifest.add(8, 200);
+        byte[] encoded = manifest.encode();
+
+        byte[] otherFile = encoded.clone();
+        otherFile[0] ^= 1;
+        assertThrows(StreamCorruptedException.class, () -> Dedup.Manifest.decode(otherFile));
+        assertThrows(StreamCorruptedException.class, () -> Dedup.Manifest.decode(Arrays.copyOf(encoded, encoded.length - 1)));
+        assertThrows(StreamCorruptedException.class, () -> Dedup.Manifest.decode(Arrays.copyOf(encoded, Dedup.MAGIC_BYTES)));
+        byte[] wrongSize = encoded.clone();
+        ByteBuffer.wrap(wrongSize).putLong(Dedup.MAGIC_BYTES, 301);
+        assertThrows(StreamCorruptedException.class, () -> Dedup.Manifest.decode(wrongSize));
+    }
+
+    /**
+     * Cuts a stream into all of its chunks
+     * @param input the stream
+     * @return the chunks in order
+     * @throws IOException if the stream can't be read
+     */
+    private static List<byte[]> chunks(InputStream input) throws IOException {
+        Dedup.Chunker chunker = new Dedup.Chunker(input);
+        List<byte[]> chunks = new ArrayList<>();
+        for (byte[] chunk; (chunk = chunker.next()) != null; ) chunks.add(chunk);
+        return chunks;
+    }
+
+    /**
+     * Gets the keys chunks are stored under
+     * @param chunks the chunks
+     * @return their keys in order
+     */
+    private static List<Long> keys(List<byte[]> chunks) {
+        List<Long> keys = new ArrayList<>();
+        for (byte[] chunk : chunks) keys.add(Dedup.key(chunk));
+        return keys;
+    }
+
+    /**
+     * Makes random data that is the same on every run
+     * @param length the number of bytes
+     * @param seed the seed
+     * @return the data
+     */
+    private static byte[] random(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,78 @@
+import java.io.*;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that GroupCommit shares one force among the writes waiting for it and reports a failed force
+ * to every write it covered. The pom runs the tests with -Dchord.durability=group
+ */
+public class GroupCommitTest {
+    /**
+     * A store that only counts its forces, each of which takes a while
+     */
+    private static class SlowStore implements ObjectStore {
+        final AtomicInteger syncs = new AtomicInteger();
+        volatile boolean failing;
+
+        public void load(KeyIndex index) {}
+        public void commit(long guidObject, Path staged, int kind) {}
+        public void write(long guidObject, byte[] data, int kind) {}
+        public byte[] read(long guidObject, long offset, int length) { return new byte[0]; }
+        public void delete(long guidObject) {}
+
+        public void sync() throws IOException {
+            syncs.incrementAndGet();
+            try {
+                Thread.sleep(50);
+            } catch(InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            if (failing) throw new SyncFailedException("Disk is gone");
+        }
+    }
+
+    @Test
+    public void writesWaitingTogetherShareOneForce() throws Exception {
+        assertEquals(GroupCommit.Mode.GROUP, GroupCommit.MODE);
+        SlowStore store = new SlowStore();
+        GroupCommit commits = new GroupCommit(store);
+        List<Callable<Void>> writes = new ArrayList<>();
+        for (int i = 0; i < 32; i++) writes.add(() -> {
+            commits.await();
+            return null;
+        });
+
+        ExecutorService writers = Executors.newFixedThreadPool(32);
+        for (Future<Void> write : writers.invokeAll(writes)) write.get();
+        writers.shutdown();
+        // The first force covers one write and the writes that arrive meanwhile share the next one or two
+        assertTrue(store.syncs.get() >= 1 && store.syncs.get() < 8, store.syncs.get() + " forces");
+    }
+
+    @Test
+    public void aFailedForceIsReportedToEveryWriteItCovered() throws Exception {
+        SlowStore store = new SlowStore();
+        store.failing = true;
+        GroupCommit commits = new GroupCommit(store);
+        List<Callable<Void>> writes = new ArrayList<>();
+        for (int i = 0; i < 16; i++) writes.add(() -> {
+            commits.await();
+            return null;
+        });
+
+        ExecutorService writers = Executors.newFixedThreadPool(16);
+        for (Future<Void> write : writers.invokeAll(writes)) {
+            ExecutionException e = assertThrows(ExecutionException.class, write::get);
+            assertInstanceOf(SyncFailedException.class, e.getCause());
+        }
+
+        // A later force that succeeds isn't held back by the failure
+        store.failing = false;
+        commits.await();
+        writers.shutdown();
+    }
+}
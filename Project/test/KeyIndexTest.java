@@ -0,0 +1,87 @@
+import java.util.*;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that KeyIndex keeps its keys sorted with their sizes, versions and checksums, answers ring
+ * intervals like Chord.isKeyInOpenInterval and combines chunk checksums into the checksum of the file
+ */
+public class KeyIndexTest {
+    @Test
+    public void keepsEachKeysSizeVersionAndChecksumThroughInsertsAndRemovals() {
+        KeyIndex index = new KeyIndex();
+        Map<Long, long[]> expected = new TreeMap<>();
+        Random random = new Random(3);
+        // Enough keys to grow the arrays several times, inserted out of order, with some overwritten and removed
+        for (int i = 0; i < 5000; i++) {
+            long key = random.nextInt(2000) - 1000L;
+            if (random.nextInt(4) == 0) {
+                assertEquals(expected.remove(key) != null, index.remove(key));
+                continue;
+            }
+            long[] entry = { random.nextInt(1 << 20), KeyIndex.newVersion(), random.nextInt() & 0xffffffffL };
+            index.put(key, entry[0], entry[1], entry[2]);
+            expected.put(key, entry);
+        }
+
+        assertArrayEquals(expected.keySet().stream().mapToLong(Long::longValue).toArray(), index.keys());
+        assertEquals(expected.size(), index.count());
+        assertEquals(expected.values().stream().mapToLong(entry -> entry[0]).sum(), index.totalBytes());
+        for (Map.Entry<Long, long[]> entry : expected.entrySet()) {
+            assertEquals(entry.getValue()[0], index.size(entry.getKey()));
+            assertEquals(entry.getValue()[1], index.version(entry.getKey()));
+            assertEquals(entry.getValue()[2], index.checksum(entry.getKey()));
+        }
+        assertEquals(-1, index.size(5000));
+        assertEquals(0, index.version(5000));
+        assertEquals(KeyIndex.UNKNOWN_CHECKSUM, index.checksum(5000));
+    }
+
+    @Test
+    public void findsTheKeysOfOpenIntervalsThatWrapAroundTheRing() {
+        KeyIndex index = new KeyIndex();
+        long[] keys = { Long.MIN_VALUE, -500, -1, 0, 1, 7, 500, Long.MAX_VALUE };
+        for (long key : keys) index.put(key, 1, KeyIndex.newVersion(), KeyIndex.UNKNOWN_CHECKSUM);
+        long[] bounds = { Long.MIN_VALUE, -600, -500, -1, 0, 3, 7, 500, 501, Long.MAX_VALUE };
+
+        for (long key1 : bounds) {
+            for (long key2 : bounds) {
+                List<Long> expected = new ArrayList<>();
+                // Walk the ring from key1, as the index hands the keys back in ring order
+                for (int i = 0; i < keys.length; i++) {
+                    long key = keys[(firstAfter(keys, key1) + i) % keys.length];
+                    // The same test as Chord.isKeyInOpenInterval
+                    if (key1 < key2 ? key > key1 && key < key2 : key > key1 || key < key2) expected.add(key);
+                }
+                long[] found = index.keysInOpenInterval(key1, key2);
+                assertArrayEquals(expected.stream().mapToLong(Long::longValue).toArray(), found, String.format("(%d, %d)", key1, key2));
+            }
+        }
+    }
+
+    @Test
+    public void combinesChunkChecksumsIntoTheChecksumOfTheWholeFile() {
+        Random random = new Random(9);
+        for (int length : new int[] { 0, 1, 2, 1000, 1 << 16, 3 * (1 << 16) + 17 }) {
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+            long whole = KeyIndex.checksum(data);
+            for (int cut : new int[] { 0, length / 3, length / 2, length }) {
+                long first = KeyIndex.checksum(Arrays.copyOfRange(data, 0, cut));
+                long second = KeyIndex.checksum(Arrays.copyOfRange(data, cut, length));
+                assertEquals(whole, KeyIndex.combine(first, second, length - cut), String.format("%d bytes cut at %d", length, cut));
+            }
+        }
+    }
+
+    /**
+     * Finds where a walk around the ring from a key starts
+     * @param keys the keys in ascending order
+     * @param key where the walk starts
+     * @return the position of the first key greater than key, wrapping to 0
+     */
+    private static int firstAfter(long[] keys, long key) {
+        for (int i = 0; i < keys.length; i++) if (keys[i] > key) return i;
+        return 0;
+    }
+}
@@ -0,0 +1,58 @@
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that ReadCache stays within its budget by evicting the least recently used data and never hands
+ * back data cached for another version of a file
+ */
+public class ReadCacheTest {
+    @Test
+    public void evictsTheLeastRecentlyUsedDataToStayWithinBudget() {
+        ReadCache cache = new ReadCache(8000);
+        for (long key = 0; key < 8; key++) cache.put(key, 0, 1, new byte[1000]);
+        assertEquals(8000, cache.usedBytes());
+
+        // Using key 0 makes key 1 the eldest, so it is the one evicted
+        assertNotNull(cache.get(0, 0, 1));
+        cache.put(8, 0, 1, new byte[1000]);
+        assertEquals(8000, cache.usedBytes());
+        assertNull(cache.get(1, 0, 1));
+        assertNotNull(cache.get(0, 0, 1));
+        assertNotNull(cache.get(8, 0, 1));
+
+        // Replacing a slot counts its bytes once
+        cache.put(8, 0, 2, new byte[500]);
+        assertEquals(7500, cache.usedBytes());
+    }
+
+    @Test
+    public void neverHandsBackDataOfAnotherVersion() {
+        ReadCache cache = new ReadCache(8000);
+        byte[] data = { 1, 2, 3 };
+        cache.put(5, 0, 10, data);
+        assertEquals(10, cache.version(5, 0));
+        assertEquals(0, cache.version(5, 3));
+        assertSame(data, cache.get(5, 0, 10));
+
+        // A lookup with a newer version drops the stale data
+        assertNull(cache.get(5, 0, 11));
+        assertEquals(0, cache.version(5, 0));
+        assertEquals(0, cache.usedBytes());
+    }
+
+    @Test
+    public void refusesDataTooLargeForItsBudget() {
+        ReadCache cache = new ReadCache(8000);
+        assertTrue(cache.accepts(1000));
+        assertFalse(cache.accepts(1001));
+        cache.put(1, 0, 1, new byte[1001]);
+        // Version 0 means the file has no known version
+        cache.put(2, 0, 0, new byte[10]);
+        assertEquals(0, cache.usedBytes());
+
+        ReadCache disabled = new ReadCache(0);
+        disabled.put(1, 0, 1, new byte[0]);
+        assertFalse(disabled.accepts(1));
+        assertNull(disabled.get(2, 0, 1));
+    }
+}
@@ -0,0 +1,84 @@
+import java.io.*;
+import java.util.*;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that ReedSolomon rebuilds a stripe whichever of its shards are lost, as long as at most m are
+ */
+public class ReedSolomonTest {
+    private static final int[][] SCHEMES = { { 1, 1 }, { 2, 1 }, { 4, 2 }, { 3, 3 }, { 6, 3 }, { 10, 4 } }; // k and m of each code tried
+    private static final int SHARD_BYTES = 257; // Odd, so no shard is a whole number of words
+
+    @Test
+    public void reconstructsEveryCombinationOfUpToMLostShards() throws IOException {
+        for (int[] scheme : SCHEMES) {
+            int k = scheme[0], m = scheme[1];
+            ReedSolomon code = new ReedSolomon(k, m);
+            byte[][] shards = stripe(code, new Random(k * 31 + m));
+
+            int erasures = 0;
+            for (int lost = 0; lost < 1 << (k + m); lost++) {
+                if (Integer.bitCount(lost) > m) continue;
+                byte[][] damaged = erase(shards, lost);
+                code.reconstruct(damaged);
+                for (int i = 0; i < k + m; i++)
+                    assertArrayEquals(shards[i], damaged[i], String.format("%d+%d lost %s, shard %d", k, m, Integer.toBinaryString(lost), i));
+                erasures++;
+            }
+            assertTrue(erasures > m, String.format("%d+%d tried only %d combinations", k, m, erasures));
+        }
+    }
+
+    @Test
+    public void reconstructsDataWithoutTouchingLostParity() throws IOException {
+        ReedSolomon code = new ReedSolomon(4, 2);
+        byte[][] shards = stripe(code, new Random(42));
+        for (int lost = 0; lost < 1 << 6; lost++) {
+            if (Integer.bitCount(lost) > 2) continue;
+            byte[][] damaged = erase(shards, lost);
+            code.reconstructData(damaged);
+            for (int i = 0; i < 4; i++) assertArrayEquals(shards[i], damaged[i], String.format("lost %s, shard %d", Integer.toBinaryString(lost), i));
+        }
+    }
+
+    @Test
+    public void refusesToReconstructWithMoreThanMLostShards() {
+        ReedSolomon code = new ReedSolomon(4, 2);
+        byte[][] shards = stripe(code, new Random(7));
+        for (int lost = 0; lost < 1 << 6; lost++) {
+            if (Integer.bitCount(lost) <= 2) continue;
+            byte[][] damaged = erase(shards, lost);
+            assertThrows(IOException.class, () -> code.reconstruct(damaged), Integer.toBinaryString(lost));
+        }
+    }
+
+    /**
+     * Makes a stripe of random data shards followed by their parity
+     * @param code the code to encode with
+     * @param random where the data comes from
+     * @return every shard of the stripe, data shards first
+     */
+    private static byte[][] stripe(ReedSolomon code, Random random) {
+        byte[][] data = new byte[code.dataShards][SHARD_BYTES];
+        for (byte[] shard : data) random.nextBytes(shard);
+        byte[][] parity = code.encode(data);
+        byte[][] shards = new byte[code.dataShards + code.parityShards][];
+        System.arraycopy(data, 0, shards, 0, data.length);
+        System.arraycopy(parity, 0, shards, data.length, parity.length);
+        return shards;
+    }
+
+    /**
+     * Copies a stripe with some of its shards missing
+     * @param shards every shard of the stripe
+     * @param lost a bit per shard, set for the shards to leave out
+     * @return copies of the shards that are kept, with null for the others
+     */
+    private static byte[][] erase(byte[][] shards, int lost) {
+        byte[][] damaged = new byte[shards.length][];
+        for (int i = 0; i < shards.length; i++)
+            if ((lost & 1 << i) == 0) damaged[i] = shards[i].clone();
+        return damaged;
+    }
+}
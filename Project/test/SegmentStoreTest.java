@@ -0,0 +1,125 @@
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that SegmentStore replays its segments into the files last written, with their kinds and
+ * checksums, after a restart, a torn write or a compaction
+ */
+public class SegmentStoreTest {
+    @TempDir
+    Path repository;
+
+    @Test
+    public void replaysTheLastWriteOfEveryFileWithItsKindAndChecksum() throws IOException {
+        SegmentStore store = new SegmentStore(repository);
+        store.load(new KeyIndex());
+        Map<Long, byte[]> expected = new HashMap<>();
+        Random random = new Random(5);
+        for (int round = 0; round < 3; round++) {
+            for (long key = 0; key < 30; key++) {
+                byte[] data = new byte[random.nextInt(5000)];
+                random.nextBytes(data);
+                store.write(key, data, (int)(key % 3));
+                expected.put(key, data);
+            }
+        }
+        for (long key = 20; key < 30; key++) {
+            store.delete(key);
+            expected.remove(key);
+        }
+        // A file received in chunks is committed from its staged copy, which the store then removes
+        Path staged = repository.resolve(".100.part");
+        byte[] large = new byte[3 << 20];
+        random.nextBytes(large);
+        Files.write(staged, large);
+        store.commit(100, staged, KeyIndex.PLAIN);
+        expected.put(100L, large);
+        assertFalse(Files.exists(staged));
+
+        KeyIndex index = new KeyIndex();
+        SegmentStore reopened = new SegmentStore(repository);
+        reopened.load(index);
+        assertEquals(expected.size(), index.count());
+        for (Map.Entry<Long, byte[]> file : expected.entrySet()) {
+            long key = file.getKey();
+            assertArrayEquals(file.getValue(), reopened.read(key, 0, Integer.MAX_VALUE), "file " + key);
+            assertEquals(file.getValue().length, index.size(key));
+            assertEquals(key == 100 ? KeyIndex.PLAIN : key % 3, KeyIndex.kind(index.version(key)), "kind of " + key);
+            assertEquals(KeyIndex.checksum(file.getValue()), index.checksum(key), "checksum of " + key);
+        }
+        assertThrows(FileNotFoundException.class, () -> reopened.read(25, 0, 10));
+    }
+
+    @Test
+    public void cutsOffATornRecordAtTheEndOfTheLastSegment() throws IOException {
+        SegmentStore store = new SegmentStore(repository);
+        store.load(new KeyIndex());
+        store.write(1, "kept".getBytes(), KeyIndex.PLAIN);
+        store.write(2, "also kept".getBytes(), KeyIndex.PLAIN);
+        Path segment = repository.resolve("segment-000001.log");
+        long whole = Files.size(segment);
+
+        // A crash in the middle of an append leaves part of a record behind
+        store.write(3, new byte[1000], KeyIndex.PLAIN);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(whole + 500);
+        }
+
+        KeyIndex index = new KeyIndex();
+        SegmentStore reopened = new SegmentStore(repository);
+        reopened.load(index);
+        assertArrayEquals(new long[] { 1, 2 }, index.keys());
+        assertArrayEquals("also kept".getBytes(), reopened.read(2, 0, 100));
+        assertEquals(whole, Files.size(segment));
+
+        // Appends continue where the torn record was cut off
+        reopened.write(3, "written again".getBytes(), KeyIndex.PLAIN);
+        KeyIndex again = new KeyIndex();
+        new SegmentStore(repository).load(again);
+        assertArrayEquals(new long[] { 1, 2, 3 }, again.keys());
+    }
+
+    @Test
+    public void refusesToLoadASealedSegmentThatIsCorrupt() throws IOException {
+        SegmentStore store = new SegmentStore(repository);
+        store.load(new KeyIndex());
+        store.write(1, new byte[1000], KeyIndex.PLAIN);
+
+        // A copy of the segment with a damaged record, ahead of the active segment, is sealed and can't be cut off
+        byte[] sealed = Files.readAllBytes(repository.resolve("segment-000001.log"));
+        sealed[sealed.length - 1] ^= 1;
+        Files.write(repository.resolve("segment-000000.log"), sealed);
+
+        assertThrows(IOException.class, () -> new SegmentStore(repository).load(new KeyIndex()));
+    }
+
+    @Test
+    public void compactionKeepsLiveFilesAndDropsDeletedOnes() throws IOException {
+        SegmentStore store = new SegmentStore(repository);
+        store.load(new KeyIndex());
+        byte[] old = new byte[1 << 20], current = new byte[1 << 20];
+        Arrays.fill(old, (byte)1);
+        Arrays.fill(current, (byte)2);
+        // Fill the first segment until it is sealed, then overwrite most of it and delete one file
+        int files = (int)(SegmentStore.SEGMENT_BYTES / old.length) + 1;
+        for (long key = 0; key < files; key++) store.write(key, old, KeyIndex.PLAIN);
+        for (long key = 0; key < files - 2; key++) store.write(key, current, KeyIndex.PLAIN);
+        store.delete(files - 2);
+
+        store.compact();
+        assertFalse(Files.exists(repository.resolve("segment-000001.log")));
+
+        KeyIndex index = new KeyIndex();
+        SegmentStore reopened = new SegmentStore(repository);
+        reopened.load(index);
+        assertEquals(files - 1, index.count());
+        for (long key = 0; key < files - 2; key++) assertArrayEquals(current, reopened.read(key, 0, Integer.MAX_VALUE), "file " + key);
+        assertArrayEquals(old, reopened.read(files - 1, 0, Integer.MAX_VALUE));
+        assertEquals(-1, index.size(files - 2));
+    }
+}
@@ -0,0 +1,53 @@
+package dfs;
+
+import java.io.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures small puts from many threads at once on a single chord for each durability mode, so the
+ * forces that fsync makes every put wait for on its own can be compared with the ones group commit shares
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(16)
+@State(Scope.Benchmark)
+public class DurablePutBenchmark {
+    @Param({ "none", "fsync", "group" })
+    public String durability;
+
+    @Param({ "file", "segment" })
+    public String store;
+
+    private Chord chord;
+    private byte[] data;
+
+    /**
+     * The key each thread writes, so threads never overwrite each other's file
+     */
+    @State(Scope.Thread)
+    public static class Key {
+        final long guidObject = ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE;
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        // Every combination runs in a fork of its own, so the mode is read when the first chord starts
+        System.setProperty("chord.durability", durability);
+        chord = Nodes.start(RmiTransport.shared(), store);
+        data = Nodes.randomFile(4096);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Nodes.stop(chord);
+    }
+
+    @Benchmark
+    public void put(Key key) throws IOException {
+        chord.put(key.guidObject, new ByteArrayInputStream(data));
+    }
+}
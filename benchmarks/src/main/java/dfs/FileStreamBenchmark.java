@@ -0,0 +1,62 @@
+package dfs;
+
+import java.io.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures opening a FileStream and reading it a byte at a time or in chunks from a local chord,
+ * which isolates the stream from the network
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FileStreamBenchmark {
+    @Param({ "4096", "65536", "1048576" })
+    public int size;
+
+    private Chord chord;
+    private long guidObject = ChordUser.hash("file-stream-benchmark");
+    private long version;
+    private byte[] buffer = new byte[FileTransfer.CHUNK_SIZE];
+
+    @Setup
+    public void setUp() throws IOException {
+        chord = Nodes.start(RmiTransport.shared(), "file");
+        chord.put(guidObject, new ByteArrayInputStream(Nodes.randomFile(size)));
+        version = chord.getVersion(guidObject);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Nodes.stop(chord);
+    }
+
+    @Benchmark
+    public FileStream construct() {
+        return new FileStream(chord.self, guidObject, size, version);
+    }
+
+    @Benchmark
+    public long readByte() throws IOException {
+        long sum = 0;
+        try (FileStream stream = new FileStream(chord.self, guidObject, size, version)) {
+            int b;
+            while ((b = stream.read()) != -1) sum += b;
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long readChunks() throws IOException {
+        long total = 0;
+        try (FileStream stream = new FileStream(chord.self, guidObject, size, version)) {
+            int read;
+            while ((read = stream.read(buffer)) != -1) total += read;
+        }
+        return total;
+    }
+}
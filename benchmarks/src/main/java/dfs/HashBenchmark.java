@@ -0,0 +1,23 @@
+package dfs;
+
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the hash that turns file names and ports into guids
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HashBenchmark {
+    @Param({ "4001", "notes/lecture-slides-week-12.pdf" })
+    public String name;
+
+    @Benchmark
+    public long hash() {
+        return ChordUser.hash(name);
+    }
+}
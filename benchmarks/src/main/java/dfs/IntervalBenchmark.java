@@ -0,0 +1,48 @@
+package dfs;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.*;
+
+/**
+ * Measures the ring interval checks every lookup and migration makes, on intervals that do and don't wrap
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class IntervalBenchmark {
+    private Chord chord;
+    private long[] keys = new long[1024];
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        chord = Nodes.start(RmiTransport.shared(), "file");
+        Random random = new Random(1);
+        for (int i = 0; i < keys.length; i++) keys[i] = random.nextLong() & Long.MAX_VALUE;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Nodes.stop(chord);
+    }
+
+    @Benchmark
+    public void semiCloseInterval(Blackhole blackhole) {
+        long key = keys[next++ & (keys.length - 1)];
+        blackhole.consume(chord.isKeyInSemiCloseInterval(key, Long.MAX_VALUE / 4, Long.MAX_VALUE / 2));
+        blackhole.consume(chord.isKeyInSemiCloseInterval(key, Long.MAX_VALUE / 2, Long.MAX_VALUE / 4));
+    }
+
+    @Benchmark
+    public void openInterval(Blackhole blackhole) {
+        long key = keys[next++ & (keys.length - 1)];
+        blackhole.consume(chord.isKeyInOpenInterval(key, Long.MAX_VALUE / 4, Long.MAX_VALUE / 2));
+        blackhole.consume(chord.isKeyInOpenInterval(key, Long.MAX_VALUE / 2, Long.MAX_VALUE / 4));
+    }
+}
@@ -0,0 +1,49 @@
+package dfs;
+
+import java.io.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures Chord.put and Chord.get on a single chord for both storage engines, so the cost of the
+ * repository is seen without any network
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LocalPutGetBenchmark {
+    @Param({ "1024", "65536", "1048576", "16777216" })
+    public int size;
+
+    @Param({ "file", "segment" })
+    public String store;
+
+    private Chord chord;
+    private byte[] data;
+    private long guidObject = ChordUser.hash("local-put-get-benchmark");
+
+    @Setup
+    public void setUp() throws IOException {
+        chord = Nodes.start(RmiTransport.shared(), store);
+        data = Nodes.randomFile(size);
+        chord.put(guidObject, new ByteArrayInputStream(data));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Nodes.stop(chord);
+    }
+
+    @Benchmark
+    public void put() throws IOException {
+        chord.put(guidObject, new ByteArrayInputStream(data));
+    }
+
+    @Benchmark
+    public long get() throws IOException {
+        return FileTransfer.copy(chord.get(guidObject), Nodes.DISCARD);
+    }
+}
@@ -0,0 +1,81 @@
+package dfs;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Class starts chords for the benchmarks, each with an empty repository in the working directory
+ */
+class Nodes {
+    private static final AtomicInteger nextPort = new AtomicInteger(5700); // Keeps ports distinct when benchmarks share a JVM
+
+    /**
+     * Output that throws away everything written to it
+     */
+    static final OutputStream DISCARD = new OutputStream() {
+        public void write(int b) {}
+        public void write(byte[] b, int off, int len) {}
+    };
+
+    /**
+     * Starts a chord on the next free benchmark port
+     * @param transport how the chord talks to other peers
+     * @param store the storage engine, file or segment
+     * @return the chord
+     * @throws IOException if the repository can't be created
+     */
+    static Chord start(Transport transport, String store) throws IOException {
+        int port = nextPort.getAndIncrement();
+        long guid = ChordUser.hash(Integer.toString(port));
+        Path directory = Paths.get(Long.toString(guid));
+        delete(directory);
+        Files.createDirectories(directory.resolve("repository"));
+
+        System.setProperty("chord.store", store);
+        return new Chord(port, guid, transport);
+    }
+
+    /**
+     * Stops the maintenance of a chord and removes its repository
+     * @param chord the chord
+     * @throws IOException if the repository can't be removed
+     */
+    static void stop(Chord chord) throws IOException {
+        chord.maintenance.shutdown();
+        chord.transport.unexport(chord);
+        delete(Paths.get(Long.toString(chord.guid)));
+    }
+
+    /**
+     * Gets the transport with a given name
+     * @param name rmi or nio
+     * @return the shared transport of that kind
+     */
+    static Transport transport(String name) {
+        return "nio".equals(name) ? NioTransport.shared() : RmiTransport.shared();
+    }
+
+    /**
+     * Makes a file of random bytes
+     * @param size the size of the file in bytes
+     * @return the data of the file
+     */
+    static byte[] randomFile(int size) {
+        byte[] data = new byte[size];
+        new java.util.Random(size).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Deletes a directory and everything in it, if it exists
+     * @param directory the directory
+     * @throws IOException
+     */
+    private static void delete(Path directory) throws IOException {
+        if (!Files.exists(directory)) return;
+        try (java.util.stream.Stream<Path> paths = Files.walk(directory)) {
+            for (Object path : paths.sorted(java.util.Comparator.reverseOrder()).toArray()) Files.delete((Path)path);
+        }
+    }
+}